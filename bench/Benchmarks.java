@@ -0,0 +1,498 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.LongSupplier;
+
+/**
+ * Throughput and allocation benchmarks for the hot paths of the simulation.
+ *
+ * Every case is warmed up, then run for a number of timed iterations. For
+ * each case the harness reports operations per second, work units per
+ * second (steps, cells or calls, depending on the case) and the bytes
+ * allocated per operation, so regressions in speed or garbage show up when
+ * the results of two versions are compared.
+ *
+ * Usage: Benchmarks [-quick] [-csv file] [name filter]
+ *
+ * -quick runs shorter iterations on the small sizes only; -csv appends the
+ * results to a file; a filter only runs the cases whose name contains it.
+ *
+ * The same cases can be run under JMH, with forked JVMs and proper
+ * statistics, through the benchmarks in bench/jmh and the Maven build (see
+ * {@link #operation(String, String)}). This harness needs nothing but the
+ * JDK, so it is kept for quick comparisons offline.
+ */
+public class Benchmarks {
+	private static final int WARMUP_ITERATIONS = 3;
+	private static final int MEASURED_ITERATIONS = 5;
+
+	// The rabbits that fill the fields of the neighbour benchmarks.
+	private static final SpeciesTable.Definition RABBIT = SpeciesTable.standard().define(
+			Species.RABBIT);
+
+	// Results are folded into this so that the JIT cannot drop the work.
+	static volatile long sink;
+
+	private static long iterationMillis = 1000;
+
+	/**
+	 * One benchmark case: something to set up once and an operation to time.
+	 */
+	abstract static class Case {
+		final String name;
+		final String params;
+		final String unit;
+
+		Case(String name, String params, String unit) {
+			this.name = name;
+			this.params = params;
+			this.unit = unit;
+		}
+
+		/** Prepare the state the operation works on. */
+		abstract void setUp();
+
+		/**
+		 * Run the operation once.
+		 *
+		 * @return The number of work units done, e.g. cells scanned.
+		 */
+		abstract long run();
+	}
+
+	/**
+	 * The measurements of one case.
+	 */
+	static class Result {
+		double opsPerSecond;
+		double unitsPerSecond;
+		double bytesPerOp;
+	}
+
+	public static void main(String[] args) throws IOException {
+		boolean quick = false;
+		String csvFile = null;
+		String filter = "";
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-quick")) {
+				quick = true;
+			} else if (args[i].equals("-csv")) {
+				csvFile = args[++i];
+			} else {
+				filter = args[i];
+			}
+		}
+		if (quick) {
+			iterationMillis = 200;
+		}
+
+		int[][] sizes = quick ? new int[][] { { 80, 60 }, { 200, 200 } }
+				: new int[][] { { 80, 60 }, { 400, 400 }, { 1000, 1000 } };
+		double[] densities = { 0.1, 0.5, 0.9 };
+
+		List<Case> cases = new ArrayList<Case>();
+		for (int[] size : sizes) {
+			cases.add(engineStep(size[0], size[1], 0));
+			cases.add(engineStep(size[0], size[1], Runtime.getRuntime().availableProcessors()));
+			cases.add(entityEngineStep(size[0], size[1]));
+			cases.add(ageAndHunger(size[0], size[1]));
+			cases.add(fieldClear(size[0], size[1]));
+			for (double density : densities) {
+				cases.add(generateCounts(size[0], size[1], density));
+			}
+			cases.add(recordRoundTrip(size[0], size[1]));
+			cases.add(snapshotRoundTrip(size[0], size[1]));
+		}
+		for (double density : densities) {
+			cases.add(adjacentLocations(400, 400, density));
+			cases.add(freeAdjacentLocation(400, 400, density));
+			cases.add(freeAdjacentCell(400, 400, density));
+		}
+
+		PrintWriter csv = null;
+		if (csvFile != null) {
+			csv = new PrintWriter(new FileWriter(csvFile, true));
+		}
+		System.out.printf("%-40s %-22s %14s %16s %14s%n", "Benchmark", "Params",
+				"ops/s", "units/s", "bytes/op");
+		for (Case c : cases) {
+			if (!c.name.contains(filter)) {
+				continue;
+			}
+			Result r = measure(c);
+			System.out.printf("%-40s %-22s %14.1f %12.4g %-3s %14.1f%n", c.name, c.params,
+					r.opsPerSecond, r.unitsPerSecond, c.unit, r.bytesPerOp);
+			if (csv != null) {
+				csv.println(c.name + "," + c.params + "," + r.opsPerSecond + ","
+						+ r.unitsPerSecond + "," + c.unit + "," + r.bytesPerOp);
+				csv.flush();
+			}
+		}
+		if (csv != null) {
+			csv.close();
+		}
+	}
+
+	/**
+	 * Set a case up for another harness to time, such as the JMH benchmarks,
+	 * which cannot name the classes of the default package themselves.
+	 *
+	 * @param name
+	 *            The name of the case, as printed, e.g. "Field.clear".
+	 * @param params
+	 *            Its parameters, as printed: the size of the field, then
+	 *            d=density and t=threads where the case has them, e.g.
+	 *            "400x400 d=0.5".
+	 * @return Runs the operation once and returns the work units done.
+	 */
+	public static LongSupplier operation(String name, String params) {
+		String[] parts = params.split(" ");
+		String[] size = parts[0].split("x");
+		int width = Integer.parseInt(size[0]);
+		int height = Integer.parseInt(size[1]);
+		double density = 0;
+		int threads = 0;
+		for (int i = 1; i < parts.length; i++) {
+			if (parts[i].startsWith("d=")) {
+				density = Double.parseDouble(parts[i].substring(2));
+			} else if (parts[i].startsWith("t=")) {
+				threads = Integer.parseInt(parts[i].substring(2));
+			} else {
+				throw new IllegalArgumentException("Unknown parameter " + parts[i]);
+			}
+		}
+
+		final Case c;
+		if (name.equals("SimulationEngine.simulateOneStep")) {
+			c = engineStep(width, height, 0);
+		} else if (name.equals("SimulationEngine.simulateOneStep(par)")) {
+			c = engineStep(width, height, threads > 0 ? threads
+					: Runtime.getRuntime().availableProcessors());
+		} else if (name.equals("EntityEngine.simulateOneStep")) {
+			c = entityEngineStep(width, height);
+		} else if (name.equals("EntityEngine.ageAndHunger")) {
+			c = ageAndHunger(width, height);
+		} else if (name.equals("Field.clear")) {
+			c = fieldClear(width, height);
+		} else if (name.equals("FieldStats.generateCounts")) {
+			c = generateCounts(width, height, density);
+		} else if (name.equals("Record save+load")) {
+			c = recordRoundTrip(width, height);
+		} else if (name.equals("Snapshot write+read")) {
+			c = snapshotRoundTrip(width, height);
+		} else if (name.equals("Field.adjacentLocations")) {
+			c = adjacentLocations(width, height, density);
+		} else if (name.equals("Field.freeAdjacentLocation")) {
+			c = freeAdjacentLocation(width, height, density);
+		} else if (name.equals("Field.freeAdjacentCell")) {
+			c = freeAdjacentCell(width, height, density);
+		} else {
+			throw new IllegalArgumentException("Unknown benchmark " + name);
+		}
+		c.setUp();
+		return new LongSupplier() {
+			public long getAsLong() {
+				return c.run();
+			}
+		};
+	}
+
+	/**
+	 * Warm a case up and measure it.
+	 */
+	static Result measure(Case c) {
+		c.setUp();
+		for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+			iteration(c);
+		}
+
+		long ops = 0;
+		long units = 0;
+		long nanos = 0;
+		long bytesBefore = allocatedBytes();
+		for (int i = 0; i < MEASURED_ITERATIONS; i++) {
+			long start = System.nanoTime();
+			long[] done = iteration(c);
+			nanos += System.nanoTime() - start;
+			ops += done[0];
+			units += done[1];
+		}
+		long bytes = allocatedBytes() - bytesBefore;
+
+		Result r = new Result();
+		r.opsPerSecond = ops / (nanos / 1e9);
+		r.unitsPerSecond = units / (nanos / 1e9);
+		r.bytesPerOp = bytes < 0 ? Double.NaN : (double) bytes / ops;
+		return r;
+	}
+
+	// Run the operation repeatedly for one iteration's worth of time.
+	private static long[] iteration(Case c) {
+		long end = System.nanoTime() + iterationMillis * 1000000L;
+		long ops = 0;
+		long units = 0;
+		do {
+			units += c.run();
+			ops++;
+		} while (System.nanoTime() < end);
+		return new long[] { ops, units };
+	}
+
+	// Bytes allocated so far by this thread, or -1 if the JVM cannot tell.
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	// A field of the given size with rabbits in roughly the given fraction of
+	// its cells.
+	static Field populatedField(int width, int height, double density) {
+		Random rand = new Random(42);
+		Field field = new Field(width, height);
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				if (rand.nextDouble() < density) {
+					Rabbit rabbit = new Rabbit(RABBIT, true, rand);
+					rabbit.setLocation(col, row);
+					field.put(rabbit, col, row);
+				}
+			}
+		}
+		return field;
+	}
+
+	static Case engineStep(final int width, final int height, final int threads) {
+		String name = threads == 0 ? "SimulationEngine.simulateOneStep"
+				: "SimulationEngine.simulateOneStep(par)";
+		return new Case(name, width + "x" + height + (threads == 0 ? "" : " t=" + threads),
+				"steps") {
+			SimulationEngine engine;
+
+			void setUp() {
+				engine = new SimulationEngine(width, height, 42);
+				engine.setParallelism(threads);
+			}
+
+			long run() {
+				if (!engine.isViable()) {
+					engine.reset();
+				}
+				engine.simulateOneStep();
+				return 1;
+			}
+		};
+	}
+
+	static Case entityEngineStep(final int width, final int height) {
+		return new Case("EntityEngine.simulateOneStep", width + "x" + height, "steps") {
+			EntityEngine engine;
+
+			void setUp() {
+				engine = new EntityEngine(width, height, 42);
+			}
+
+			long run() {
+				if (!engine.getStats().isViable()) {
+					engine.reset();
+				}
+				engine.simulateOneStep();
+				return 1;
+			}
+		};
+	}
+
+	// The bulk aging pass of an EntityEngine step on its own. The entities
+	// are never removed, so they just keep getting older and hungrier.
+	static Case ageAndHunger(final int width, final int height) {
+		return new Case("EntityEngine.ageAndHunger", width + "x" + height, "entities") {
+			EntityEngine engine;
+
+			void setUp() {
+				engine = new EntityEngine(width, height, 42);
+			}
+
+			long run() {
+				int n = engine.getStore().size();
+				engine.ageAndHunger(n);
+				return n;
+			}
+		};
+	}
+
+	static Case fieldClear(final int width, final int height) {
+		return new Case("Field.clear", width + "x" + height, "cells") {
+			Field field;
+
+			void setUp() {
+				field = new Field(width, height);
+			}
+
+			long run() {
+				field.clear();
+				return (long) width * height;
+			}
+		};
+	}
+
+	static Case generateCounts(final int width, final int height, final double density) {
+		return new Case("FieldStats.generateCounts", width + "x" + height + " d=" + density,
+				"cells") {
+			Field field;
+			FieldStats stats;
+
+			void setUp() {
+				field = populatedField(width, height, density);
+				stats = new FieldStats();
+			}
+
+			long run() {
+				stats.generateCounts(field);
+				sink += stats.getCount(Species.RABBIT);
+				return (long) width * height;
+			}
+		};
+	}
+
+	static Case recordRoundTrip(final int width, final int height) {
+		return new Case("Record save+load", width + "x" + height, "bytes") {
+			Record record;
+
+			void setUp() {
+				SimulationEngine engine = new SimulationEngine(width, height, 42);
+				record = new Record(engine.getAnimals().toList(), engine.getField(),
+						engine.getStep());
+			}
+
+			long run() {
+				try {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					ObjectOutputStream out = new ObjectOutputStream(bytes);
+					out.writeObject(record);
+					out.close();
+					ObjectInputStream in = new ObjectInputStream(
+							new ByteArrayInputStream(bytes.toByteArray()));
+					Record copy = (Record) in.readObject();
+					sink += copy.getSteps();
+					return bytes.size();
+				} catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	static Case snapshotRoundTrip(final int width, final int height) {
+		return new Case("Snapshot write+read", width + "x" + height, "bytes") {
+			SimulationEngine engine;
+			File file;
+
+			void setUp() {
+				engine = new SimulationEngine(width, height, 42);
+				try {
+					file = File.createTempFile("bench", ".snapshot");
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+				file.deleteOnExit();
+			}
+
+			long run() {
+				try {
+					Snapshot.write(file.getPath(), engine);
+					Snapshot copy = Snapshot.read(file.getPath());
+					sink += copy.getStep();
+					return file.length();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	// The neighbour queries are timed on a batch of random locations per op.
+	private static final int BATCH = 1024;
+
+	private static int[] randomCells(int width, int height) {
+		Random rand = new Random(7);
+		int[] cells = new int[BATCH * 2];
+		for (int i = 0; i < BATCH; i++) {
+			cells[2 * i] = rand.nextInt(width);
+			cells[2 * i + 1] = rand.nextInt(height);
+		}
+		return cells;
+	}
+
+	static Case adjacentLocations(final int width, final int height, final double density) {
+		return new Case("Field.adjacentLocations", width + "x" + height + " d=" + density, "calls") {
+			Field field;
+			int[] cells;
+			Random rand = new Random(1);
+
+			void setUp() {
+				field = populatedField(width, height, density);
+				cells = randomCells(width, height);
+			}
+
+			long run() {
+				for (int i = 0; i < BATCH; i++) {
+					sink += field.adjacentLocations(cells[2 * i], cells[2 * i + 1], rand).size();
+				}
+				return BATCH;
+			}
+		};
+	}
+
+	static Case freeAdjacentLocation(final int width, final int height, final double density) {
+		return new Case("Field.freeAdjacentLocation", width + "x" + height + " d=" + density, "calls") {
+			Field field;
+			int[] cells;
+			Random rand = new Random(1);
+
+			void setUp() {
+				field = populatedField(width, height, density);
+				cells = randomCells(width, height);
+			}
+
+			long run() {
+				for (int i = 0; i < BATCH; i++) {
+					Location free = field.freeAdjacentLocation(cells[2 * i], cells[2 * i + 1], rand);
+					sink += free == null ? 0 : free.getRow();
+				}
+				return BATCH;
+			}
+		};
+	}
+
+	static Case freeAdjacentCell(final int width, final int height, final double density) {
+		return new Case("Field.freeAdjacentCell", width + "x" + height + " d=" + density, "calls") {
+			Field field;
+			int[] cells;
+			Random rand = new SplitMix64Random(1);
+
+			void setUp() {
+				field = populatedField(width, height, density);
+				cells = randomCells(width, height);
+			}
+
+			long run() {
+				for (int i = 0; i < BATCH; i++) {
+					sink += field.freeAdjacentCell(cells[2 * i], cells[2 * i + 1], rand);
+				}
+				return BATCH;
+			}
+		};
+	}
+}
@@ -0,0 +1,572 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Seeded checks of the guarantees the engine makes: things that must come out
+ * the same however they are computed, and files that must read back as they
+ * were written. Each check prints PASS or FAIL with the reason, and the
+ * program exits with 1 if any failed.
+ *
+ * Usage: Checks [name filter]
+ */
+public class Checks {
+	private static final long SEED = 7;
+
+	// The species of the standard simulation, for copies of fields.
+	private static final SpeciesTable.Definition[] STANDARD = SpeciesTable.standard()
+			.defineAll();
+
+	// The failures of the check being run.
+	private static final List<String> failures = new ArrayList<String>();
+
+	public static void main(String[] args) throws Exception {
+		String filter = args.length > 0 ? args[0] : "";
+		int failed = 0;
+		if (run("parallel-thread-count", filter)) {
+			failed += report("parallel-thread-count", parallelThreadCount());
+		}
+		if (run("checkpoint-crash", filter)) {
+			failed += report("checkpoint-crash", checkpointCrash());
+		}
+		if (run("change-tracking", filter)) {
+			failed += report("change-tracking", changeTracking());
+		}
+		if (run("trajectory-round-trip", filter)) {
+			failed += report("trajectory-round-trip", trajectoryRoundTrip());
+		}
+		if (run("trajectory-gaps", filter)) {
+			failed += report("trajectory-gaps", trajectoryGaps());
+		}
+		if (run("snapshot-round-trip", filter)) {
+			failed += report("snapshot-round-trip", snapshotRoundTrip());
+		}
+		if (run("restore-species-table", filter)) {
+			failed += report("restore-species-table", restoreSpeciesTable());
+		}
+		if (run("line-of-sight", filter)) {
+			failed += report("line-of-sight", lineOfSight());
+		}
+		if (run("large-ages", filter)) {
+			failed += report("large-ages", largeAges());
+		}
+		if (run("entity-engine-matches", filter)) {
+			failed += report("entity-engine-matches", entityEngineMatches());
+		}
+		System.exit(failed == 0 ? 0 : 1);
+	}
+
+	private static boolean run(String name, String filter) {
+		failures.clear();
+		return name.contains(filter);
+	}
+
+	private static int report(String name, boolean passed) {
+		if (passed && failures.isEmpty()) {
+			System.out.println("PASS " + name);
+			return 0;
+		}
+		System.out.println("FAIL " + name);
+		for (String failure : failures) {
+			System.out.println("     " + failure);
+		}
+		return 1;
+	}
+
+	private static boolean check(boolean condition, String failure) {
+		if (!condition) {
+			failures.add(failure);
+		}
+		return condition;
+	}
+
+	private static boolean sameTable(SpeciesTable expected, SpeciesTable actual, String what) {
+		ByteBuffer a = ByteBuffer.allocate(SpeciesTable.BYTES);
+		ByteBuffer b = ByteBuffer.allocate(SpeciesTable.BYTES);
+		expected.write(a);
+		actual.write(b);
+		a.flip();
+		b.flip();
+		return check(a.equals(b), what + ": species tables differ");
+	}
+
+	// Compare the code, age and food level of every cell of two fields.
+	private static boolean sameCells(Field expected, Field actual, String what) {
+		if (!check(expected.getWidth() == actual.getWidth()
+				&& expected.getHeight() == actual.getHeight(), what + ": sizes differ")) {
+			return false;
+		}
+		for (int i = 0; i < expected.getWidth() * expected.getHeight(); i++) {
+			Object a = expected.getObjectAt(i);
+			Object b = actual.getObjectAt(i);
+			boolean same = Snapshot.cellCode(a) == Snapshot.cellCode(b);
+			if (same && a instanceof Animal) {
+				same = ((Animal) a).getAge() == ((Animal) b).getAge()
+						&& ((Animal) a).getFoodLevel() == ((Animal) b).getFoodLevel();
+			}
+			if (!check(same, what + ": cell " + i + " differs")) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// A copy of the cells of a field, so that they can be compared once the
+	// engine has moved on.
+	private static Field copyOf(Field field) {
+		Field copy = new Field(field.getWidth(), field.getHeight());
+		for (int i = 0; i < field.getWidth() * field.getHeight(); i++) {
+			Object obj = field.getObjectAt(i);
+			if (obj instanceof Animal) {
+				Animal animal = (Animal) obj;
+				copy.put(Snapshot.cellAnimal(STANDARD, Snapshot.cellCode(obj),
+						animal.getAge(), animal.getFoodLevel()), i);
+			}
+		}
+		return copy;
+	}
+
+	// A parallel step must give the same run whatever the number of threads,
+	// on a plain field and on a torus.
+	private static boolean parallelThreadCount() {
+		for (boolean wrap : new boolean[] { false, true }) {
+			Field expected = null;
+			for (int threads : new int[] { 1, 2, 3, 4 }) {
+				SimulationEngine engine = new SimulationEngine(120, 90, SEED, false, wrap, 0, 0);
+				engine.setParallelism(threads);
+				try {
+					engine.simulate(60);
+				} finally {
+					engine.setParallelism(0);
+				}
+				if (expected == null) {
+					expected = engine.getField();
+				} else if (!sameCells(expected, engine.getField(), (wrap ? "torus, " : "")
+						+ threads + " threads")) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A checkpointer that dies half way through writing its next image.
+	 */
+	private static class CrashingCheckpointer extends Checkpointer {
+		boolean crash;
+
+		CrashingCheckpointer(SimulationEngine engine, String file) throws IOException {
+			super(engine, file, 1);
+		}
+
+		@Override
+		void fillImage(ByteBuffer image, Field field) throws IOException {
+			if (!crash) {
+				super.fillImage(image, field);
+				return;
+			}
+			// Leave half the image written, as a run killed part way would.
+			for (int i = 0; i < field.getWidth() * field.getHeight() / 2; i++) {
+				image.put(i, (byte) 0x5A);
+			}
+			throw new IOException("simulated crash");
+		}
+	}
+
+	// A checkpoint whose next image is never finished must still load as the
+	// checkpoint before it.
+	private static boolean checkpointCrash() throws IOException {
+		File file = File.createTempFile("checkpoint", ".bin");
+		file.deleteOnExit();
+		new File(file.getPath() + ".tmp").deleteOnExit();
+
+		SimulationEngine engine = new SimulationEngine(80, 60, SEED);
+		CrashingCheckpointer checkpointer = new CrashingCheckpointer(engine, file.getPath());
+		try {
+			// An image, then a delta on top of it.
+			checkpointer.checkpoint();
+			engine.simulate(5);
+			checkpointer.checkpoint();
+			Field saved = copyOf(engine.getField());
+			int savedStep = engine.getStep();
+
+			// Going back to the start needs a new image, which is never finished.
+			engine.reset();
+			engine.simulate(2);
+			checkpointer.crash = true;
+			try {
+				checkpointer.checkpoint();
+				check(false, "the rewrite did not fail");
+			} catch (IOException e) {
+				// Expected.
+			}
+
+			Snapshot loaded = Checkpointer.load(file.getPath());
+			check(loaded.getStep() == savedStep, "loaded step " + loaded.getStep()
+					+ " instead of " + savedStep);
+			sameCells(saved, loaded.getField(), "after the crash");
+
+			// The next image can still be written.
+			checkpointer.crash = false;
+			checkpointer.checkpoint();
+			loaded = Checkpointer.load(file.getPath());
+			check(loaded.getStep() == engine.getStep(), "loaded step " + loaded.getStep()
+					+ " instead of " + engine.getStep());
+			return sameCells(engine.getField(), loaded.getField(), "after recovering");
+		} finally {
+			checkpointer.close();
+		}
+	}
+
+	// A copy of a field kept up to date from the blocks tracked as changed
+	// must always be the same as the field, whatever changed it.
+	private static boolean changeTracking() throws IOException {
+		SimulationEngine engine = new SimulationEngine(70, 50, SEED);
+		DirtyBlocks changes = new DirtyBlocks(0);
+		engine.trackChanges(changes);
+		byte[] copy = new byte[0];
+		for (int round = 0; round < 40; round++) {
+			if (round == 10) {
+				engine.setParallelism(3);
+			} else if (round == 20) {
+				Animal animal = engine.getAnimals().get(0);
+				engine.removeAnimalAt(new Location(animal.col, animal.row));
+			} else if (round == 25) {
+				engine.reset();
+			} else if (round == 30) {
+				SimulationEngine other = new SimulationEngine(40, 90, SEED);
+				File file = File.createTempFile("snapshot", ".bin");
+				file.deleteOnExit();
+				Snapshot.write(file.getPath(), other);
+				engine.restore(Snapshot.read(file.getPath()));
+			} else {
+				engine.simulateOneStep();
+			}
+
+			Field field = engine.getField();
+			int cells = field.getWidth() * field.getHeight();
+			if (!check(changes.cells() == cells, "round " + round + ": tracking "
+					+ changes.cells() + " cells of " + cells)) {
+				break;
+			}
+			if (copy.length != cells) {
+				copy = new byte[cells];
+			}
+			for (int n = 0; n < changes.count(); n++) {
+				int block = changes.changedBlock(n);
+				int first = changes.firstCell(block);
+				for (int i = first; i < first + changes.blockLength(block); i++) {
+					copy[i] = Species.of(field.getObjectAt(i));
+				}
+			}
+			changes.clear();
+			int wrong = 0;
+			while (wrong < cells && copy[wrong] == Species.of(field.getObjectAt(wrong))) {
+				wrong++;
+			}
+			if (!check(wrong == cells, "round " + round + ": cell " + wrong
+					+ " changed without being marked")) {
+				break;
+			}
+		}
+		engine.setParallelism(0);
+		engine.stopTracking(changes);
+		return true;
+	}
+
+	// Every step recorded from the changes the engine tracks must read back
+	// from the trajectory as it was.
+	private static boolean trajectoryRoundTrip() throws IOException {
+		File file = File.createTempFile("trajectory", ".bin");
+		file.deleteOnExit();
+		new File(TrajectoryRecorder.indexFile(file.getPath())).deleteOnExit();
+
+		final int steps = 2 * TrajectoryRecorder.CHUNK_STEPS + 10;
+		SimulationEngine engine = new SimulationEngine(60, 40, SEED);
+		final byte[][] expected = new byte[steps + 1][];
+		TrajectoryRecorder recorder = new TrajectoryRecorder(file.getPath(), 60, 40);
+		engine.addStepListener(recorder);
+		engine.addStepListener(new StepListener() {
+			public void stepCompleted(SimulationEngine e) {
+				byte[] cells = new byte[60 * 40];
+				for (int i = 0; i < cells.length; i++) {
+					cells[i] = Species.of(e.getField().getObjectAt(i));
+				}
+				expected[e.getStep()] = cells;
+			}
+		});
+		engine.simulate(steps);
+		recorder.close();
+
+		TrajectoryReader reader = new TrajectoryReader(file.getPath());
+		try {
+			for (int step = 1; step <= engine.getStep(); step += 7) {
+				TrajectoryReader.Frame frame = reader.seek(step);
+				int i = 0;
+				while (i < expected[step].length && expected[step][i] == frame.getSpecies(i)) {
+					i++;
+				}
+				if (!check(i == expected[step].length, "step " + step + ": cell " + i
+						+ " differs")) {
+					return false;
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return true;
+	}
+
+	// Steps recorded with gaps between them must each be found by seeking,
+	// and steps in the gaps must not.
+	private static boolean trajectoryGaps() throws IOException {
+		File file = File.createTempFile("trajectory", ".bin");
+		file.deleteOnExit();
+		new File(TrajectoryRecorder.indexFile(file.getPath())).deleteOnExit();
+
+		int[] recorded = { 1, 2, 3, 5, 10, 11, 20 };
+		SimulationEngine engine = new SimulationEngine(60, 40, SEED);
+		byte[][] expected = new byte[recorded.length][];
+		TrajectoryRecorder recorder = new TrajectoryRecorder(file.getPath(), 60, 40);
+		for (int n = 0; n < recorded.length; n++) {
+			engine.simulate(recorded[n] - engine.getStep());
+			recorder.record(engine.getStep(), engine.getField(), engine.getStats());
+			expected[n] = new byte[60 * 40];
+			for (int i = 0; i < expected[n].length; i++) {
+				expected[n][i] = Species.of(engine.getField().getObjectAt(i));
+			}
+		}
+		recorder.close();
+
+		TrajectoryReader reader = new TrajectoryReader(file.getPath());
+		try {
+			check(reader.getLastStep() == 20, "last step " + reader.getLastStep());
+			for (int n = 0; n < recorded.length; n++) {
+				TrajectoryReader.Frame frame = reader.seek(recorded[n]);
+				int i = 0;
+				while (i < expected[n].length && expected[n][i] == frame.getSpecies(i)) {
+					i++;
+				}
+				check(frame.getStep() == recorded[n] && i == expected[n].length, "step "
+						+ recorded[n] + ": found step " + frame.getStep() + ", cell " + i
+						+ " differs");
+			}
+			for (int step : new int[] { 4, 6, 9, 12, 19 }) {
+				try {
+					reader.seek(step);
+					check(false, "step " + step + " was found");
+				} catch (IOException e) {
+					// Expected.
+				}
+			}
+		} finally {
+			reader.close();
+		}
+		return true;
+	}
+
+	// A snapshot must read back as it was written, and the loaded run must
+	// carry on exactly as the saved one.
+	private static boolean snapshotRoundTrip() throws IOException {
+		File file = File.createTempFile("snapshot", ".bin");
+		file.deleteOnExit();
+
+		SimulationEngine engine = new SimulationEngine(80, 60, SEED);
+		engine.simulate(15);
+		Snapshot.write(file.getPath(), engine);
+		Snapshot snapshot = Snapshot.read(file.getPath());
+		check(snapshot.getStep() == engine.getStep(), "read step " + snapshot.getStep()
+				+ " instead of " + engine.getStep());
+		check(snapshot.getSeed() == engine.getSeed(), "read another seed");
+		check(snapshot.getGenerator() == engine.getGenerator(), "read another generator");
+		sameCells(engine.getField(), snapshot.getField(), "as read");
+		Population animals = engine.getAnimals();
+		if (check(snapshot.getAnimals().size() == animals.size(), "read "
+				+ snapshot.getAnimals().size() + " animals instead of " + animals.size())) {
+			for (int i = 0; i < animals.size(); i++) {
+				Animal a = animals.get(i);
+				Animal b = snapshot.getAnimals().get(i);
+				if (!check(a.col == b.col && a.row == b.row && a.getSpecies() == b.getSpecies(),
+						"animal " + i + " acts out of order")) {
+					break;
+				}
+			}
+		}
+
+		SimulationEngine loaded = new SimulationEngine(80, 60, SEED + 1);
+		loaded.restore(snapshot);
+		engine.simulate(25);
+		loaded.simulate(25);
+		return sameCells(engine.getField(), loaded.getField(), "25 steps after loading");
+	}
+
+	// A run with its own species table must carry on with it once loaded
+	// from a snapshot or a checkpoint.
+	private static boolean restoreSpeciesTable() throws IOException {
+		File snapshotFile = File.createTempFile("snapshot", ".bin");
+		File checkpointFile = File.createTempFile("checkpoint", ".bin");
+		snapshotFile.deleteOnExit();
+		checkpointFile.deleteOnExit();
+
+		SpeciesTable table = SpeciesTable.standard();
+		table.setBreeding(Species.RABBIT, 2, 12, 0.8, 3);
+		table.setStartingFood(Species.FOX, 9);
+		table.setFoodValue(Species.FOX, Species.RABBIT, 4);
+		SimulationEngine engine = new SimulationEngine(80, 60, SEED);
+		engine.setSpeciesTable(table);
+		engine.reset();
+		engine.simulate(10);
+		Snapshot.write(snapshotFile.getPath(), engine);
+		Checkpointer checkpointer = new Checkpointer(engine, checkpointFile.getPath(), 1);
+		try {
+			checkpointer.checkpoint();
+		} finally {
+			checkpointer.close();
+		}
+
+		SimulationEngine loaded = new SimulationEngine(80, 60, SEED + 1);
+		loaded.restore(Snapshot.read(snapshotFile.getPath()));
+		sameTable(table, loaded.getSpeciesTable(), "snapshot");
+		engine.simulate(20);
+		loaded.simulate(20);
+		sameCells(engine.getField(), loaded.getField(), "20 steps after the snapshot");
+
+		Snapshot checkpoint = Checkpointer.load(checkpointFile.getPath());
+		sameTable(table, checkpoint.getSpeciesTable(), "checkpoint");
+		for (Animal animal : checkpoint.getAnimals()) {
+			if (animal.getSpecies() == Species.RABBIT) {
+				return check(animal.kind.maxAge == 12, "checkpoint: a rabbit may live to "
+						+ animal.kind.maxAge);
+			}
+		}
+		return check(false, "checkpoint: no rabbits");
+	}
+
+	// The entity engine must run exactly as a sequential engine does with the
+	// same seed: the same counts after every step, and the same species, age
+	// and food level in every cell.
+	private static boolean entityEngineMatches() {
+		for (long seed = SEED; seed < SEED + 3; seed++) {
+			SimulationEngine engine = new SimulationEngine(80, 60, seed);
+			EntityEngine entities = new EntityEngine(80, 60, seed);
+			for (int step = 1; step <= 60; step++) {
+				engine.simulateOneStep();
+				entities.simulateOneStep();
+				for (byte species = 1; species < Species.COUNT; species++) {
+					if (!check(engine.getStats().getCount(species) == entities.getStats()
+							.getCount(species), "seed " + seed + ", step " + step + ": "
+							+ Species.nameOf(species) + " counts differ")) {
+						return false;
+					}
+				}
+			}
+			Field field = engine.getField();
+			PackedField packed = entities.getField();
+			for (int i = 0; i < field.getWidth() * field.getHeight(); i++) {
+				Object obj = field.getObjectAt(i);
+				boolean same = Species.of(obj) == packed.getSpecies(i);
+				if (same && obj instanceof Animal) {
+					same = ((Animal) obj).getAge() == packed.getAge(i)
+							&& ((Animal) obj).getFoodLevel() == packed.getFood(i);
+				}
+				if (!check(same, "seed " + seed + ": cell " + i + " differs after 60 steps")) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	// Looking along the lines of sight, which are kept up to date as animals
+	// move, must find what walking the cells one by one finds, step after
+	// step, on a plain field and along the rows and columns of a torus.
+	private static boolean lineOfSight() {
+		for (boolean wrap : new boolean[] { false, true }) {
+			SimulationEngine engine = new SimulationEngine(70, 50, SEED, false, wrap, 0, 0);
+			for (int step = 0; step < 6; step++) {
+				Field field = engine.getField();
+				for (int row = 0; row < 50; row++) {
+					for (int col = 0; col < 70; col++) {
+						for (int d = Field.MIN_DIRECTION; d <= Field.MAX_DIRECTION; d += wrap ? 2
+								: 1) {
+							int expected = walk(field, col, row, d);
+							if (!check(field.cellInDirection(col, row, d) == expected,
+									(wrap ? "torus, " : "") + "step " + step + ": looking "
+											+ d + " from " + col + "," + row)) {
+								return false;
+							}
+						}
+					}
+				}
+				engine.simulateOneStep();
+			}
+		}
+		return true;
+	}
+
+	// The nearest occupied cell in a direction, found cell by cell.
+	private static int walk(Field field, int col, int row, int direction) {
+		int c = col;
+		int r = row;
+		while (true) {
+			int cell = field.cellAt(c + Field.COLUMN_OFFSETS[direction],
+					r + Field.ROW_OFFSETS[direction]);
+			if (cell == Field.NO_CELL) {
+				return Field.NO_CELL;
+			}
+			c = field.getCol(cell);
+			r = field.getRow(cell);
+			if (c == col && r == row) {
+				return Field.NO_CELL;
+			}
+			if (field.getObjectAt(cell) != null) {
+				return cell;
+			}
+		}
+	}
+
+	// Ages and food levels that do not fit in a short must come back from a
+	// checkpoint, through both its image and its log, and from a snapshot.
+	private static boolean largeAges() throws IOException {
+		File checkpointFile = File.createTempFile("checkpoint", ".bin");
+		File snapshotFile = File.createTempFile("snapshot", ".bin");
+		checkpointFile.deleteOnExit();
+		snapshotFile.deleteOnExit();
+
+		SpeciesTable table = SpeciesTable.standard();
+		table.setBreeding(Species.RABBIT, 3, 100000, 0.6, 5);
+		table.setBreeding(Species.FOX, 3, 100000, 0.21, 11);
+		SimulationEngine engine = new SimulationEngine(60, 40, SEED, table);
+		Population animals = engine.getAnimals();
+		for (int i = 0; i < animals.size(); i++) {
+			animals.get(i).setAge(40000 + i);
+			animals.get(i).setFoodLevel(50000 + i);
+		}
+		Checkpointer checkpointer = new Checkpointer(engine, checkpointFile.getPath(), 1);
+		try {
+			checkpointer.checkpoint();
+			sameCells(engine.getField(), Checkpointer.load(checkpointFile.getPath()).getField(),
+					"checkpoint image");
+			engine.simulate(3);
+			checkpointer.checkpoint();
+			sameCells(engine.getField(), Checkpointer.load(checkpointFile.getPath()).getField(),
+					"checkpoint log");
+		} finally {
+			checkpointer.close();
+		}
+		Snapshot.write(snapshotFile.getPath(), engine);
+		Field loaded = Snapshot.read(snapshotFile.getPath()).getField();
+		sameCells(engine.getField(), loaded, "snapshot");
+		for (int i = 0; i < loaded.getWidth() * loaded.getHeight(); i++) {
+			Object obj = loaded.getObjectAt(i);
+			if (obj instanceof Animal && ((Animal) obj).getAge() > Short.MAX_VALUE
+					&& ((Animal) obj).getFoodLevel() > Short.MAX_VALUE) {
+				return true;
+			}
+		}
+		return check(false, "snapshot: no animal is older or better fed than a short holds");
+	}
+}
@@ -0,0 +1,231 @@
+package jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The cases of bench/Benchmarks.java run under JMH, which forks a fresh JVM
+ * for each, feeds the results to a Blackhole and reports error bars. Add
+ * -prof gc to see the bytes allocated per operation.
+ *
+ * JMH will not generate benchmarks in the default package, where all the
+ * classes of the simulation are, so each case is set up by
+ * Benchmarks.operation and reached through a LongSupplier. Each operation
+ * returns the work units it did (steps, cells or calls), which JMH consumes.
+ *
+ * Usage: mvn package, then java -jar target/benchmarks.jar [regexp]
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class SimulationBenchmarks {
+	/**
+	 * The state of one case: the operation, set up once per trial.
+	 */
+	abstract static class Operation {
+		LongSupplier operation;
+
+		void setUp(String name, String params) {
+			try {
+				operation = (LongSupplier) Class.forName("Benchmarks")
+						.getMethod("operation", String.class, String.class)
+						.invoke(null, name, params);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("Cannot set up " + name + " " + params, e);
+			}
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class EngineStep extends Operation {
+		@Param({ "80x60", "400x400", "1000x1000" })
+		public String size;
+
+		@Setup
+		public void setUp() {
+			setUp("SimulationEngine.simulateOneStep", size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ParallelEngineStep extends Operation {
+		@Param({ "80x60", "400x400", "1000x1000" })
+		public String size;
+
+		@Setup
+		public void setUp() {
+			setUp("SimulationEngine.simulateOneStep(par)", size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class EntityEngineStep extends Operation {
+		@Param({ "80x60", "400x400", "1000x1000" })
+		public String size;
+
+		@Setup
+		public void setUp() {
+			setUp("EntityEngine.simulateOneStep", size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AgeAndHunger extends Operation {
+		@Param({ "80x60", "400x400", "1000x1000" })
+		public String size;
+
+		@Setup
+		public void setUp() {
+			setUp("EntityEngine.ageAndHunger", size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class FieldClear extends Operation {
+		@Param({ "80x60", "400x400", "1000x1000" })
+		public String size;
+
+		@Setup
+		public void setUp() {
+			setUp("Field.clear", size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class GenerateCounts extends Operation {
+		@Param({ "80x60", "400x400", "1000x1000" })
+		public String size;
+
+		@Param({ "0.1", "0.5", "0.9" })
+		public String density;
+
+		@Setup
+		public void setUp() {
+			setUp("FieldStats.generateCounts", size + " d=" + density);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class RecordRoundTrip extends Operation {
+		@Param({ "80x60", "400x400", "1000x1000" })
+		public String size;
+
+		@Setup
+		public void setUp() {
+			setUp("Record save+load", size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class SnapshotRoundTrip extends Operation {
+		@Param({ "80x60", "400x400", "1000x1000" })
+		public String size;
+
+		@Setup
+		public void setUp() {
+			setUp("Snapshot write+read", size);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class AdjacentLocations extends Operation {
+		@Param({ "0.1", "0.5", "0.9" })
+		public String density;
+
+		@Setup
+		public void setUp() {
+			setUp("Field.adjacentLocations", "400x400 d=" + density);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class FreeAdjacentLocation extends Operation {
+		@Param({ "0.1", "0.5", "0.9" })
+		public String density;
+
+		@Setup
+		public void setUp() {
+			setUp("Field.freeAdjacentLocation", "400x400 d=" + density);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class FreeAdjacentCell extends Operation {
+		@Param({ "0.1", "0.5", "0.9" })
+		public String density;
+
+		@Setup
+		public void setUp() {
+			setUp("Field.freeAdjacentCell", "400x400 d=" + density);
+		}
+	}
+
+	@Benchmark
+	public long simulationEngineStep(EngineStep state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long simulationEngineParallelStep(ParallelEngineStep state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long entityEngineStep(EntityEngineStep state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long ageAndHunger(AgeAndHunger state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long fieldClear(FieldClear state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long generateCounts(GenerateCounts state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long recordRoundTrip(RecordRoundTrip state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long snapshotRoundTrip(SnapshotRoundTrip state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long adjacentLocations(AdjacentLocations state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long freeAdjacentLocation(FreeAdjacentLocation state) {
+		return state.operation.getAsLong();
+	}
+
+	@Benchmark
+	public long freeAdjacentCell(FreeAdjacentCell state) {
+		return state.operation.getAsLong();
+	}
+}
@@ -1,55 +1,261 @@
 import java.io.Serializable;
 import java.util.List;
+import java.util.Random;
 
-public abstract class Animal implements Serializable {
-    protected int BREEDING_AGE;
-    protected int MAX_AGE;
-    protected double BREEDING_PROBABILITY; //0.06
+/**
+ * An animal of any species. What it does is decided by its species'
+ * {@link SpeciesTable.Definition}, which all animals of the species share:
+ * every animal ages and breeds, and hunters also get hungry and eat the
+ * species in their diet. A new species therefore needs no class of its own.
+ */
+public class Animal implements Serializable {
+    // The species of the animal and its parameters.
+    protected final SpeciesTable.Definition kind;
     protected int age;
     protected boolean alive;
-    protected int MAX_LITTER_SIZE;
-    protected Location location;
+    // Whether the animal died by being eaten.
+    protected boolean eaten;
+    // The food level of a hunter, which is increased by eating.
+    protected int foodLevel;
+    // Where the animal is. Kept as plain ints so that moving does not allocate.
+    protected int col;
+    protected int row;
+    // Where the animal is kept in its Population, or -1 if it is in none.
+    transient int slot = -1;
     
-    public Animal(int BREEDING_AGE, int MAX_AGE, double BREEDING_PROBABILITY, int MAX_LITTER_SIZE){
-        this.BREEDING_AGE = BREEDING_AGE;
-        this.BREEDING_PROBABILITY = BREEDING_PROBABILITY;
-        this.MAX_AGE = MAX_AGE;
-        this.MAX_LITTER_SIZE = MAX_LITTER_SIZE;
-        age = 0;
+    /**
+     * Create an animal.
+     * @param kind The species of the animal.
+     * @param startWithRandomAge Whether to give it a random age and food level, as at a reset;
+     * otherwise it is newborn and full.
+     * @param rand The random numbers to use if startWithRandomAge is true.
+     */
+    public Animal(SpeciesTable.Definition kind, boolean startWithRandomAge, Random rand) {
+        this.kind = kind;
         alive = true;
+        if (startWithRandomAge) {
+            age = rand.nextInt(kind.maxAge);
+            if (kind.isHunter()) {
+                foodLevel = rand.nextInt(kind.startingFood);
+            }
+        } else {
+            foodLevel = kind.startingFood;
+        }
+    }
+
+    /**
+     * Create an animal of the class named after its species, or a plain
+     * Animal for a species without one.
+     * @param kind The species of the animal.
+     * @param startWithRandomAge Whether to give it a random age and food level.
+     * @param rand The random numbers to use if startWithRandomAge is true.
+     * @return The new animal.
+     */
+    static Animal create(SpeciesTable.Definition kind, boolean startWithRandomAge, Random rand) {
+        switch (kind.species) {
+        case Species.FOX:
+            return new Fox(kind, startWithRandomAge, rand);
+        case Species.RABBIT:
+            return new Rabbit(kind, startWithRandomAge, rand);
+        case Species.SHREK:
+            return new Shrek(kind, startWithRandomAge, rand);
+        default:
+            return new Animal(kind, startWithRandomAge, rand);
+        }
     }
 
     protected void incrementAge() {
         age++;
-        if(age > MAX_AGE) {
+        if(age > kind.maxAge) {
             alive = false;
         }
     }
 
-    protected int breed() {
+    protected void incrementHunger() {
+        foodLevel--;
+        if (foodLevel <= 0) {
+            alive = false;
+        }
+    }
+
+    protected int breed(Random rand) {
         int births = 0;
-        if(canBreed() && Math.random() <= BREEDING_PROBABILITY) {
-            births = (int)(Math.random()*MAX_LITTER_SIZE) + 1;
+        if(canBreed() && rand.nextDouble() <= kind.breedingProbability) {
+            births = rand.nextInt(kind.maxLitterSize) + 1;
         }
         return births;
     }
 
     protected boolean canBreed() {
-        return age >= BREEDING_AGE;
+        return age >= kind.breedingAge;
     }
 
     protected boolean isAlive() {
         return alive;
     }
 
-    protected void setLocation(int row, int col) {
-        this.location = new Location(row, col);
+    public void setEaten() {
+        alive = false;
+        eaten = true;
+    }
+
+    protected boolean wasEaten() {
+        return eaten;
+    }
+
+    protected void setLocation(int col, int row) {
+        this.col = col;
+        this.row = row;
     }
 
     protected void setLocation(Location location) {
-        this.location = location;
+        setLocation(location.getCol(), location.getRow());
+    }
+
+    /**
+     * Move the animal to the location with the given index in a field.
+     */
+    protected void setLocation(Field field, int index) {
+        setLocation(field.getCol(index), field.getRow(index));
+    }
+
+    public Location getLocation() {
+        return new Location(col, row);
     }
 
-    public abstract void act(Field currentField, Field updatedField, List<Animal> newAnimals);
+    protected int getAge() {
+        return age;
+    }
+
+    /**
+     * Eat one of the live animals of the given species next to this one, all
+     * of them being equally likely to be picked. The neighbours are found
+     * with {@link Field#neighbours(byte, int, int)}, so the search costs a
+     * few word reads however many of them are empty.
+     * @param field The field this animal is on.
+     * @param prey The species codes that this animal eats.
+     * @param rand The random numbers to pick with, used only when there is a choice.
+     * @return The index of the eaten animal's cell, or Field.NO_CELL if there was nothing to eat.
+     */
+    protected int eatNeighbour(Field field, byte[] prey, Random rand) {
+        int found = 0;
+        for (int i = 0; i < prey.length; i++) {
+            found |= field.neighbours(prey[i], col, row);
+        }
+        // Animals eaten earlier in the step are still on the field.
+        int live = 0;
+        for (int m = found; m != 0; m &= m - 1) {
+            int d = Integer.numberOfTrailingZeros(m);
+            Animal animal = (Animal) field.getObjectAt(
+                    field.cellAt(col + Field.COLUMN_OFFSETS[d], row + Field.ROW_OFFSETS[d]));
+            if (animal.isAlive()) {
+                live |= 1 << d;
+            }
+        }
+        if (live == 0) {
+            return Field.NO_CELL;
+        }
+        int count = Integer.bitCount(live);
+        for (int pick = count == 1 ? 0 : rand.nextInt(count); pick > 0; pick--) {
+            live &= live - 1;
+        }
+        int d = Integer.numberOfTrailingZeros(live);
+        int cell = field.cellAt(col + Field.COLUMN_OFFSETS[d], row + Field.ROW_OFFSETS[d]);
+        ((Animal) field.getObjectAt(cell)).setEaten();
+        return cell;
+    }
+
+    /**
+     * Eat a neighbour that is in this animal's diet, if there is one, and
+     * take the food value of the species eaten.
+     * @return The index of the eaten animal's cell, or Field.NO_CELL if there was nothing to eat.
+     */
+    private int findFood(Field field, Random rand) {
+        int cell = eatNeighbour(field, kind.prey, rand);
+        if (cell != Field.NO_CELL) {
+            foodLevel = kind.foodValue[((Animal) field.getObjectAt(cell)).getSpecies()];
+        }
+        return cell;
+    }
+
+    protected void setAge(int age) {
+        this.age = age;
+    }
+
+    /**
+     * @return The food level of the animal, or 0 if it does not get hungry.
+     */
+    protected int getFoodLevel() {
+        return foodLevel;
+    }
+
+    /**
+     * Set the food level of the animal. Animals that do not get hungry ignore it.
+     */
+    public void setFoodLevel(int foodLevel) {
+        if (kind.isHunter()) {
+            this.foodLevel = foodLevel;
+        }
+    }
+
+    /**
+     * @return The code of this animal's species, one of the {@link Species} constants.
+     */
+    public byte getSpecies() {
+        return kind.species;
+    }
+
+    /**
+     * @return The species of the animal and its parameters.
+     */
+    public SpeciesTable.Definition getKind() {
+        return kind;
+    }
+
+    /**
+     * Make this animal act for one step: age, breed and move from currentField
+     * into updatedField. Any animals born are added to newAnimals.
+     * All randomness must come from rand, so that a step can be repeated.
+     */
+    public void act(Field currentField, Field updatedField, List<Animal> newAnimals, Random rand) {
+        incrementAge();
+        if (kind.isHunter()) {
+            incrementHunger();
+        }
+        if (alive) {
+            // The young are born into free adjacent locations, as full as their
+            // parent. Nothing in updatedField is ever replaced: a cell belongs
+            // to whoever claims it first, and when there is no room left the
+            // rest of the litter is not born.
+            int births = breed(rand);
+            for (int b = 0; b < births; b++) {
+                int cell = updatedField.freeAdjacentCell(col, row, rand);
+                if (cell == Field.NO_CELL) {
+                    break;
+                }
+                Animal young = create(kind, false, rand);
+                young.foodLevel = foodLevel;
+                newAnimals.add(young);
+                young.setLocation(updatedField, cell);
+                updatedField.put(young, cell);
+            }
+            // Hunters move towards the source of food if found, others move randomly.
+            int newCell = kind.isHunter() ? findFood(currentField, rand) : Field.NO_CELL;
+            if (newCell != Field.NO_CELL && updatedField.getObjectAt(newCell) != null) {
+                // Something has already moved into the prey's cell.
+                newCell = Field.NO_CELL;
+            }
+            if (newCell == Field.NO_CELL) {
+                newCell = updatedField.freeAdjacentCell(col, row, rand);
+            }
+            if (newCell != Field.NO_CELL) {
+                setLocation(updatedField, newCell);
+                updatedField.put(this, newCell);
+            } else {
+                // can neither move nor stay - overcrowding - all locations taken
+                alive = false;
+            }
+        }
+    }
 
 }
@@ -0,0 +1,443 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * Saves the state of a long run to a checkpoint file every so many steps.
+ * The file starts with a full image of the field, which is memory-mapped,
+ * followed by a log of deltas. Between full images only
+ * the blocks of cells that have changed since the last checkpoint (as
+ * recorded by a {@link DirtyBlocks} the engine keeps up to date) are appended, so
+ * a checkpoint costs I/O in proportion to how much the field has changed
+ * rather than to its size. Once the log has grown as big as the image, the
+ * next checkpoint writes a new image and starts an empty log.
+ *
+ * The file layout (all numbers big-endian) is:
+ *
+ * <pre>
+ * int   MAGIC
+ * int   VERSION
+ * int   width, height
+ * long  seed
+ * int   generator (ordinal of RandomStreams.Generator)
+ * int   step of the image
+ * long  end of the committed part of the file
+ * ...   the species table the animals were made with (see SpeciesTable)
+ * byte  code of every cell (see Snapshot), row by row
+ * int   age of every cell
+ * int   food level of every cell
+ * then any number of deltas, each:
+ *   int step, int number of blocks
+ *   for each block: int block, then the codes, ages and food levels of its cells
+ * </pre>
+ *
+ * A delta only counts once the end in the header has been moved past it. A
+ * new image is written to a temporary file next to the checkpoint and only
+ * renamed over it once it is complete and on disk. Either way, a run that
+ * dies while writing a checkpoint can still be loaded from the one before.
+ * The order in which the animals act is not saved; a loaded run has them act
+ * in row-major order. Files of version 1 have 64 bytes of header and no
+ * species table; their animals get the standard parameters. Files of versions
+ * 1 and 2 hold ages and food levels as shorts, and those of version 2 a
+ * table without placement priorities.
+ */
+public class Checkpointer implements StepListener {
+	/** The first four bytes of every checkpoint file: "FRCK" */
+	public static final int MAGIC = 0x4652434B;
+
+	/** The version of the format written by this class */
+	public static final int VERSION = 3;
+
+	// Where the values that change are kept in the header.
+	private static final int IMAGE_STEP_OFFSET = 28;
+	private static final int END_OFFSET = 32;
+
+	private static final int TABLE_OFFSET = 40;
+	private static final int HEADER_BYTES = TABLE_OFFSET + SpeciesTable.BYTES;
+
+	// The size of the header of version 1, which had no table, and of
+	// version 2, whose table had no placement priorities.
+	private static final int V1_HEADER_BYTES = 64;
+	private static final int V2_HEADER_BYTES = TABLE_OFFSET
+			+ SpeciesTable.BYTES_WITHOUT_PRIORITIES;
+
+	// Each cell takes a code byte, an int age and an int food level.
+	private static final int BYTES_PER_CELL = 9;
+
+	// Versions 1 and 2 saved the age and food level as shorts.
+	private static final int SHORT_BYTES_PER_CELL = 5;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	private final SimulationEngine engine;
+	private final int interval;
+	// The blocks changed since the last checkpoint.
+	private final DirtyBlocks changes;
+	private final Path path;
+	private FileChannel channel;
+
+	// The header and the image, mapped into memory.
+	private MappedByteBuffer image;
+
+	// Used to gather deltas before they are appended.
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+	// What the current image was saved from.
+	private int width, height;
+	private long seed;
+	private RandomStreams.Generator generator;
+	private SpeciesTable table;
+	private int lastStep = -1;
+
+	// Where the log starts and where the committed part of the file ends.
+	private long logStart;
+	private long end;
+
+	/**
+	 * Save checkpoints of an engine. Changes to the engine's field are
+	 * recorded from now on.
+	 *
+	 * @param engine
+	 *            The engine to save.
+	 * @param file
+	 *            The checkpoint file. Anything already in it is replaced at
+	 *            the first checkpoint.
+	 * @param interval
+	 *            How many steps apart checkpoints are taken when this is used
+	 *            as a {@link StepListener}.
+	 * @throws IOException
+	 *             If the file cannot be opened.
+	 */
+	public Checkpointer(SimulationEngine engine, String file, int interval) throws IOException {
+		if (interval <= 0) {
+			throw new IllegalArgumentException("interval must be positive: " + interval);
+		}
+		this.engine = engine;
+		this.interval = interval;
+		path = Paths.get(file);
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		Field field = engine.getField();
+		changes = new DirtyBlocks(field.getWidth() * field.getHeight());
+		engine.trackChanges(changes);
+	}
+
+	/**
+	 * Take a checkpoint every interval steps.
+	 */
+	public void stepCompleted(SimulationEngine e) {
+		if (e.getStep() % interval == 0) {
+			try {
+				checkpoint();
+			} catch (IOException ex) {
+				System.out.println("Could not save a checkpoint: " + ex.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Save the current state of the engine, as a delta if possible.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public void checkpoint() throws IOException {
+		Field field = engine.getField();
+		long imageBytes = logStart - HEADER_BYTES;
+		long deltaBytes = 8 + (long) changes.count()
+				* (4 + DirtyBlocks.BLOCK_SIZE * BYTES_PER_CELL);
+		if (image == null || field.getWidth() != width || field.getHeight() != height
+				|| engine.getSeed() != seed || engine.getGenerator() != generator
+				|| engine.getRunningTable() != table
+				|| engine.getStep() < lastStep || end - logStart + deltaBytes > imageBytes) {
+			writeImage(field);
+		} else {
+			appendDelta(field);
+		}
+		changes.clear();
+		lastStep = engine.getStep();
+	}
+
+	// Write the whole field as a new image with an empty log. The image goes
+	// into a temporary file, which replaces the checkpoint file only once it
+	// is complete, so the last checkpoint stays readable until then.
+	private void writeImage(Field field) throws IOException {
+		int newWidth = field.getWidth();
+		int newHeight = field.getHeight();
+		int cells = newWidth * newHeight;
+		long newLogStart = HEADER_BYTES + (long) cells * BYTES_PER_CELL;
+		if (newLogStart > Integer.MAX_VALUE) {
+			throw new IOException("Field of " + cells + " cells is too big to map");
+		}
+
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		FileChannel next = FileChannel.open(temp, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		MappedByteBuffer nextImage;
+		try {
+			nextImage = next.map(FileChannel.MapMode.READ_WRITE, 0, newLogStart);
+			fillImage(nextImage, field);
+			nextImage.putInt(0, MAGIC);
+			nextImage.putInt(4, VERSION);
+			nextImage.putInt(8, newWidth);
+			nextImage.putInt(12, newHeight);
+			nextImage.putLong(16, engine.getSeed());
+			nextImage.putInt(24, engine.getGenerator().ordinal());
+			nextImage.putInt(IMAGE_STEP_OFFSET, engine.getStep());
+			nextImage.putLong(END_OFFSET, newLogStart);
+			nextImage.position(TABLE_OFFSET);
+			engine.getRunningTable().write(nextImage);
+			nextImage.force();
+			next.force(true);
+		} catch (IOException e) {
+			next.close();
+			throw e;
+		} catch (RuntimeException e) {
+			next.close();
+			throw e;
+		}
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		syncDirectory();
+
+		channel.close();
+		channel = next;
+		image = nextImage;
+		width = newWidth;
+		height = newHeight;
+		seed = engine.getSeed();
+		generator = engine.getGenerator();
+		table = engine.getRunningTable();
+		logStart = newLogStart;
+		end = newLogStart;
+	}
+
+	/**
+	 * Write the code, age and food level of every cell of a field into an
+	 * image, after the header.
+	 *
+	 * @param image
+	 *            The mapped image.
+	 * @param field
+	 *            The field to save.
+	 * @throws IOException
+	 *             If the image cannot be written.
+	 */
+	void fillImage(ByteBuffer image, Field field) throws IOException {
+		int cells = field.getWidth() * field.getHeight();
+		int ages = HEADER_BYTES + cells;
+		int foods = ages + 4 * cells;
+		for (int i = 0; i < cells; i++) {
+			Object obj = field.getObjectAt(i);
+			image.put(HEADER_BYTES + i, Snapshot.cellCode(obj));
+			if (obj instanceof Animal) {
+				Animal animal = (Animal) obj;
+				image.putInt(ages + 4 * i, animal.getAge());
+				image.putInt(foods + 4 * i, animal.getFoodLevel());
+			} else {
+				image.putInt(ages + 4 * i, 0);
+				image.putInt(foods + 4 * i, 0);
+			}
+		}
+	}
+
+	// Make the rename of a new image survive a crash of the machine as well.
+	// Not every platform can open a directory, so this is only attempted.
+	private void syncDirectory() {
+		Path directory = path.toAbsolutePath().getParent();
+		try {
+			FileChannel dir = FileChannel.open(directory, StandardOpenOption.READ);
+			try {
+				dir.force(true);
+			} finally {
+				dir.close();
+			}
+		} catch (IOException e) {
+			// The rename is still atomic for the process.
+		}
+	}
+
+	// Append the blocks that have changed to the log.
+	private void appendDelta(Field field) throws IOException {
+		long position = end;
+		buffer.clear();
+		buffer.putInt(engine.getStep());
+		buffer.putInt(changes.count());
+		for (int n = 0; n < changes.count(); n++) {
+			int b = changes.changedBlock(n);
+			int first = changes.firstCell(b);
+			int length = changes.blockLength(b);
+			if (buffer.remaining() < 4 + length * BYTES_PER_CELL) {
+				position = drain(position);
+			}
+			buffer.putInt(b);
+			for (int i = first; i < first + length; i++) {
+				buffer.put(Snapshot.cellCode(field.getObjectAt(i)));
+			}
+			for (int i = first; i < first + length; i++) {
+				Object obj = field.getObjectAt(i);
+				buffer.putInt(obj instanceof Animal ? ((Animal) obj).getAge() : 0);
+			}
+			for (int i = first; i < first + length; i++) {
+				Object obj = field.getObjectAt(i);
+				buffer.putInt(obj instanceof Animal ? ((Animal) obj).getFoodLevel() : 0);
+			}
+		}
+		position = drain(position);
+		channel.force(false);
+		commit(position);
+	}
+
+	// Write out what is in the buffer at the given position of the file.
+	private long drain(long position) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		buffer.clear();
+		return position;
+	}
+
+	// Move the end of the committed part of the file.
+	private void commit(long newEnd) {
+		image.putLong(END_OFFSET, newEnd);
+		image.force();
+		end = newEnd;
+	}
+
+	/**
+	 * @return The number of bytes in the committed part of the file.
+	 */
+	public long getSize() {
+		return end;
+	}
+
+	/**
+	 * Stop saving checkpoints and close the file.
+	 *
+	 * @throws IOException
+	 *             If the file cannot be closed.
+	 */
+	public void close() throws IOException {
+		engine.removeStepListener(this);
+		engine.stopTracking(changes);
+		channel.close();
+		image = null;
+	}
+
+	/**
+	 * Read the last checkpoint saved in a file.
+	 *
+	 * @param file
+	 *            The checkpoint file.
+	 * @return The saved state, with the animals in row-major order.
+	 * @throws IOException
+	 *             If the file cannot be read or holds no complete checkpoint.
+	 */
+	public static Snapshot load(String file) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		try {
+			if (channel.size() < V1_HEADER_BYTES) {
+				throw new EOFException(file + " holds no checkpoint");
+			}
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(channel.size(), HEADER_BYTES));
+			if (header.getInt(0) != MAGIC) {
+				throw new IOException(file + " is not a checkpoint");
+			}
+			int version = header.getInt(4);
+			if (version < 1 || version > VERSION) {
+				throw new IOException(file + " has unsupported checkpoint version " + version);
+			}
+			int headerBytes = version == 1 ? V1_HEADER_BYTES
+					: version == 2 ? V2_HEADER_BYTES : HEADER_BYTES;
+			if (header.capacity() < headerBytes) {
+				throw new EOFException(file + " holds no checkpoint");
+			}
+			SpeciesTable table = SpeciesTable.standard();
+			if (version >= 2) {
+				header.position(TABLE_OFFSET);
+				table = SpeciesTable.read(header, version >= 3);
+			}
+			SpeciesTable.Definition[] kinds = table.defineAll();
+			int width = header.getInt(8);
+			int height = header.getInt(12);
+			long seed = header.getLong(16);
+			RandomStreams.Generator generator = Snapshot.generator(file, header.getInt(24));
+			long committed = header.getLong(END_OFFSET);
+			int step = header.getInt(IMAGE_STEP_OFFSET);
+			int cells = width * height;
+			boolean shorts = version < 3;
+			long logStart = headerBytes
+					+ (long) cells * (shorts ? SHORT_BYTES_PER_CELL : BYTES_PER_CELL);
+			if (committed < logStart || committed > channel.size()) {
+				throw new IOException(file + " holds no complete checkpoint");
+			}
+
+			// Start from the image...
+			byte[] codes = new byte[cells];
+			int[] ages = new int[cells];
+			int[] foods = new int[cells];
+			MappedByteBuffer image = channel.map(FileChannel.MapMode.READ_ONLY, headerBytes,
+					logStart - headerBytes);
+			image.get(codes);
+			for (int i = 0; i < cells; i++) {
+				ages[i] = getNumber(image, shorts);
+			}
+			for (int i = 0; i < cells; i++) {
+				foods[i] = getNumber(image, shorts);
+			}
+
+			// ...then replay the deltas over it.
+			if (committed > logStart) {
+				MappedByteBuffer log = channel.map(FileChannel.MapMode.READ_ONLY, logStart,
+						committed - logStart);
+				while (log.hasRemaining()) {
+					step = log.getInt();
+					int blocks = log.getInt();
+					for (int n = 0; n < blocks; n++) {
+						int first = log.getInt() << DirtyBlocks.BLOCK_SHIFT;
+						int length = Math.min(DirtyBlocks.BLOCK_SIZE, cells - first);
+						log.get(codes, first, length);
+						for (int i = first; i < first + length; i++) {
+							ages[i] = getNumber(log, shorts);
+						}
+						for (int i = first; i < first + length; i++) {
+							foods[i] = getNumber(log, shorts);
+						}
+					}
+				}
+			}
+
+			Field field = new Field(width, height);
+			ArrayList<Animal> animals = new ArrayList<Animal>();
+			for (int i = 0; i < cells; i++) {
+				if (codes[i] != Species.EMPTY) {
+					Animal animal = Snapshot.cellAnimal(kinds, codes[i], ages[i], foods[i]);
+					animal.setLocation(field, i);
+					field.put(animal, i);
+					if (animal.isAlive()) {
+						animals.add(animal);
+					}
+				}
+			}
+			return new Snapshot(field, animals, step, seed, generator, table, kinds);
+		} finally {
+			channel.close();
+		}
+	}
+
+	// Read an age or food level, saved as a short by versions before 3.
+	private static int getNumber(ByteBuffer buffer, boolean shorts) {
+		return shorts ? buffer.getShort() : buffer.getInt();
+	}
+}
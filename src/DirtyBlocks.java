@@ -0,0 +1,175 @@
+import java.util.Arrays;
+
+/**
+ * Remembers which parts of a field have changed since it was last cleared.
+ * The cells of a field are grouped, in row-major order, into blocks of
+ * {@link #BLOCK_SIZE} cells, and a block is marked as soon as any of its
+ * cells is written. Marking a block that is already marked is a single read,
+ * so it is cheap enough to be done on every {@link Field#put(Object, int)},
+ * and tiles run in parallel by {@link ParallelStep} can mark blocks at the
+ * same time. The blocks marked are also kept in a list, so that going
+ * through them or clearing them costs time in proportion to how many there
+ * are rather than to the size of the field.
+ */
+public class DirtyBlocks {
+	/** How many bits of a cell index are within a block */
+	static final int BLOCK_SHIFT = 8;
+
+	/** The number of cells in a block */
+	public static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+	private int cells;
+
+	// One flag per block; a byte rather than a bit, so that threads writing
+	// neighbouring blocks never overwrite each other's marks.
+	private boolean[] dirty;
+
+	// The blocks marked, in the order they were marked.
+	private int[] marked;
+	private int count;
+
+	/**
+	 * Track the changes to a field with the given number of cells.
+	 *
+	 * @param cells
+	 *            The number of cells in the field.
+	 */
+	public DirtyBlocks(int cells) {
+		this.cells = cells;
+		dirty = new boolean[(cells + BLOCK_SIZE - 1) >>> BLOCK_SHIFT];
+		marked = new int[dirty.length];
+	}
+
+	/**
+	 * Record that a cell has changed.
+	 *
+	 * @param index
+	 *            The index of the cell.
+	 */
+	public void mark(int index) {
+		int block = index >>> BLOCK_SHIFT;
+		if (!dirty[block]) {
+			markBlock(block);
+		}
+	}
+
+	// Only the first mark of a block since it was cleared gets here, so the
+	// lock is rarely taken.
+	private synchronized void markBlock(int block) {
+		if (!dirty[block]) {
+			dirty[block] = true;
+			marked[count++] = block;
+		}
+	}
+
+	/**
+	 * Record that every cell has changed, e.g. because the whole field was
+	 * replaced.
+	 */
+	public void markAll() {
+		Arrays.fill(dirty, true);
+		for (int b = 0; b < dirty.length; b++) {
+			marked[b] = b;
+		}
+		count = dirty.length;
+	}
+
+	/**
+	 * Record that every cell has changed because the field was replaced by
+	 * one that may be of another size.
+	 *
+	 * @param cells
+	 *            The number of cells in the new field.
+	 */
+	public void markAll(int cells) {
+		if (cells != this.cells) {
+			this.cells = cells;
+			dirty = new boolean[(cells + BLOCK_SIZE - 1) >>> BLOCK_SHIFT];
+			marked = new int[dirty.length];
+		}
+		markAll();
+	}
+
+	/**
+	 * Record every change recorded by another.
+	 *
+	 * @param other
+	 *            Changes to a field, which if it is of another size than this
+	 *            one means that all of it has changed.
+	 */
+	public void addAll(DirtyBlocks other) {
+		if (other.cells != cells) {
+			markAll(other.cells);
+			return;
+		}
+		for (int i = 0; i < other.count; i++) {
+			int block = other.marked[i];
+			if (!dirty[block]) {
+				dirty[block] = true;
+				marked[count++] = block;
+			}
+		}
+	}
+
+	/**
+	 * Forget all changes.
+	 */
+	public void clear() {
+		if (count == dirty.length) {
+			Arrays.fill(dirty, false);
+		} else {
+			for (int i = 0; i < count; i++) {
+				dirty[marked[i]] = false;
+			}
+		}
+		count = 0;
+	}
+
+	public boolean isDirty(int block) {
+		return dirty[block];
+	}
+
+	/**
+	 * @return The number of blocks that have changed.
+	 */
+	public int count() {
+		return count;
+	}
+
+	/**
+	 * @param i
+	 *            From 0 to {@link #count()} - 1.
+	 * @return The i-th block that has changed, in the order they were marked.
+	 */
+	public int changedBlock(int i) {
+		return marked[i];
+	}
+
+	/**
+	 * @return The number of blocks, changed or not.
+	 */
+	public int blocks() {
+		return dirty.length;
+	}
+
+	/**
+	 * @return The index of the first cell of a block.
+	 */
+	public int firstCell(int block) {
+		return block << BLOCK_SHIFT;
+	}
+
+	/**
+	 * @return The number of cells in a block; only the last may be short.
+	 */
+	public int blockLength(int block) {
+		return Math.min(BLOCK_SIZE, cells - (block << BLOCK_SHIFT));
+	}
+
+	/**
+	 * @return The number of cells in the field being tracked.
+	 */
+	public int cells() {
+		return cells;
+	}
+}
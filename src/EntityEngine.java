@@ -0,0 +1,324 @@
+import java.util.Random;
+
+/**
+ * A headless, data-oriented version of {@link SimulationEngine}. Animals are
+ * rows of an {@link EntityStore} rather than objects, the field is a pair of
+ * {@link PackedField}s holding entity ids, and the species parameters come
+ * from one shared {@link SpeciesTable}. A step is a bulk pass that ages
+ * every entity and uses up its food, followed by a linear pass in which each
+ * entity breeds, hunts and moves.
+ *
+ * The rules, the order in which animals act and the random streams are the
+ * same as those of a sequential SimulationEngine, so for the same seed both
+ * engines produce the same populations.
+ */
+public class EntityEngine {
+	private final SpeciesTable table;
+	private final EntityStore store;
+
+	// The current state of the field, and the one being built.
+	private PackedField field;
+	private PackedField updatedField;
+
+	private int step;
+	private final RandomStreams streams;
+	private final Random rand;
+	private final FieldStats stats;
+
+	// Which entities die of age or hunger this step, one bit per entity,
+	// worked out by ageAndHunger before any of them acts.
+	private long[] expiring = new long[16];
+	// How much food each species uses up a step: 1 for hunters, 0 otherwise.
+	private final int[] hunger = new int[Species.COUNT];
+
+	public EntityEngine(int width, int height, long seed) {
+		this(width, height, seed, SpeciesTable.standard());
+	}
+
+	public EntityEngine(int width, int height, long seed, SpeciesTable table) {
+		this.table = table;
+		this.store = new EntityStore();
+		this.field = new PackedField(width, height);
+		this.updatedField = new PackedField(width, height);
+		this.streams = new RandomStreams(seed);
+		this.rand = streams.create();
+		this.stats = new FieldStats();
+		reset();
+	}
+
+	/**
+	 * Reset the simulation to a starting position. The board is filled exactly
+	 * as SimulationEngine fills it for the same seed.
+	 */
+	public void reset() {
+		step = 0;
+		store.clear();
+		field.clear();
+		updatedField.clear();
+		stats.reset();
+
+		byte[] order = table.placementOrder();
+		for (int row = 0; row < field.getHeight(); row++) {
+			for (int col = 0; col < field.getWidth(); col++) {
+				int cell = field.index(col, row);
+				streams.stream(rand, 0, cell);
+				for (byte species : order) {
+					if (rand.nextDouble() <= table.creationProbability[species]) {
+						addRandomAnimal(species, cell);
+						break;
+					}
+				}
+			}
+		}
+		shuffle(streams.stream(rand, 0, RandomStreams.NO_CELL));
+	}
+
+	// Add an animal of random age (and food level, if it gets hungry).
+	private void addRandomAnimal(byte species, int cell) {
+		int age = rand.nextInt(table.maxAge[species]);
+		int food = 0;
+		if (table.isHunter(species)) {
+			food = rand.nextInt(table.startingFood[species]);
+		}
+		int id = store.add(species, age, food, cell);
+		field.put(cell, id, species, age, food);
+		stats.incrementCount(species);
+	}
+
+	// Put the entities in a random order, the same order Population.shuffle
+	// would give, and renumber the field to match.
+	private void shuffle(Random shuffleRand) {
+		for (int i = store.size - 1; i > 0; i--) {
+			int j = shuffleRand.nextInt(i + 1);
+			swap(store.age, i, j);
+			swap(store.food, i, j);
+			swap(store.cell, i, j);
+			byte s = store.species[i];
+			store.species[i] = store.species[j];
+			store.species[j] = s;
+		}
+		for (int i = 0; i < store.size; i++) {
+			field.setOccupant(store.cell[i], i);
+		}
+	}
+
+	private static void swap(int[] a, int i, int j) {
+		int t = a[i];
+		a[i] = a[j];
+		a[j] = t;
+	}
+
+	/**
+	 * Run the simulation for the given number of steps, stopping early if it
+	 * ceases to be viable.
+	 *
+	 * @return The number of steps actually run.
+	 */
+	public int simulate(int numSteps) {
+		int done = 0;
+		while (done < numSteps && stats.isViable()) {
+			simulateOneStep();
+			done++;
+		}
+		return done;
+	}
+
+	/**
+	 * Run the simulation for a single step: one pass over every entity that
+	 * was alive at the start of the step.
+	 */
+	public void simulateOneStep() {
+		step++;
+		int n = store.size;
+		ageAndHunger(n);
+		for (int i = 0; i < n; i++) {
+			if (store.alive[i]) {
+				streams.stream(rand, step, store.cell[i]);
+				act(i);
+			}
+		}
+
+		store.compact(updatedField);
+		PackedField temp = field;
+		field = updatedField;
+		updatedField = temp;
+		updatedField.clear();
+	}
+
+	/**
+	 * Age every entity alive at the start of the step and use up a step's
+	 * food, all at once, and note which of them this kills. Nobody is killed
+	 * yet: an entity that is too old or too hungry only dies when its turn
+	 * comes, so until then it can still be eaten, just as when each animal
+	 * ages itself on its own turn.
+	 *
+	 * The loops only read and write primitive arrays in order, with no
+	 * branches or calls, so that the JIT compiler can unroll them and use SIMD
+	 * instructions where it is able to.
+	 *
+	 * @param n
+	 *          The number of entities at the start of the step, all alive.
+	 */
+	void ageAndHunger(int n) {
+		int[] age = store.age;
+		int[] food = store.food;
+		byte[] species = store.species;
+		int[] maxAge = table.maxAge;
+		for (byte s = 0; s < Species.COUNT; s++) {
+			hunger[s] = table.isHunter(s) ? 1 : 0;
+		}
+
+		for (int i = 0; i < n; i++) {
+			age[i]++;
+		}
+
+		int words = (n + 63) >>> 6;
+		if (expiring.length < words) {
+			expiring = new long[Math.max(words, expiring.length * 2)];
+		}
+		for (int w = 0; w < words; w++) {
+			int end = Math.min(n, (w + 1) << 6);
+			long bits = 0;
+			for (int i = w << 6; i < end; i++) {
+				int s = species[i];
+				int f = food[i] - hunger[s];
+				food[i] = f;
+				// Sign bits: too old if maxAge - age < 0, starved if a hunter
+				// and f - 1 < 0.
+				long dies = ((maxAge[s] - age[i]) >>> 31) | (((f - 1) >>> 31) & hunger[s]);
+				bits |= dies << i;
+			}
+			expiring[w] = bits;
+		}
+	}
+
+	// One entity's turn, following Animal.act. It has already been aged by
+	// ageAndHunger.
+	private void act(int i) {
+		if ((expiring[i >>> 6] & (1L << i)) != 0) {
+			die(i, false);
+			return;
+		}
+		byte species = store.species[i];
+		int cell = store.cell[i];
+		int col = field.getCol(cell);
+		int row = field.getRow(cell);
+		boolean hunter = table.isHunter(species);
+
+		int births = 0;
+		if (store.age[i] >= table.breedingAge[species]
+				&& rand.nextDouble() <= table.breedingProbability[species]) {
+			births = rand.nextInt(table.maxLitterSize[species]) + 1;
+		}
+		for (int b = 0; b < births; b++) {
+			int food = hunter ? store.food[i] : 0;
+			int birthCell = updatedField.freeAdjacentCell(col, row, rand);
+			if (birthCell == Field.NO_CELL) {
+				break;
+			}
+			int id = store.add(species, 0, food, birthCell);
+			updatedField.put(birthCell, id, species, 0, food);
+			stats.recordBirth(species);
+		}
+
+		int newCell = Field.NO_CELL;
+		if (hunter) {
+			newCell = findFood(i, col, row);
+		}
+		if (newCell != Field.NO_CELL
+				&& updatedField.getOccupant(newCell) != PackedField.NO_ENTITY) {
+			newCell = Field.NO_CELL;
+		}
+		if (newCell == Field.NO_CELL) {
+			newCell = updatedField.freeAdjacentCell(col, row, rand);
+		}
+		if (newCell != Field.NO_CELL) {
+			store.cell[i] = newCell;
+			updatedField.put(newCell, i, species, store.age[i], store.food[i]);
+		} else {
+			die(i, false);
+		}
+	}
+
+	// Eat one of the live prey next to the entity, if any, picked the way
+	// Animal.eatNeighbour picks.
+	private int findFood(int i, int col, int row) {
+		int[] foodValue = table.foodValue[store.species[i]];
+		int live = 0;
+		for (int d = 0; d < Field.COLUMN_OFFSETS.length; d++) {
+			int nextCol = col + Field.COLUMN_OFFSETS[d];
+			int nextRow = row + Field.ROW_OFFSETS[d];
+			if (field.isLegalLocation(nextCol, nextRow)) {
+				int prey = field.getOccupant(field.index(nextCol, nextRow));
+				if (prey >= 0 && store.alive[prey] && foodValue[store.species[prey]] > 0) {
+					live |= 1 << d;
+				}
+			}
+		}
+		if (live == 0) {
+			return Field.NO_CELL;
+		}
+		int count = Integer.bitCount(live);
+		for (int pick = count == 1 ? 0 : rand.nextInt(count); pick > 0; pick--) {
+			live &= live - 1;
+		}
+		int d = Integer.numberOfTrailingZeros(live);
+		int where = field.index(col + Field.COLUMN_OFFSETS[d], row + Field.ROW_OFFSETS[d]);
+		int prey = field.getOccupant(where);
+		die(prey, true);
+		store.food[i] = foodValue[store.species[prey]];
+		return where;
+	}
+
+	private void die(int i, boolean eaten) {
+		store.kill(i, eaten);
+		stats.recordDeath(store.species[i], eaten);
+	}
+
+	public PackedField getField() {
+		return field;
+	}
+
+	public EntityStore getStore() {
+		return store;
+	}
+
+	public FieldStats getStats() {
+		return stats;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	/**
+	 * Run a batch simulation with the data-oriented engine.
+	 *
+	 * Usage: EntityEngine [width height [steps [seed]]]
+	 */
+	public static void main(String[] args) {
+		int width = SimulationEngine.DEFAULT_WIDTH;
+		int height = SimulationEngine.DEFAULT_HEIGHT;
+		int steps = 1000;
+		long seed = new Random().nextLong();
+		if (args.length >= 2) {
+			width = Integer.parseInt(args[0]);
+			height = Integer.parseInt(args[1]);
+		}
+		if (args.length >= 3) {
+			steps = Integer.parseInt(args[2]);
+		}
+		if (args.length >= 4) {
+			seed = Long.parseLong(args[3]);
+		}
+
+		EntityEngine engine = new EntityEngine(width, height, seed);
+		long start = System.nanoTime();
+		int done = engine.simulate(steps);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println("Ran " + done + " steps in " + seconds + " s ("
+				+ (done / seconds) + " steps/s)");
+		System.out.println(engine.getStats().getPopulationDetails());
+	}
+}
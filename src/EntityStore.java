@@ -0,0 +1,144 @@
+import java.util.Arrays;
+
+/**
+ * The state of all animals as a structure of arrays: entity i has age[i],
+ * food[i], cell[i] and species[i]. Everything a species has in common lives
+ * in a {@link SpeciesTable}, so an entity costs 15 bytes instead of an
+ * Animal object plus a Location, and a kernel can update all of them with
+ * plain loops over primitive arrays.
+ *
+ * Entities that die stay in place (with alive[i] false) until the end of the
+ * step, when {@link #compact(PackedField)} squeezes them out and renumbers the
+ * survivors, keeping their order. New entities are always added at the end.
+ */
+public class EntityStore {
+	private static final int INITIAL_CAPACITY = 1024;
+
+	int[] age;
+	int[] food;
+	int[] cell;
+	byte[] species;
+	boolean[] alive;
+	boolean[] eaten;
+	int size;
+
+	public EntityStore() {
+		this(INITIAL_CAPACITY);
+	}
+
+	public EntityStore(int capacity) {
+		age = new int[capacity];
+		food = new int[capacity];
+		cell = new int[capacity];
+		species = new byte[capacity];
+		alive = new boolean[capacity];
+		eaten = new boolean[capacity];
+	}
+
+	/**
+	 * Add a live entity at the end of the store.
+	 *
+	 * @return The id of the new entity.
+	 */
+	public int add(byte speciesCode, int entityAge, int foodLevel, int cellIndex) {
+		if (size == age.length) {
+			grow();
+		}
+		int id = size++;
+		age[id] = entityAge;
+		food[id] = foodLevel;
+		cell[id] = cellIndex;
+		species[id] = speciesCode;
+		alive[id] = true;
+		eaten[id] = false;
+		return id;
+	}
+
+	/**
+	 * Mark an entity as dead. It is removed by the next compaction.
+	 */
+	public void kill(int id, boolean wasEaten) {
+		alive[id] = false;
+		eaten[id] = wasEaten;
+	}
+
+	/**
+	 * Remove the dead entities and renumber the survivors, keeping their order.
+	 * Cells of the grid that belong to a survivor are given its new id; cells
+	 * that belong to an entity that died are marked
+	 * {@link PackedField#DEAD_ENTITY}, so they stay occupied until the grid is
+	 * next cleared, just like a dead Animal left in a Field.
+	 *
+	 * @param grid
+	 *          The grid holding the ids of this store's entities.
+	 */
+	public void compact(PackedField grid) {
+		int kept = 0;
+		// New ids are never larger than old ones, so walking the old ids upwards
+		// can never mistake an already renumbered cell for one of its own.
+		for (int i = 0; i < size; i++) {
+			int c = cell[i];
+			boolean owner = grid.getOccupant(c) == i;
+			if (alive[i]) {
+				age[kept] = age[i];
+				food[kept] = food[i];
+				cell[kept] = c;
+				species[kept] = species[i];
+				alive[kept] = true;
+				eaten[kept] = false;
+				if (owner) {
+					grid.setOccupant(c, kept);
+				}
+				kept++;
+			} else if (owner) {
+				grid.setOccupant(c, PackedField.DEAD_ENTITY);
+			}
+		}
+		size = kept;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public boolean isAlive(int id) {
+		return alive[id];
+	}
+
+	public byte getSpecies(int id) {
+		return species[id];
+	}
+
+	public int getAge(int id) {
+		return age[id];
+	}
+
+	public int getFood(int id) {
+		return food[id];
+	}
+
+	public int getCell(int id) {
+		return cell[id];
+	}
+
+	/**
+	 * @return The number of bytes the arrays use per entity.
+	 */
+	public static int bytesPerEntity() {
+		return 4 + 4 + 4 + 1 + 1 + 1;
+	}
+
+	private void grow() {
+		int capacity = age.length * 2;
+		age = Arrays.copyOf(age, capacity);
+		food = Arrays.copyOf(food, capacity);
+		cell = Arrays.copyOf(cell, capacity);
+		species = Arrays.copyOf(species, capacity);
+		alive = Arrays.copyOf(alive, capacity);
+		eaten = Arrays.copyOf(eaten, capacity);
+	}
+}
@@ -1,15 +1,24 @@
 import java.io.Serializable;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /**
  * Represent a rectangular grid of field positions. Each position is able to
  * store a single animal.
+ *
+ * A field is either dense, with an array entry for every cell, or sparse,
+ * with its cells kept in pages of {@link #PAGE_SIZE} that are only allocated
+ * where something has been put and are freed again once they stay empty, so
+ * that a huge field holding a few scattered populations only takes memory in
+ * proportion to the area they occupy. Either kind can be bounded, or wrap
+ * around so that the left edge meets the right and the top meets the bottom
+ * (a torus). All cells are still numbered row by row, so a field's width
+ * times its height must fit in an int.
  * 
  * @author David J. Barnes and Michael Kolling. Modified by David Dobervich
  *         2007-2013
@@ -17,15 +26,44 @@ import java.util.Random;
  */
 public class Field implements Serializable {
 
-	private static final Random rand = new Random();
-
 	// The height and width of the field.
 	private int height, width;
 
-	// Storage for the items on the board.
-	private Object[][] board;
+	/** The number of cells in a page of a sparse field */
+	public static final int PAGE_SIZE = 1 << 8;
+
+	// A sparse field finds a cell as page directory, page, cell in page.
+	private static final int PAGE_SHIFT = 8;
+	private static final int DIRECTORY_SHIFT = 20;
+	private static final int PAGES_PER_DIRECTORY = 1 << (DIRECTORY_SHIFT - PAGE_SHIFT);
+
+	// Whether moving off one edge comes back in at the opposite one.
+	private final boolean wrap;
+
+	// Storage for the items on the board, one row after another
+	// (the item at col, row is at index row * width + col). Null if the
+	// field is sparse.
+	private Object[] board;
 
-	private HashMap<Class, ArrayList<Location>> animals;
+	// The pages of a sparse field, null where nothing has been put, and how
+	// many are allocated.
+	private Page[][] pages;
+	private int pageCount;
+
+	// One bit per cell for each species, set where an animal of that species
+	// is, in the same order as the board (cell i is bit i % 64 of word i / 64).
+	// Kept up to date by put, so that questions like "is there a rabbit next
+	// to me?" can be answered a row of neighbours at a time. The words are
+	// atomic because tiles stepped in parallel may share a word. Only dense
+	// fields have them.
+	private AtomicLongArray[] occupancy;
+
+	// The lines of sight, worked out the first time anything looks and kept
+	// up to date by put from then on; null until then.
+	private transient volatile LineOfSight sight;
+
+	// Told about every cell that changes, or null if nobody is interested.
+	private transient DirtyBlocks changes;
 
 	private int numberOfRows;
 	private int numberOfColumns;
@@ -54,6 +92,42 @@ public class Field implements Serializable {
 	/** The largest int representing a direction */
 	static final int MAX_DIRECTION = 7;
 
+	/** Returned by the cell index methods when there is no suitable cell */
+	public static final int NO_CELL = -1;
+
+	// How each of the eight directions changes the column and the row.
+	static final int[] COLUMN_OFFSETS = new int[MAX_DIRECTION + 1];
+	static final int[] ROW_OFFSETS = new int[MAX_DIRECTION + 1];
+
+	static {
+		for (int d = MIN_DIRECTION; d <= MAX_DIRECTION; d++) {
+			COLUMN_OFFSETS[d] = columnChange(d);
+			ROW_OFFSETS[d] = rowChange(d);
+		}
+	}
+
+	// Each thread shuffles its own copy of the directions, so neighbour
+	// searches neither allocate nor share state between threads.
+	private static final ThreadLocal<int[]> directionOrder = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			int[] order = new int[MAX_DIRECTION + 1];
+			for (int d = 0; d < order.length; d++) {
+				order[d] = d;
+			}
+			return order;
+		}
+	};
+
+	// A page of a sparse field.
+	private static class Page implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final Object[] cells = new Object[PAGE_SIZE];
+		// Whether anything has been put here since the field was last cleared.
+		boolean used;
+	}
+
 	/**
 	 * Represent a field of the given dimensions.
 	 * 
@@ -63,23 +137,212 @@ public class Field implements Serializable {
 	 *            The width of the field.
 	 */
 	public Field(int width, int height) {
+		this(width, height, false, false);
+	}
+
+	/**
+	 * Represent a field of the given dimensions and kind.
+	 *
+	 * @param width
+	 *            The width of the field.
+	 * @param height
+	 *            The height of the field.
+	 * @param sparse
+	 *            Whether to allocate cells only where something is put.
+	 * @param wrap
+	 *            Whether the edges wrap around; the field must then be at
+	 *            least 3 cells wide and high.
+	 */
+	public Field(int width, int height, boolean sparse, boolean wrap) {
+		if ((long) width * height > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("A field of " + width + "x" + height
+					+ " has too many cells to number");
+		}
+		if (wrap && (width < 3 || height < 3)) {
+			throw new IllegalArgumentException("A wrapping field must be at least 3x3");
+		}
 		this.height = height;
 		this.width = width;
 		this.numberOfColumns = width;
 		this.numberOfRows = height;
-		board = new Object[width][height];
-		animals = new HashMap<Class, ArrayList<Location>>();
+		this.wrap = wrap;
+		int cells = width * height;
+		if (sparse) {
+			pages = new Page[(int) (((long) cells + (1 << DIRECTORY_SHIFT) - 1) >>> DIRECTORY_SHIFT)][];
+		} else {
+			board = new Object[cells];
+			occupancy = new AtomicLongArray[Species.COUNT];
+			for (byte species = 1; species < Species.COUNT; species++) {
+				occupancy[species] = new AtomicLongArray((cells + 63) >>> 6);
+			}
+		}
 	}
 
 	/**
-	 * Empty the field.
+	 * @return An empty field of the same size and kind as this one.
+	 */
+	public Field emptyCopy() {
+		return new Field(width, height, isSparse(), wrap);
+	}
+
+	/**
+	 * @return Whether cells are only allocated where something is put.
+	 */
+	public boolean isSparse() {
+		return board == null;
+	}
+
+	/**
+	 * @return Whether the edges of the field wrap around.
+	 */
+	public boolean isWrapping() {
+		return wrap;
+	}
+
+	/**
+	 * @return The number of cells that take up memory: every cell of a dense
+	 *         field, or the cells of the pages allocated in a sparse one.
+	 */
+	public long getAllocatedCells() {
+		return board != null ? board.length : (long) pageCount * PAGE_SIZE;
+	}
+
+	/**
+	 * Empty the field. A sparse field keeps the pages that were used since it
+	 * was last cleared, as they are likely to be used again, and frees the
+	 * others.
 	 */
 	public void clear() {
-		for (int row = 0; row < height; row++) {
-			for (int col = 0; col < width; col++) {
-				board[col][row] = null;
+		if (sight != null) {
+			sight.clear();
+		}
+		if (board == null) {
+			clearPages();
+			return;
+		}
+		for (byte species = 1; species < Species.COUNT; species++) {
+			AtomicLongArray bits = occupancy[species];
+			for (int w = 0; w < bits.length(); w++) {
+				if (bits.get(w) != 0) {
+					bits.set(w, 0);
+				}
+			}
+		}
+		if (changes == null) {
+			Arrays.fill(board, null);
+			return;
+		}
+		for (int i = 0; i < board.length; i++) {
+			if (board[i] != null) {
+				board[i] = null;
+				changes.mark(i);
+			}
+		}
+	}
+
+	private void clearPages() {
+		for (int d = 0; d < pages.length; d++) {
+			Page[] directory = pages[d];
+			if (directory == null) {
+				continue;
+			}
+			boolean empty = true;
+			for (int p = 0; p < directory.length; p++) {
+				Page page = directory[p];
+				if (page == null) {
+					continue;
+				}
+				if (!page.used) {
+					directory[p] = null;
+					pageCount--;
+					continue;
+				}
+				int first = (d << DIRECTORY_SHIFT) + (p << PAGE_SHIFT);
+				for (int i = 0; i < PAGE_SIZE; i++) {
+					if (page.cells[i] != null) {
+						page.cells[i] = null;
+						if (changes != null) {
+							changes.mark(first + i);
+						}
+					}
+				}
+				page.used = false;
+				empty = false;
+			}
+			if (empty) {
+				pages[d] = null;
+			}
+		}
+	}
+
+	// The page of a sparse field holding a cell, allocating it if asked to.
+	// Tiles run in parallel may want the same new page, so it is allocated
+	// under a lock; a thread that finds it already there needs none.
+	private Page page(int index, boolean allocate) {
+		Page[] directory = pages[index >>> DIRECTORY_SHIFT];
+		if (directory != null) {
+			Page page = directory[(index >>> PAGE_SHIFT) & (PAGES_PER_DIRECTORY - 1)];
+			if (page != null || !allocate) {
+				return page;
 			}
+		} else if (!allocate) {
+			return null;
 		}
+		synchronized (this) {
+			directory = pages[index >>> DIRECTORY_SHIFT];
+			if (directory == null) {
+				directory = new Page[PAGES_PER_DIRECTORY];
+				pages[index >>> DIRECTORY_SHIFT] = directory;
+			}
+			int p = (index >>> PAGE_SHIFT) & (PAGES_PER_DIRECTORY - 1);
+			if (directory[p] == null) {
+				directory[p] = new Page();
+				pageCount++;
+			}
+			return directory[p];
+		}
+	}
+
+	/**
+	 * Record every change to this field from now on, e.g. so that a checkpoint
+	 * only needs to save the parts that have changed.
+	 *
+	 * @param changes
+	 *            Where to record the changes, or null to stop recording.
+	 */
+	public void trackChanges(DirtyBlocks changes) {
+		this.changes = changes;
+	}
+
+	/**
+	 * Return the index of a location in the row-major board.
+	 *
+	 * @param col
+	 *            Column coordinate of the location.
+	 * @param row
+	 *            Row coordinate of the location.
+	 * @return The index of the location.
+	 */
+	public int index(int col, int row) {
+		return row * width + col;
+	}
+
+	/**
+	 * @param index
+	 *            The index of a location in the board.
+	 * @return The column of that location.
+	 */
+	public int getCol(int index) {
+		return index % width;
+	}
+
+	/**
+	 * @param index
+	 *            The index of a location in the board.
+	 * @return The row of that location.
+	 */
+	public int getRow(int index) {
+		return index / width;
 	}
 
 	/**
@@ -94,7 +357,7 @@ public class Field implements Serializable {
 	 *            Column coordinate of the location.
 	 */
 	public void put(Object obj, int col, int row) {
-		put(obj, new Location(col, row));
+		put(obj, index(col, row));
 	}
 
 	public boolean isInGrid(Location loc) {
@@ -102,8 +365,8 @@ public class Field implements Serializable {
 	}
 	
 	public boolean isInGrid(int row, int col) {
-		return ((row >= 0) && (row < this.width) &&
-				(col >= 0) && (col < this.height));
+		return ((row >= 0) && (row < this.height) &&
+				(col >= 0) && (col < this.width));
 	}
 	
 	/**
@@ -116,7 +379,183 @@ public class Field implements Serializable {
 	 *            Where to place the animal.
 	 */
 	public void put(Object obj, Location location) {
-		board[location.getCol()][location.getRow()] = obj;
+		put(obj, location.getCol(), location.getRow());
+	}
+
+	/**
+	 * Place an animal at the location with the given index. If there is
+	 * already an animal at the location it will be lost.
+	 *
+	 * @param obj
+	 *            The animal to be placed.
+	 * @param index
+	 *            The index of the location, see {@link #index(int, int)}.
+	 */
+	public void put(Object obj, int index) {
+		Object old;
+		if (board != null) {
+			old = board[index];
+			board[index] = obj;
+		} else {
+			Page page = page(index, obj != null);
+			if (page == null) {
+				return; // nothing to take out of an unallocated page
+			}
+			old = page.cells[index & (PAGE_SIZE - 1)];
+			page.cells[index & (PAGE_SIZE - 1)] = obj;
+			if (obj != null && !page.used) {
+				page.used = true;
+			}
+		}
+		if ((old == null) != (obj == null)) {
+			LineOfSight lines = sight;
+			if (lines != null) {
+				lines.set(index % width, index / width, obj != null);
+			}
+		}
+		byte oldSpecies = Species.of(old);
+		byte newSpecies = Species.of(obj);
+		if (occupancy != null && oldSpecies != newSpecies) {
+			long bit = 1L << index;
+			if (oldSpecies != Species.EMPTY) {
+				updateBits(occupancy[oldSpecies], index >>> 6, bit, 0);
+			}
+			if (newSpecies != Species.EMPTY) {
+				updateBits(occupancy[newSpecies], index >>> 6, bit, bit);
+			}
+		}
+		if (changes != null) {
+			changes.mark(index);
+		}
+	}
+
+	// Set the given bits of a word to the given value.
+	private static void updateBits(AtomicLongArray bits, int word, long mask, long value) {
+		long old;
+		do {
+			old = bits.get(word);
+		} while (!bits.compareAndSet(word, old, (old & ~mask) | value));
+	}
+
+	/**
+	 * @param species
+	 *            A species code other than Species.EMPTY.
+	 * @param index
+	 *            The index of a location.
+	 * @return Whether an animal of that species is at the location.
+	 */
+	public boolean contains(byte species, int index) {
+		if (occupancy == null) {
+			return Species.of(getObjectAt(index)) == species;
+		}
+		return (occupancy[species].get(index >>> 6) & (1L << index)) != 0;
+	}
+
+	/**
+	 * Count the animals of a species on the field, a 64-cell word at a time.
+	 *
+	 * @param species
+	 *            A species code other than Species.EMPTY.
+	 * @return The number of cells holding an animal of that species.
+	 */
+	public int count(byte species) {
+		int n = 0;
+		if (occupancy == null) {
+			for (Page[] directory : pages) {
+				if (directory == null) {
+					continue;
+				}
+				for (Page page : directory) {
+					if (page == null) {
+						continue;
+					}
+					for (int i = 0; i < PAGE_SIZE; i++) {
+						if (Species.of(page.cells[i]) == species) {
+							n++;
+						}
+					}
+				}
+			}
+			return n;
+		}
+		AtomicLongArray bits = occupancy[species];
+		for (int w = 0; w < bits.length(); w++) {
+			n += Long.bitCount(bits.get(w));
+		}
+		return n;
+	}
+
+	/**
+	 * Find which of the eight cells around a location hold an animal of a
+	 * species. Each row of three neighbours is read from the occupancy bits
+	 * at once, rather than cell by cell.
+	 *
+	 * @param species
+	 *            A species code other than Species.EMPTY.
+	 * @param col
+	 *            The column of the location.
+	 * @param row
+	 *            The row of the location.
+	 * @return A mask with bit d set if the neighbour in direction d (N to NW)
+	 *         holds an animal of that species; 0 if none does.
+	 */
+	public int neighbours(byte species, int col, int row) {
+		if (occupancy == null) {
+			// Sparse fields have no occupancy bits; look at each neighbour.
+			int mask = 0;
+			for (int d = MIN_DIRECTION; d <= MAX_DIRECTION; d++) {
+				int cell = cellAt(col + COLUMN_OFFSETS[d], row + ROW_OFFSETS[d]);
+				if (cell != NO_CELL && Species.of(getObjectAt(cell)) == species) {
+					mask |= 1 << d;
+				}
+			}
+			return mask;
+		}
+		AtomicLongArray bits = occupancy[species];
+		// Bit 0 is the column to the left, bit 1 this column, bit 2 the right.
+		int above = row > 0 ? threeCells(bits, col, row - 1)
+				: wrap ? threeCells(bits, col, height - 1) : 0;
+		int level = threeCells(bits, col, row);
+		int below = row < height - 1 ? threeCells(bits, col, row + 1)
+				: wrap ? threeCells(bits, col, 0) : 0;
+		if ((above | level | below) == 0) {
+			return 0;
+		}
+		return (above & 1) << NW | (above >> 1 & 1) << N | (above >> 2 & 1) << NE
+				| (level & 1) << W | (level >> 2 & 1) << E
+				| (below & 1) << SW | (below >> 1 & 1) << S | (below >> 2 & 1) << SE;
+	}
+
+	// The bits of the cells col - 1, col and col + 1 of a row, in the lowest
+	// three bits; cells off a bounded field read as 0.
+	private int threeCells(AtomicLongArray bits, int col, int row) {
+		int first = index(col, row) - 1;
+		int result;
+		if (first < 0) {
+			// The top left corner: there is no cell to the left.
+			result = (int) (bits.get(0) << 1) & 7;
+		} else {
+			int word = first >>> 6;
+			int shift = first & 63;
+			long value = bits.get(word) >>> shift;
+			if (shift > 61 && word + 1 < bits.length()) {
+				value |= bits.get(word + 1) << (64 - shift);
+			}
+			result = (int) value & 7;
+		}
+		if (col == 0) {
+			result &= ~1;
+			if (wrap && (bits.get(index(width - 1, row) >>> 6) & (1L << index(width - 1, row))) != 0) {
+				result |= 1;
+			}
+		}
+		if (col == width - 1) {
+			result &= ~4;
+			if (wrap && (bits.get(index(0, row) >>> 6) & (1L << index(0, row))) != 0) {
+				result |= 4;
+			}
+		}
+		return result;
 	}
 
 	/**
@@ -140,7 +579,50 @@ public class Field implements Serializable {
 	 * @return The animal at the given location, or null if there is none.
 	 */
 	public Object getObjectAt(int col, int row) {
-		return board[col][row];
+		return getObjectAt(index(col, row));
+	}
+
+	/**
+	 * Return the animal at the location with the given index, if any.
+	 *
+	 * @param index
+	 *            The index of the location, see {@link #index(int, int)}.
+	 * @return The animal at the given location, or null if there is none.
+	 */
+	public Object getObjectAt(int index) {
+		if (board != null) {
+			return board[index];
+		}
+		Page[] directory = pages[index >>> DIRECTORY_SHIFT];
+		if (directory == null) {
+			return null;
+		}
+		Page page = directory[(index >>> PAGE_SHIFT) & (PAGES_PER_DIRECTORY - 1)];
+		return page == null ? null : page.cells[index & (PAGE_SIZE - 1)];
+	}
+
+	/**
+	 * Find the cell at a column and row that may be just off the field, as
+	 * when stepping from a cell at the edge. This is where the edges are
+	 * handled: a wrapping field brings the location back in from the
+	 * opposite side, a bounded one has no cell there.
+	 *
+	 * @param col
+	 *            The column, at least -width.
+	 * @param row
+	 *            The row, at least -height.
+	 * @return The index of the cell, or NO_CELL if it is off a bounded
+	 *         field.
+	 */
+	public int cellAt(int col, int row) {
+		if (col < 0 || col >= width || row < 0 || row >= height) {
+			if (!wrap) {
+				return NO_CELL;
+			}
+			col = (col + width) % width;
+			row = (row + height) % height;
+		}
+		return row * width + col;
 	}
 
 	/**
@@ -150,23 +632,19 @@ public class Field implements Serializable {
 	 * 
 	 * @param location
 	 *            The location from which to generate an adjacency.
+	 * @param rand
+	 *            The random numbers to use.
 	 * @return A valid location within the grid area. This may be the same
 	 *         object as the location parameter.
 	 */
-	public Location randomAdjacentLocation(Location location) {
+	public Location randomAdjacentLocation(Location location, Random rand) {
 		int row = location.getRow();
 		int col = location.getCol();
-		// Generate an offset of -1, 0, or +1 for both the current row and col.
-		int nextRow = row + rand.nextInt(3) - 1;
-		int nextCol = col + rand.nextInt(3) - 1;
-		// Check in case the new location is outside the bounds.
-		if (nextRow < 0 || nextRow >= height || nextCol < 0 || nextCol >= width) {
-			return location;
-		} else if (nextRow != row || nextCol != col) {
-			return new Location(nextCol, nextRow);
-		} else {
+		int cell = randomAdjacentCell(col, row, rand);
+		if (cell == index(col, row)) {
 			return location;
 		}
+		return new Location(getCol(cell), getRow(cell));
 	}
 
 	/**
@@ -177,27 +655,98 @@ public class Field implements Serializable {
 	 * 
 	 * @param location
 	 *            The location from which to generate an adjacency.
+	 * @param rand
+	 *            The random numbers to use.
 	 * @return A valid location within the grid area. This may be the same
 	 *         object as the location parameter, or null if all locations around
 	 *         are full.
 	 */
-	public Location freeAdjacentLocation(Location location) {
-		List<Location> adjacent = adjacentLocations(location);
-		for (Location next : adjacent) {
-			if (board[next.getCol()][next.getRow()] == null) {
-				return next;
+	public Location freeAdjacentLocation(Location location, Random rand) {
+		int cell = freeAdjacentCell(location.getCol(), location.getRow(), rand);
+		if (cell == NO_CELL) {
+			return null;
+		}
+		return new Location(getCol(cell), getRow(cell));
+	}
+
+	public Location freeAdjacentLocation(int x, int y, Random rand) {
+		return freeAdjacentLocation(new Location(x, y), rand);
+	}
+
+	/**
+	 * Same as {@link #randomAdjacentLocation(Location, Random)}, but working on cell
+	 * indices so that nothing is allocated.
+	 *
+	 * @param col
+	 *            The column from which to generate an adjacency.
+	 * @param row
+	 *            The row from which to generate an adjacency.
+	 * @param rand
+	 *            The random numbers to use.
+	 * @return The index of a valid location within the grid area. This may be
+	 *         the index of the given location.
+	 */
+	public int randomAdjacentCell(int col, int row, Random rand) {
+		// Generate an offset of -1, 0, or +1 for both the current row and col.
+		int nextRow = row + rand.nextInt(3) - 1;
+		int nextCol = col + rand.nextInt(3) - 1;
+		int cell = cellAt(nextCol, nextRow);
+		return cell == NO_CELL ? index(col, row) : cell;
+	}
+
+	/**
+	 * Same as {@link #freeAdjacentLocation(Location, Random)}, but working on cell
+	 * indices so that nothing is allocated.
+	 *
+	 * @param col
+	 *            The column from which to generate an adjacency.
+	 * @param row
+	 *            The row from which to generate an adjacency.
+	 * @param rand
+	 *            The random numbers to use.
+	 * @return The index of a free location within the grid area. This may be
+	 *         the index of the given location, or NO_CELL if all locations
+	 *         around are full.
+	 */
+	public int freeAdjacentCell(int col, int row, Random rand) {
+		int[] directions = shuffledDirections(rand);
+		for (int i = 0; i < directions.length; i++) {
+			int cell = cellAt(col + COLUMN_OFFSETS[directions[i]], row + ROW_OFFSETS[directions[i]]);
+			if (cell != NO_CELL && getObjectAt(cell) == null) {
+				return cell;
 			}
 		}
 		// check whether current location is free
-		if (board[location.getCol()][location.getRow()] == null) {
-			return location;
+		if (getObjectAt(index(col, row)) == null) {
+			return index(col, row);
 		} else {
-			return null;
+			return NO_CELL;
 		}
 	}
 
-	public Location freeAdjacentLocation(int x, int y) {
-		return freeAdjacentLocation(new Location(x, y));
+	/**
+	 * Shuffle the eight directions into a random order. The returned array
+	 * belongs to the calling thread and is reused by the next call, so it must
+	 * not be kept. Use {@link #COLUMN_OFFSETS} and {@link #ROW_OFFSETS} to turn
+	 * a direction into a neighbouring location.
+	 *
+	 * @param rand
+	 *            The random numbers to use.
+	 * @return The directions N to NW in a random order.
+	 */
+	static int[] shuffledDirections(Random rand) {
+		int[] order = directionOrder.get();
+		// start from the same order every time, so the result only depends on rand
+		for (int d = 0; d < order.length; d++) {
+			order[d] = d;
+		}
+		for (int i = order.length - 1; i > 0; i--) {
+			int j = rand.nextInt(i + 1);
+			int d = order[i];
+			order[i] = order[j];
+			order[j] = d;
+		}
+		return order;
 	}
 
 	/**
@@ -207,22 +756,20 @@ public class Field implements Serializable {
 	 * 
 	 * @param location
 	 *            The location from which to generate adjacencies.
+	 * @param rand
+	 *            The random numbers used to shuffle the list.
 	 * @return An iterator over locations adjacent to that given.
 	 */
-	public List<Location> adjacentLocations(Location location) {
+	public List<Location> adjacentLocations(Location location, Random rand) {
 		int row = location.getRow();
 		int col = location.getCol();
 		List<Location> locations = new LinkedList<Location>();
 		for (int roffset = -1; roffset <= 1; roffset++) {
-			int nextRow = row + roffset;
-			if (nextRow >= 0 && nextRow < height) {
-				for (int coffset = -1; coffset <= 1; coffset++) {
-					int nextCol = col + coffset;
-					// Exclude invalid locations and the original location.
-					if (nextCol >= 0 && nextCol < width
-							&& (roffset != 0 || coffset != 0)) {
-						locations.add(new Location(nextCol, nextRow));
-					}
+			for (int coffset = -1; coffset <= 1; coffset++) {
+				int cell = cellAt(col + coffset, row + roffset);
+				// Exclude invalid locations and the original location.
+				if (cell != NO_CELL && (roffset != 0 || coffset != 0)) {
+					locations.add(new Location(getCol(cell), getRow(cell)));
 				}
 			}
 		}
@@ -230,8 +777,8 @@ public class Field implements Serializable {
 		return locations;
 	}
 
-	public List<Location> adjacentLocations(int x, int y) {
-		return adjacentLocations(new Location(x, y));
+	public List<Location> adjacentLocations(int x, int y, Random rand) {
+		return adjacentLocations(new Location(x, y), rand);
 	}
 
 	/**
@@ -318,80 +865,130 @@ public class Field implements Serializable {
 	}
 
 	boolean isEmpty(int col, int row) {
-		return this.board[col][row] == null;
+		return getObjectAt(index(col, row)) == null;
 	}
 
 	boolean isEmpty(Location l) {
-		return isEmpty(l.getRow(), l.getCol());
+		return isEmpty(l.getCol(), l.getRow());
 	}
 
 	/**
 	 * Determines what can be seen from a given location, looking in a given
 	 * direction.
 	 * 
-	 * @param row
-	 *            the row of the object doing the looking
-	 * @param column
-	 *            the column of the object doing the looking
-	 * @param direction
+	 * @param l
+	 *            the location of the object doing the looking
+	 * @param d
 	 *            the direction of the look
 	 * @return the object seen, or null if nothing seen.
 	 */
-	private Object look(int column, int row, int direction) {
-		// decode direction into its x-y components
-		int rowDelta = rowChange(direction);
-		int columnDelta = columnChange(direction);
-
-		// check in that direction until you see something
-		// (if nothing else, you will eventually see the edge of the
-		// array, thus the loop <i>will</i> terminate)
-		while (true) {
-			row = row + rowDelta;
-			column = column + columnDelta;
-			if (!isLegalLocation(row, column))
-				return null;
-			if (board[column][row] != null)
-				return board[column][row];
-		}
-	}
-
 	public Object getObjectInDirection(Location l, int d) {
-		return look(l.getCol(), l.getRow(), d);
+		int cell = cellInDirection(l.getCol(), l.getRow(), d);
+		return cell == NO_CELL ? null : getObjectAt(cell);
 	}
 
 	/**
 	 * Determines the distance to the nearest thing, or to the edge of the
 	 * field, looking in a given direction.
 	 * 
-	 * @param row
-	 *            the row of the object doing the looking
-	 * @param column
-	 *            the column of the object doing the looking
-	 * @param direction
+	 * @param l
+	 *            the location of the object doing the looking
+	 * @param d
 	 *            the direction of the look
 	 * @return the distance
 	 */
-	private int distance(int row, int column, int direction) {
-		// decode direction into its x-y components
-		int rowDelta = rowChange(direction);
-		int columnDelta = columnChange(direction);
+	public int distanceToObject(Location l, int d) {
+		return distanceInDirection(l.getCol(), l.getRow(), d);
+	}
 
-		// check in that direction until you see something
-		// (if nothing else, you will eventually see the edge of the
-		// array, thus the loop <i>will</i> terminate)
+	/**
+	 * Find the nearest occupied cell in a direction. Unlike walking the
+	 * cells, this costs about the same however far away it is (see
+	 * {@link LineOfSight}), so an animal can afford to look all eight ways
+	 * every step.
+	 *
+	 * @param col
+	 *            The column looked from.
+	 * @param row
+	 *            The row looked from.
+	 * @param direction
+	 *            The direction looked in, N to NW.
+	 * @return The index of the nearest occupied cell, or NO_CELL if the edge
+	 *         of the field comes first, or on a wrapping field if the look
+	 *         comes back round to where it started.
+	 */
+	public int cellInDirection(int col, int row, int direction) {
+		int steps = look(col, row, direction);
+		if (steps < 0) {
+			return NO_CELL;
+		}
+		return cellAt((int) ((col + (long) steps * COLUMN_OFFSETS[direction]) % width),
+				(int) ((row + (long) steps * ROW_OFFSETS[direction]) % height));
+	}
+
+	/**
+	 * Find how far away the nearest occupied cell in a direction is.
+	 *
+	 * @param col
+	 *            The column looked from.
+	 * @param row
+	 *            The row looked from.
+	 * @param direction
+	 *            The direction looked in, N to NW.
+	 * @return The number of steps to the nearest occupied cell, or if there
+	 *         is none, the number of steps to go off the field (or on a
+	 *         wrapping field, to come back round to where it started).
+	 */
+	public int distanceInDirection(int col, int row, int direction) {
+		return Math.abs(look(col, row, direction));
+	}
+
+	// How many steps away the nearest occupied cell in a direction is, or
+	// minus the steps to go off the field or come back round if there is none.
+	// Sparse fields, and the diagonals of wrapping ones (which pass through
+	// several diagonal lines before coming back round), are walked cell by
+	// cell instead of using the lines of sight.
+	private int look(int col, int row, int direction) {
+		if (board != null && (!wrap || COLUMN_OFFSETS[direction] == 0
+				|| ROW_OFFSETS[direction] == 0)) {
+			return lineOfSight().look(col, row, direction);
+		}
+		int c = col;
+		int r = row;
 		int steps = 0;
 		while (true) {
-			row = row + rowDelta;
-			column = column + columnDelta;
+			int cell = cellAt(c + COLUMN_OFFSETS[direction], r + ROW_OFFSETS[direction]);
 			steps++;
-			if (!isLegalLocation(row, column) || board[column][row] != null) {
+			if (cell == NO_CELL) {
+				return -steps;
+			}
+			c = getCol(cell);
+			r = getRow(cell);
+			if (c == col && r == row) {
+				return -steps;
+			}
+			if (getObjectAt(cell) != null) {
 				return steps;
 			}
 		}
 	}
 
-	public int distanceToObject(Location l, int d) {
-		return distance(l.getRow(), l.getCol(), d);
+	// The lines of sight of the field, worked out from the whole board the
+	// first time they are needed. A field is not changed while the animals
+	// are looking at it, so tiles run in parallel can share them.
+	private LineOfSight lineOfSight() {
+		LineOfSight current = sight;
+		if (current != null) {
+			return current;
+		}
+		synchronized (this) {
+			if (sight == null) {
+				LineOfSight lines = new LineOfSight(width, height, wrap);
+				lines.fill(board);
+				sight = lines;
+			}
+			return sight;
+		}
 	}
 
 	/**
@@ -1,9 +1,21 @@
 
 
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Arrays;
 import processing.core.*;
 
+/**
+ * Draws a field as a grid of colored cells.
+ *
+ * By default the cells are drawn into an offscreen image that is kept from
+ * frame to frame: each frame only the pixels of cells whose color has
+ * changed are rewritten, and the image is then drawn with a single call.
+ * Given the {@link DirtyBlocks} changed since the last frame, only the cells
+ * in them are looked at, so a frame in which little has changed costs
+ * little however big the field is. This keeps large fields at interactive
+ * frame rates. The original mode,
+ * one rect per cell every frame, can be chosen with
+ * {@link #setIncremental(boolean)}.
+ */
 public class FieldDisplay {
     // Colors used for empty locations.
     private static final int EMPTY_COLOR = 0xFFFFFFFF;
@@ -11,6 +23,20 @@ public class FieldDisplay {
     // Color used for objects that have no defined color.
     private static final int UNKNOWN_COLOR = 0x66666666;
 
+    /**
+     * The usual color of each species, indexed by species code (0xAARRGGBB);
+     * species without a color of their own are drawn in UNKNOWN_COLOR.
+     */
+    static final int[] SPECIES_COLORS = speciesColors(EMPTY_COLOR, 0xFF9B9B9B, 0xFFC800FF,
+            0xFF00C800);
+
+    private static int[] speciesColors(int... known) {
+        int[] colors = new int[Math.max(Species.COUNT, known.length)];
+        Arrays.fill(colors, UNKNOWN_COLOR);
+        System.arraycopy(known, 0, colors, 0, known.length);
+        return colors;
+    }
+
     private PApplet p;  // the applet we want to display on
     private Field f;    // the field object we'll be displaying
     private int x, y, w, h; // (x, y) of upper left corner of display
@@ -18,9 +44,23 @@ public class FieldDisplay {
     private float dx, dy;  // calculate the width and height of each box
     // in the field display using the size of the field
     // and the width and height of the display
-    
-    // A map for storing colors for participants in the simulation
-    private Map<Class, Integer> colors;
+
+    // The color of each species, and which of them have been given one.
+    private int[] speciesColors = new int[Species.COUNT];
+    private boolean[] speciesColorSet = new boolean[Species.COUNT];
+
+    // Whether only changed cells are drawn, into the image below.
+    private boolean incremental = true;
+
+    // The field as it was last drawn: the image, the color of every cell
+    // in it, and how many pixels wide and high each cell is in the image.
+    private PImage image;
+    private int[] shown;
+    private int cellPixels;
+    private boolean redrawAll;
+
+    // The columns and rows of the cells updated in the current frame.
+    private int minCol, maxCol, minRow, maxRow;
 
     public FieldDisplay(PApplet p, Simulator s) {
         this(p, s.getField());
@@ -41,48 +81,174 @@ public class FieldDisplay {
 
         this.dx = w / f.getWidth();
         this.dy = h / f.getHeight();
-
-        colors = new LinkedHashMap<Class, Integer>();
     }
 
     public void drawField(Field f) {
-        Object animal;
-        Integer animalColor;
+        drawField(f, null);
+    }
+
+    /**
+     * Draw a field, looking only at the cells that may have changed.
+     * @param f The field.
+     * @param changes The blocks changed since the last frame, e.g. as tracked
+     *                by {@link SimulationEngine#trackChanges(DirtyBlocks)},
+     *                or null to look at every cell.
+     */
+    public void drawField(Field f, DirtyBlocks changes) {
+        if (incremental) {
+            drawChangedCells(f, null, changes, f.getWidth(), f.getHeight());
+        } else {
+            drawAllCells(f);
+        }
+    }
+
+    /**
+     * Draw a field given as the species code of every cell, such as a
+     * {@link SimulationThread.Frame}.
+     * @param cells The species code of every cell, row by row.
+     * @param width The width of the field.
+     * @param height The height of the field.
+     */
+    public void drawSpecies(byte[] cells, int width, int height) {
+        drawSpecies(cells, width, height, null);
+    }
+
+    /**
+     * Draw a field given as the species code of every cell, looking only at
+     * the cells that may have changed.
+     * @param cells The species code of every cell, row by row.
+     * @param width The width of the field.
+     * @param height The height of the field.
+     * @param changes The blocks changed since the last frame, such as those of
+     *                the {@link SimulationThread.Frame}s since then, or null
+     *                to look at every cell.
+     */
+    public void drawSpecies(byte[] cells, int width, int height, DirtyBlocks changes) {
+        if (incremental) {
+            drawChangedCells(null, cells, changes, width, height);
+        } else {
+            for (int col = 0; col < width; col++) {
+                for (int row = 0; row < height; row++) {
+                    p.fill(speciesColor(cells[row * width + col]));
+                    p.rect(x + col * dx, y + row * dy, dx, dy);
+                }
+            }
+        }
+    }
+
+    // Draw every cell as a rect.
+    private void drawAllCells(Field f) {
         for (int i = 0; i < f.getWidth(); i++) {
             for (int j = 0; j < f.getHeight(); j++) {
-                animal = f.getObjectAt(i, j);
-                if (animal != null) {
-                    animalColor = getColor(animal.getClass());
-                    p.fill(animalColor);
-                    
-                } else {
-                    p.fill(this.EMPTY_COLOR);
-                }
+                p.fill(colorOf(f.getObjectAt(i, j)));
                 p.rect(x + i * dx, y + j * dy, dx, dy);
             }
         }
     }
 
+    // Update the cells of the image that have changed since the last frame
+    // and draw the image. The cells come from the field, or if that is null
+    // from the species codes. Only the blocks of cells in changes are looked
+    // at, unless it is null or everything has to be drawn again.
+    private void drawChangedCells(Field f, byte[] cells, DirtyBlocks changes, int width,
+            int height) {
+        if (image == null || shown.length != width * height) {
+            // Cells are blocks of pixels if the display is bigger than the
+            // field, or single pixels scaled down if it is smaller.
+            cellPixels = Math.max(1, (int) Math.min(dx, dy));
+            image = p.createImage(width * cellPixels, height * cellPixels, PApplet.RGB);
+            shown = new int[width * height];
+            redrawAll = true;
+        }
+
+        image.loadPixels();
+        minCol = width;
+        maxCol = -1;
+        minRow = height;
+        maxRow = -1;
+        if (redrawAll || changes == null || changes.cells() != width * height) {
+            for (int cell = 0; cell < width * height; cell++) {
+                updateCell(f, cells, cell, width);
+            }
+        } else {
+            for (int n = 0; n < changes.count(); n++) {
+                int block = changes.changedBlock(n);
+                int first = changes.firstCell(block);
+                int end = first + changes.blockLength(block);
+                for (int cell = first; cell < end; cell++) {
+                    updateCell(f, cells, cell, width);
+                }
+            }
+        }
+        redrawAll = false;
+        if (maxCol >= 0) {
+            image.updatePixels(minCol * cellPixels, minRow * cellPixels,
+                    (maxCol - minCol + 1) * cellPixels, (maxRow - minRow + 1) * cellPixels);
+        }
+
+        // Cover the same area as drawing every cell as a rect would.
+        float drawWidth = dx >= 1 ? width * dx : w;
+        float drawHeight = dy >= 1 ? height * dy : h;
+        p.image(image, x, y, drawWidth, drawHeight);
+    }
+
+    // Rewrite the pixels of a cell if its color has changed, and widen the
+    // area to update to take it in.
+    private void updateCell(Field f, byte[] cells, int cell, int width) {
+        int color = f != null ? colorOf(f.getObjectAt(cell)) : speciesColor(cells[cell]);
+        if (color == shown[cell] && !redrawAll) {
+            return;
+        }
+        shown[cell] = color;
+        int row = cell / width;
+        int col = cell - row * width;
+        int imageWidth = width * cellPixels;
+        int[] pixels = image.pixels;
+        int first = row * cellPixels * imageWidth + col * cellPixels;
+        for (int py = 0; py < cellPixels; py++) {
+            int start = first + py * imageWidth;
+            Arrays.fill(pixels, start, start + cellPixels, color);
+        }
+        minCol = Math.min(minCol, col);
+        maxCol = Math.max(maxCol, col);
+        minRow = Math.min(minRow, row);
+        maxRow = Math.max(maxRow, row);
+    }
+
+    // The color of whatever is in a cell.
+    private int colorOf(Object obj) {
+        return speciesColor(Species.of(obj));
+    }
+
+    // The color of a species code.
+    private int speciesColor(byte species) {
+        if (species == Species.EMPTY) {
+            return EMPTY_COLOR;
+        }
+        return speciesColorSet[species] ? speciesColors[species] : UNKNOWN_COLOR;
+    }
+
     /**
-     * Define a color to be used for a given class of animal.
-     * @param animalClass The animal's Class object.
-     * @param color The color to be used for the given class.
+     * Choose how the field is drawn.
+     * @param incremental true to redraw only the cells that have changed,
+     *                    false to draw every cell as a rect every frame.
      */
-    public void setColor(Class animalClass, Integer color) {
-        colors.put(animalClass, color);
+    public void setIncremental(boolean incremental) {
+        this.incremental = incremental;
+        redrawAll = true;
     }
 
     /**
-     * @return The color to be used for a given class of animal.
+     * Define a color to be used for a species.
+     * @param species The species code.
+     * @param color The color to be used for the species.
      */
-    private Integer getColor(Class animalClass) {
-        Integer col = colors.get(animalClass);
-        if (col == null) {  // no color defined for this class
-            return UNKNOWN_COLOR;
-        } else {
-            return col;
-        }
+    public void setColor(byte species, int color) {
+        speciesColors[species] = color;
+        speciesColorSet[species] = true;
+        redrawAll = true;
     }
+
     
 	public Location gridLocationAt(float mx, float my) {
 		if (mx > x && mx < x + w && my > y && my < y+h) {
@@ -1,93 +1,106 @@
-
-
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-
-import processing.core.PApplet;
+import java.util.Arrays;
 
 /**
- * This class collects and provides some statistical data on the state 
- * of a field. It is flexible: it will create and maintain a counter 
- * for any class of object that is found within the field.
- * 
+ * This class collects and provides some statistical data on the state
+ * of a field. The number of animals of each species is kept up to date
+ * as animals are born and die, so reading it costs nothing; only
+ * {@link #generateCounts(Field)} and {@link #countAll(Population)}
+ * look at every cell or animal, and they are only needed after the
+ * whole state of the simulation has been replaced.
+ *
  * @author David J. Barnes and Michael Kolling. Modified by David Dobervich 2007-2013
  * @version 2006.03.30
  */
 public class FieldStats {
 
-    // Current counts for all object types
-    // DANGER PUBLIC THING!  
-    private HashMap<Class, Counter> counts;
+    // Current number of animals of each species, indexed by species code.
+    private long[] counts;
 
-    private boolean countsValid = false;
+    // Totals since the last reset, indexed by species code.
+    private long[] births;
+    private long[] deaths;
+    private long[] eaten;
 
     /**
      * Construct a FieldStats object.
      */
     public FieldStats()
     {
-        // Set up a collection for counters for each type of animal that
-        // we might find
-        counts = new HashMap<Class, Counter>();
+        counts = new long[Species.COUNT];
+        births = new long[Species.COUNT];
+        deaths = new long[Species.COUNT];
+        eaten = new long[Species.COUNT];
     }
 
     /**
      * Get details of what is in the field.
      * @return A string describing what is in the field.
      */
-    public String getPopulationDetails(Field field)
+    public String getPopulationDetails()
     {
-        StringBuffer buffer = new StringBuffer();
-        if(!countsValid) {
-            generateCounts(field);
-        }
-        for(Class key : counts.keySet()) {
-            Counter info = counts.get(key);
-            buffer.append(info.getName());
+        StringBuilder buffer = new StringBuilder();
+        for(byte species = 1; species < Species.COUNT; species++) {
+            buffer.append(Species.nameOf(species));
             buffer.append(": ");
-            buffer.append(info.getCount());
+            buffer.append(counts[species]);
             buffer.append(' ');
         }
         return buffer.toString();
     }
-    
+
     /**
-     * Invalidate the current set of statistics; reset all 
-     * counts to zero.
+     * Reset all counts and totals to zero.
      */
     public void reset()
     {
-        countsValid = false;
-        for(Class key : counts.keySet()) {
-            Counter count = counts.get(key);
-            count.reset();
-        }
+        Arrays.fill(counts, 0);
+        Arrays.fill(births, 0);
+        Arrays.fill(deaths, 0);
+        Arrays.fill(eaten, 0);
     }
 
     /**
-     * Increment the count for one class of animal.
-     * @param animalClass The class of animal to increment.
+     * Increment the count for one species of animal.
+     * @param species The code of the species to increment.
      */
-    public void incrementCount(Class animalClass)
+    public void incrementCount(byte species)
     {
-        Counter count = counts.get(animalClass);
-        if(count == null) {
-            // We do not have a counter for this species yet.
-            // Create one.
-            count = new Counter(animalClass);
-            counts.put(animalClass, count);
-        }
+        counts[species]++;
+    }
 
-        count.increment();
+    /**
+     * Record that an animal has been born.
+     * @param species The code of the newborn's species.
+     */
+    public void recordBirth(byte species)
+    {
+        counts[species]++;
+        births[species]++;
     }
 
     /**
-     * Indicate that an animal count has been completed.
+     * Record that an animal has died.
+     * @param species The code of the dead animal's species.
+     * @param wasEaten Whether it was eaten, rather than dying of age,
+     *                 hunger or overcrowding.
      */
-    public void countFinished()
+    public void recordDeath(byte species, boolean wasEaten)
     {
-        countsValid = true;
+        counts[species]--;
+        deaths[species]++;
+        if(wasEaten) {
+            eaten[species]++;
+        }
+    }
+
+    /**
+     * Record that an animal has been taken out of the simulation
+     * by hand, e.g. by clicking on it.
+     * @param species The code of the removed animal's species.
+     */
+    public void recordRemoval(byte species)
+    {
+        counts[species]--;
     }
 
     /**
@@ -95,29 +108,22 @@ public class FieldStats {
      * I.e., should it continue to run.
      * @return true If there is more than one species alive.
      */
-    public boolean isViable(Field field)
+    public boolean isViable()
     {
         // How many counts are non-zero.
         int nonZero = 0;
-        if(!countsValid) {
-            generateCounts(field);
-        }
-
-        for(Class key : counts.keySet()) {
-            Counter info = counts.get(key);
-            if(info.getCount() > 0) {
+        for(int species = 1; species < Species.COUNT; species++) {
+            if(counts[species] > 0) {
                 nonZero++;
             }
         }
-
         return nonZero > 1;
     }
-    
+
     /**
-     * Generate counts of the number of foxes and rabbits.
-     * These are not kept up to date as foxes and rabbits
-     * are placed in the field, but only when a request
-     * is made for the information.
+     * Recount the animals of each species by scanning every cell
+     * of a field. This costs time proportional to the size of the
+     * field, so it is not done every step.
      * @param field The field to generate the stats for.
      */
     public void generateCounts(Field field)
@@ -127,14 +133,45 @@ public class FieldStats {
             for(int col = 0; col < field.getWidth(); col++) {
                 Object animal = field.getObjectAt(col, row);
                 if(animal != null) {
-                    incrementCount(animal.getClass());
+                    incrementCount(Species.of(animal));
                 }
             }
         }
-        countsValid = true;
     }
-    
-    public Collection<Counter> getCounts() {
-    	return this.counts.values();
+
+    /**
+     * Recount the animals of each species in a population.
+     * @param animals The live animals of the simulation.
+     */
+    public void countAll(Population animals)
+    {
+        reset();
+        for(int i = 0; i < animals.size(); i++) {
+            incrementCount(animals.get(i).getSpecies());
+        }
+    }
+
+    /**
+     * @param species A species code.
+     * @return The current number of animals of that species.
+     */
+    public long getCount(byte species)
+    {
+        return counts[species];
+    }
+
+    public long getBirths(byte species)
+    {
+        return births[species];
+    }
+
+    public long getDeaths(byte species)
+    {
+        return deaths[species];
+    }
+
+    public long getEaten(byte species)
+    {
+        return eaten[species];
     }
-}
\ No newline at end of file
+}
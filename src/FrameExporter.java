@@ -0,0 +1,337 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Turns the states of a field into image frames without a display, e.g. to
+ * make a video of a long batch run. Registered as a {@link StepListener}, it
+ * takes a frame every so many steps and either saves it as a PNG file or
+ * writes it as raw 24-bit RGB to a stream, such as the input of ffmpeg:
+ *
+ * <pre>
+ * java FrameExporter raw - 400 400 100000 10 2 | ffmpeg -f rawvideo -pix_fmt rgb24 -s 800x800 -i - run.mp4
+ * </pre>
+ *
+ * On the simulation thread a frame is only the species code of each cell.
+ * Coloring, scaling, encoding and writing happen on a background thread. If
+ * that thread falls behind, frames are skipped rather than making the
+ * simulation wait; {@link #getSkippedFrames()} says how many.
+ */
+public class FrameExporter implements StepListener {
+	/** How frames are written */
+	public enum Format {
+		/** One indexed-color PNG file per frame */
+		PNG,
+		/** Raw frames of 3 bytes (red, green, blue) per pixel, one after another */
+		RAW_RGB
+	}
+
+	/** How many frames may be waiting to be written */
+	public static final int QUEUE_FRAMES = 8;
+
+	// A frame waiting to be written: the step and the species of every cell.
+	private static class Frame {
+		int step;
+		byte[] cells;
+	}
+
+	// Tells the writer to finish.
+	private static final Frame END = new Frame();
+
+	private final Format format;
+	private final File directory;
+	private final OutputStream out;
+	private final int every;
+	private final int cellPixels;
+	private final int[] colors = FieldDisplay.SPECIES_COLORS.clone();
+
+	private int width, height;
+	private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<Frame>(QUEUE_FRAMES);
+	// Frames that have been written and can be filled again.
+	private final BlockingQueue<Frame> spare = new ArrayBlockingQueue<Frame>(QUEUE_FRAMES + 1);
+	private final Thread writer;
+	private volatile IOException failure;
+	private volatile int framesWritten;
+	private int framesSkipped;
+
+	/**
+	 * Save frames as PNG files named frame-00000042.png after their step.
+	 *
+	 * @param directory
+	 *            The directory to save the files in; it is created if needed.
+	 * @param every
+	 *            Take a frame every this many steps.
+	 * @param cellPixels
+	 *            How many pixels wide and high each cell is.
+	 * @return The exporter, which has to be registered with an engine.
+	 * @throws IOException
+	 *             If the directory cannot be created.
+	 */
+	public static FrameExporter pngSequence(String directory, int every, int cellPixels)
+			throws IOException {
+		File dir = new File(directory);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("Cannot create " + directory);
+		}
+		return new FrameExporter(Format.PNG, dir, null, every, cellPixels);
+	}
+
+	/**
+	 * Write frames as raw RGB to a stream, e.g. a pipe to a video encoder.
+	 *
+	 * @param out
+	 *            Where to write the frames; closed by {@link #close()}.
+	 * @param every
+	 *            Take a frame every this many steps.
+	 * @param cellPixels
+	 *            How many pixels wide and high each cell is.
+	 * @return The exporter, which has to be registered with an engine.
+	 */
+	public static FrameExporter rawVideo(OutputStream out, int every, int cellPixels) {
+		return new FrameExporter(Format.RAW_RGB, null,
+				new BufferedOutputStream(out, 1 << 16), every, cellPixels);
+	}
+
+	private FrameExporter(Format format, File directory, OutputStream out, int every,
+			int cellPixels) {
+		if (every <= 0 || cellPixels <= 0) {
+			throw new IllegalArgumentException("every and cellPixels must be positive");
+		}
+		this.format = format;
+		this.directory = directory;
+		this.out = out;
+		this.every = every;
+		this.cellPixels = cellPixels;
+		writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					writeFrames();
+				} catch (IOException e) {
+					failure = e;
+				} catch (InterruptedException e) {
+					failure = new IOException("Export was interrupted");
+				}
+			}
+		}, "frame-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Change the color of a species. Call it before the first frame is
+	 * taken.
+	 *
+	 * @param species
+	 *            A species code, or Species.EMPTY for empty cells.
+	 * @param color
+	 *            The color as 0xRRGGBB; any alpha is ignored.
+	 */
+	public void setColor(byte species, int color) {
+		colors[species] = color;
+	}
+
+	/**
+	 * Take a frame if the step is one of those wanted.
+	 */
+	public void stepCompleted(SimulationEngine engine) {
+		if (engine.getStep() % every == 0) {
+			capture(engine.getStep(), engine.getField());
+		}
+	}
+
+	/**
+	 * Take a frame of a field now, unless the writer is too far behind.
+	 *
+	 * @param step
+	 *            The step the field belongs to.
+	 * @param field
+	 *            The field.
+	 */
+	public void capture(int step, Field field) {
+		if (failure != null) {
+			return;
+		}
+		if (width == 0) {
+			width = field.getWidth();
+			height = field.getHeight();
+		} else if (field.getWidth() != width || field.getHeight() != height) {
+			throw new IllegalArgumentException("All frames must be " + width + "x" + height);
+		}
+
+		Frame frame = spare.poll();
+		if (frame == null) {
+			frame = new Frame();
+			frame.cells = new byte[width * height];
+		}
+		frame.step = step;
+		for (int i = 0; i < frame.cells.length; i++) {
+			frame.cells[i] = Species.of(field.getObjectAt(i));
+		}
+		if (!queue.offer(frame)) {
+			framesSkipped++;
+			spare.offer(frame);
+		}
+	}
+
+	// Run by the writer thread.
+	private void writeFrames() throws IOException, InterruptedException {
+		BufferedImage image = null;
+		byte[] pixels = null;
+		try {
+			while (true) {
+				Frame frame = queue.take();
+				if (frame == END) {
+					return;
+				}
+				int imageWidth = width * cellPixels;
+				int imageHeight = height * cellPixels;
+				if (format == Format.PNG) {
+					if (image == null) {
+						image = new BufferedImage(imageWidth, imageHeight,
+								BufferedImage.TYPE_BYTE_INDEXED, palette());
+						pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+					}
+					// One byte per pixel: the species code indexes the palette.
+					scale(frame.cells, pixels, 1, null);
+					String name = String.format("frame-%08d.png", frame.step);
+					ImageIO.write(image, "png", new File(directory, name));
+				} else {
+					if (pixels == null) {
+						pixels = new byte[imageWidth * imageHeight * 3];
+					}
+					scale(frame.cells, pixels, 3, colors);
+					out.write(pixels);
+				}
+				framesWritten++;
+				spare.offer(frame);
+			}
+		} finally {
+			if (out != null) {
+				out.close();
+			}
+		}
+	}
+
+	// Fill an image, bytesPerPixel bytes per pixel, from the cells of a
+	// frame: either the species code itself, or its color as RGB.
+	private void scale(byte[] cells, byte[] pixels, int bytesPerPixel, int[] rgb) {
+		int rowBytes = width * cellPixels * bytesPerPixel;
+		for (int row = 0; row < height; row++) {
+			int start = row * cellPixels * rowBytes;
+			int p = start;
+			for (int col = 0; col < width; col++) {
+				byte species = cells[row * width + col];
+				for (int k = 0; k < cellPixels; k++) {
+					if (rgb == null) {
+						pixels[p++] = species;
+					} else {
+						int color = rgb[species];
+						pixels[p++] = (byte) (color >> 16);
+						pixels[p++] = (byte) (color >> 8);
+						pixels[p++] = (byte) color;
+					}
+				}
+			}
+			// The other pixel rows of the cells are copies of the first.
+			for (int k = 1; k < cellPixels; k++) {
+				System.arraycopy(pixels, start, pixels, start + k * rowBytes, rowBytes);
+			}
+		}
+	}
+
+	private IndexColorModel palette() {
+		byte[] r = new byte[colors.length];
+		byte[] g = new byte[colors.length];
+		byte[] b = new byte[colors.length];
+		for (int i = 0; i < colors.length; i++) {
+			r[i] = (byte) (colors[i] >> 16);
+			g[i] = (byte) (colors[i] >> 8);
+			b[i] = (byte) colors[i];
+		}
+		return new IndexColorModel(8, colors.length, r, g, b);
+	}
+
+	/**
+	 * Write out the frames still waiting and stop. Waits for the writer.
+	 *
+	 * @throws IOException
+	 *             If any frame could not be written.
+	 */
+	public void close() throws IOException {
+		try {
+			while (failure == null && !queue.offer(END, 100, TimeUnit.MILLISECONDS)) {
+			}
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the export");
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	public int getWrittenFrames() {
+		return framesWritten;
+	}
+
+	/**
+	 * @return How many frames were dropped because the writer was behind.
+	 */
+	public int getSkippedFrames() {
+		return framesSkipped;
+	}
+
+	/**
+	 * Render a batch run without a display.
+	 *
+	 * Usage: FrameExporter (png directory | raw file) width height steps
+	 * [every [cellPixels [seed]]]
+	 *
+	 * With raw, a file of "-" means standard output.
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 5) {
+			System.err.println("Usage: FrameExporter (png directory | raw file) width height"
+					+ " steps [every [cellPixels [seed]]]");
+			return;
+		}
+		int width = Integer.parseInt(args[2]);
+		int height = Integer.parseInt(args[3]);
+		int steps = Integer.parseInt(args[4]);
+		int every = args.length > 5 ? Integer.parseInt(args[5]) : 1;
+		int cellPixels = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+		long seed = args.length > 7 ? Long.parseLong(args[7]) : new Random().nextLong();
+
+		FrameExporter exporter;
+		if (args[0].equals("png")) {
+			exporter = pngSequence(args[1], every, cellPixels);
+		} else {
+			OutputStream stream = args[1].equals("-") ? System.out : new FileOutputStream(args[1]);
+			exporter = rawVideo(stream, every, cellPixels);
+		}
+
+		SimulationEngine engine = new SimulationEngine(width, height, seed);
+		engine.addStepListener(exporter);
+		long start = System.nanoTime();
+		int done = engine.simulate(steps);
+		exporter.close();
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		// Standard output may be carrying the video, so report on standard error.
+		System.err.println("Ran " + done + " steps in " + seconds + " s, wrote "
+				+ exporter.getWrittenFrames() + " frames of " + width * cellPixels + "x"
+				+ height * cellPixels + ", skipped " + exporter.getSkippedFrames());
+	}
+}
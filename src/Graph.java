@@ -1,5 +1,4 @@
 import java.util.HashMap;
-import java.util.Set;
 import processing.core.PApplet;
 import processing.core.PFont;
 
@@ -25,11 +24,17 @@ public class Graph {
 	// DataSets for all past numbers of animals at any timestep
 	private HashMap<Object, ScaledDataSet> dataSets;
 	private HashMap<Object, Integer> colorMap;
+	// The same data sets and their colors as arrays, so that drawing a frame
+	// needs no iterators or boxed colors.
+	private ScaledDataSet[] plotted = new ScaledDataSet[0];
+	private int[] plottedColors = new int[0];
 	private static int[] defaultColors;
 	private int nextColor = 0;
 	public boolean drawLines = false;
 	public boolean drawPoints = true;
 	public int pointsize = 3;
+	// The most points kept per data set; set before plotting.
+	public int capacity = ScaledDataSet.DEFAULT_CAPACITY;
 	
 	// labels etc.
 	public String xlabel;
@@ -100,18 +105,42 @@ public class Graph {
 		drawXIncrementLabels();
 		drawYIncrementLabels();
 
-		for (Object f : dataSets.keySet()) {
-			d = dataSets.get(f);
-			c = this.colorMap.get(f);
+		// Draw each pixel column once, however many points fall in it: a
+		// vertical line from its lowest to its highest point, joined to the
+		// column before by its first point.
+		for (int k = 0; k < plotted.length; k++) {
+			d = plotted[k];
+			c = plottedColors[k];
 			graphicsWindow.fill(c); // change the color
 			graphicsWindow.stroke(c); // change the color
-			for (int i = 1; i < d.getSize(); i++) {
+			boolean havePrevious = false;
+			float previousX = 0;
+			float previousY = 0;
+			int columns = d.getColumns();
+			for (int col = 0; col < columns; col++) {
+				if (d.getColumnPoints(col) == 0) {
+					continue;
+				}
+				float x = d.getColumnX(col);
+				float low = d.getColumnMin(col);
+				float high = d.getColumnMax(col);
 				if (drawLines) {
-					graphicsWindow.line(d.getx(i - 1), d.gety(i - 1), d.getx(i), d.gety(i));
+					if (havePrevious) {
+						graphicsWindow.line(previousX, previousY, x, d.getColumnFirst(col));
+					}
+					if (low != high) {
+						graphicsWindow.line(x, low, x, high);
+					}
 				}
 				if (drawPoints) {
-					graphicsWindow.ellipse(d.getx(i), d.gety(i), pointsize, pointsize);
+					graphicsWindow.ellipse(x, low, pointsize, pointsize);
+					if (low != high) {
+						graphicsWindow.ellipse(x, high, pointsize, pointsize);
+					}
 				}
+				havePrevious = true;
+				previousX = x;
+				previousY = d.getColumnLast(col);
 			}
 		}
 		graphicsWindow.stroke(0);
@@ -235,7 +264,7 @@ public class Graph {
 			ScaledDataSet d = dataSets.get(key);
 			d.addPoint(x, y);
 		} else {
-			ScaledDataSet d = new ScaledDataSet();
+			ScaledDataSet d = new ScaledDataSet(capacity);
 			d.setxScaling(dataxmin, xmin, dataxmax, xmax);
 			d.setyScaling(dataymin, ymin, dataymax, ymax);
 			d.addPoint(x, y);
@@ -243,26 +272,33 @@ public class Graph {
 			if (!colorMap.containsKey(key)) {
 				colorMap.put(key, this.getNextColor());
 			}
+			updatePlotted();
 		}
 	}
 
-	// Clear all data sets. Re-create them empty
+	// Clear all data sets, keeping them for reuse
 	// with the current scaling factors.
 	private void clearData() {
-		ScaledDataSet d;
-		Set s = dataSets.keySet();
-
-		dataSets.clear();
-
-		for (Object f : s) {
-			d = new ScaledDataSet();
+		for (ScaledDataSet d : dataSets.values()) {
+			d.clear();
 			d.setxScaling(dataxmin, xmin, dataxmax, xmax);
 			d.setyScaling(dataymin, ymin, dataymax, ymax);
-			dataSets.put(f, d);
 		}
 		cleardata = false;
 	}
 
+	// Rebuild the arrays used for drawing after a data set or color changes.
+	private void updatePlotted() {
+		plotted = new ScaledDataSet[dataSets.size()];
+		plottedColors = new int[plotted.length];
+		int k = 0;
+		for (Object key : dataSets.keySet()) {
+			plotted[k] = dataSets.get(key);
+			plottedColors[k] = colorMap.get(key);
+			k++;
+		}
+	}
+
 	private int getNextColor() {
 		int i = defaultColors[nextColor];
 		nextColor = (nextColor + 1) % defaultColors.length;
@@ -286,15 +322,16 @@ public class Graph {
 	}
 
 	/**
-	 * Define a color to be used for a given class of animal.
+	 * Define a color to be used for a given data set, e.g. a species.
 	 * 
-	 * @param animalClass
-	 *          The animal's Class object.
+	 * @param key
+	 *          The key the data set is plotted under.
 	 * @param color
-	 *          The color to be used for the given class.
+	 *          The color to be used for the given data set.
 	 */
-	public void setColor(Class animalClass, Integer color) {
-		colorMap.put(animalClass, color);
+	public void setColor(Object key, Integer color) {
+		colorMap.put(key, color);
+		updatePlotted();
 	}
 
 	public void clear() {
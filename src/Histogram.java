@@ -0,0 +1,136 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of non-negative values such as durations in nanoseconds or
+ * bytes, in the style of HdrHistogram: each power of two is split into
+ * {@link #SUB_BUCKETS} equal buckets, so any value from 0 up to
+ * Long.MAX_VALUE is kept to within an eighth of itself in a fixed 488 counts.
+ *
+ * Recording is a couple of atomic increments and never allocates, so it may
+ * be done from any thread while others read the histogram.
+ */
+public class Histogram {
+	// Each power of two is split into 2^SUB_BITS buckets.
+	private static final int SUB_BITS = 3;
+
+	/** The number of buckets each power of two is split into */
+	public static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+	// Values below SUB_BUCKETS have a bucket each; every power of two above
+	// that has SUB_BUCKETS.
+	private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong sum = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	// The bucket a value falls in.
+	static int bucketOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) Math.max(value, 0);
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+	}
+
+	// The smallest value in a bucket.
+	static long lowestIn(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int exponent = bucket / SUB_BUCKETS - 1 + SUB_BITS;
+		long sub = bucket % SUB_BUCKETS;
+		return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+	}
+
+	// The largest value in a bucket.
+	static long highestIn(int bucket) {
+		return bucket == BUCKETS - 1 ? Long.MAX_VALUE : lowestIn(bucket + 1) - 1;
+	}
+
+	/**
+	 * Count a value.
+	 *
+	 * @param value
+	 *            The value; negative values are counted as 0.
+	 */
+	public void record(long value) {
+		value = Math.max(value, 0);
+		counts.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+		long highest;
+		while (value > (highest = max.get()) && !max.compareAndSet(highest, value)) {
+		}
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	public long getSum() {
+		return sum.get();
+	}
+
+	public long getMax() {
+		return max.get();
+	}
+
+	public double getMean() {
+		long n = count.get();
+		return n == 0 ? 0 : (double) sum.get() / n;
+	}
+
+	/**
+	 * @param percentile
+	 *            A percentile from 0 to 100.
+	 * @return A value that at least that percentage of the values are no
+	 *         larger than, to within the precision of the histogram, or 0 if
+	 *         nothing has been recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long wanted = Math.max(1, (long) Math.ceil(n * Math.min(percentile, 100) / 100));
+		long seen = 0;
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			seen += counts.get(bucket);
+			if (seen >= wanted) {
+				return Math.min(highestIn(bucket), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * @param limit
+	 *            A power of two, or any value (then rounded down to the start
+	 *            of its bucket).
+	 * @return The number of values recorded that are less than the limit.
+	 */
+	public long getCountBelow(long limit) {
+		long below = 0;
+		for (int bucket = 0; bucket < BUCKETS && highestIn(bucket) < limit; bucket++) {
+			below += counts.get(bucket);
+		}
+		return below;
+	}
+
+	/**
+	 * Forget everything recorded. Values recorded at the same time from other
+	 * threads may be partly forgotten.
+	 */
+	public void reset() {
+		for (int bucket = 0; bucket < BUCKETS; bucket++) {
+			counts.set(bucket, 0);
+		}
+		count.set(0);
+		sum.set(0);
+		max.set(0);
+	}
+}
@@ -0,0 +1,256 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Answers "what is the first thing I see looking this way?" for a
+ * {@link Field} without walking the cells in between.
+ *
+ * The occupied cells are kept four times over, once for each way a line
+ * can run through the grid: along the rows, down the columns, and along
+ * both kinds of diagonal. In each copy the cells of one line come one after
+ * another, so the nearest occupied cell in a direction is the next (or the
+ * previous) set bit within that line, which is found a 64-cell word at a
+ * time. The words at the ends of a line are masked, so a look never reads
+ * more than the words of its own line.
+ *
+ * The field keeps the lines up to date as cells are emptied and filled, four
+ * bits a time, so looking never has to go over the whole field again. The
+ * words are atomic, like the field's occupancy bits, because tiles stepped
+ * in parallel may share a word.
+ *
+ * Lines are numbered as follows, for a field w wide and h high:
+ *
+ * <pre>
+ * ROWS      line row,               position col
+ * COLUMNS   line col,               position row
+ * DIAGONALS line col - row + h - 1, position along it from the top left
+ * ANTI      line col + row,         position along it from the left
+ * </pre>
+ *
+ * On a field whose edges wrap around, rows and columns are searched round
+ * to their other end. A diagonal of such a field carries on along another
+ * diagonal line, so the field walks those instead of asking here.
+ */
+class LineOfSight {
+	// The ways lines run.
+	private static final int ROWS = 0;
+	private static final int COLUMNS = 1;
+	private static final int DIAGONALS = 2;
+	private static final int ANTI = 3;
+
+	// For each direction N to NW: the way its lines run, and whether it looks
+	// towards higher positions.
+	private static final int[] ORIENTATION = { COLUMNS, ANTI, ROWS, DIAGONALS, COLUMNS,
+			ANTI, ROWS, DIAGONALS };
+	private static final boolean[] FORWARD = { false, true, true, true, true, false,
+			false, false };
+
+	private final int width, height;
+	private final boolean wrap;
+
+	// The occupied cells, one set of bits per way lines run, and where each
+	// line starts in it.
+	private final AtomicLongArray[] occupied = new AtomicLongArray[4];
+	private final int[][] lineStart = new int[4][];
+
+	LineOfSight(int width, int height, boolean wrap) {
+		this.width = width;
+		this.height = height;
+		this.wrap = wrap;
+		int cells = width * height;
+		for (int o = 0; o < 4; o++) {
+			occupied[o] = new AtomicLongArray((cells + 63) >>> 6);
+		}
+		lineStart[ROWS] = new int[height + 1];
+		for (int row = 0; row <= height; row++) {
+			lineStart[ROWS][row] = row * width;
+		}
+		lineStart[COLUMNS] = new int[width + 1];
+		for (int col = 0; col <= width; col++) {
+			lineStart[COLUMNS][col] = col * height;
+		}
+		int diagonals = width + height - 1;
+		lineStart[DIAGONALS] = new int[diagonals + 1];
+		lineStart[ANTI] = new int[diagonals + 1];
+		for (int line = 0; line < diagonals; line++) {
+			lineStart[DIAGONALS][line + 1] = lineStart[DIAGONALS][line]
+					+ diagonalLength(line - (height - 1));
+			lineStart[ANTI][line + 1] = lineStart[ANTI][line] + antiLength(line);
+		}
+	}
+
+	// The number of cells on the diagonal where col - row = d.
+	private int diagonalLength(int d) {
+		return Math.min(width - Math.max(d, 0), height - Math.max(-d, 0));
+	}
+
+	// The number of cells on the anti-diagonal where col + row = s.
+	private int antiLength(int s) {
+		return Math.min(s, width - 1) - Math.max(0, s - (height - 1)) + 1;
+	}
+
+	/**
+	 * Record which cells of a board are occupied, forgetting the last board.
+	 *
+	 * @param board
+	 *            The cells of a field of this size, row by row.
+	 */
+	void fill(Object[] board) {
+		clear();
+		int i = 0;
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++, i++) {
+				if (board[i] != null) {
+					set(col, row, true);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Forget every occupied cell.
+	 */
+	void clear() {
+		for (int o = 0; o < 4; o++) {
+			AtomicLongArray bits = occupied[o];
+			for (int w = 0; w < bits.length(); w++) {
+				if (bits.get(w) != 0) {
+					bits.set(w, 0);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Record that a cell has been filled or emptied.
+	 *
+	 * @param col
+	 *            The column of the cell.
+	 * @param row
+	 *            The row of the cell.
+	 * @param full
+	 *            Whether anything is there now.
+	 */
+	void set(int col, int row, boolean full) {
+		int diagonal = col - row + height - 1;
+		int anti = col + row;
+		setBit(occupied[ROWS], row * width + col, full);
+		setBit(occupied[COLUMNS], col * height + row, full);
+		setBit(occupied[DIAGONALS], lineStart[DIAGONALS][diagonal] + Math.min(col, row), full);
+		setBit(occupied[ANTI], lineStart[ANTI][anti] + col - Math.max(0, anti - (height - 1)),
+				full);
+	}
+
+	private static void setBit(AtomicLongArray bits, int bit, boolean value) {
+		int word = bit >>> 6;
+		long mask = 1L << bit;
+		long old;
+		do {
+			old = bits.get(word);
+		} while (!bits.compareAndSet(word, old, value ? old | mask : old & ~mask));
+	}
+
+	// The first set bit from from up to but not including end, or -1.
+	private static int nextSetBit(AtomicLongArray bits, int from, int end) {
+		if (from >= end) {
+			return -1;
+		}
+		int w = from >>> 6;
+		int last = (end - 1) >>> 6;
+		long word = bits.get(w) & (-1L << from);
+		while (w < last) {
+			if (word != 0) {
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			word = bits.get(++w);
+		}
+		word &= -1L >>> (63 - ((end - 1) & 63));
+		return word != 0 ? (w << 6) + Long.numberOfTrailingZeros(word) : -1;
+	}
+
+	// The last set bit from start up to and including from, or -1.
+	private static int previousSetBit(AtomicLongArray bits, int from, int start) {
+		if (from < start) {
+			return -1;
+		}
+		int w = from >>> 6;
+		int first = start >>> 6;
+		long word = bits.get(w) & (-1L >>> (63 - (from & 63)));
+		while (w > first) {
+			if (word != 0) {
+				return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+			}
+			word = bits.get(--w);
+		}
+		word &= -1L << start;
+		return word != 0 ? (w << 6) + 63 - Long.numberOfLeadingZeros(word) : -1;
+	}
+
+	private int line(int orientation, int col, int row) {
+		switch (orientation) {
+		case ROWS:
+			return row;
+		case COLUMNS:
+			return col;
+		case DIAGONALS:
+			return col - row + height - 1;
+		default:
+			return col + row;
+		}
+	}
+
+	private int position(int orientation, int col, int row) {
+		switch (orientation) {
+		case ROWS:
+			return col;
+		case COLUMNS:
+			return row;
+		case DIAGONALS:
+			return Math.min(col, row);
+		default:
+			return col - Math.max(0, col + row - (height - 1));
+		}
+	}
+
+	/**
+	 * Look from a cell in a direction.
+	 *
+	 * @param col
+	 *            The column looked from.
+	 * @param row
+	 *            The row looked from.
+	 * @param direction
+	 *            One of Field.N to Field.NW.
+	 * @return How many steps away the nearest occupied cell is, or if there
+	 *         is none, minus the number of steps to go off the field (or when
+	 *         wrapping, to come back round to where the look started).
+	 */
+	int look(int col, int row, int direction) {
+		int o = ORIENTATION[direction];
+		int line = line(o, col, row);
+		int start = lineStart[o][line];
+		int end = lineStart[o][line + 1];
+		int here = start + position(o, col, row);
+		AtomicLongArray bits = occupied[o];
+		if (FORWARD[direction]) {
+			int seen = nextSetBit(bits, here + 1, end);
+			if (seen >= 0) {
+				return seen - here;
+			}
+			if (!wrap) {
+				return -(end - here);
+			}
+			seen = nextSetBit(bits, start, here);
+			return seen >= 0 ? end - here + seen - start : -(end - start);
+		} else {
+			int seen = previousSetBit(bits, here - 1, start);
+			if (seen >= 0) {
+				return here - seen;
+			}
+			if (!wrap) {
+				return -(here - start + 1);
+			}
+			seen = previousSetBit(bits, end - 1, here + 1);
+			return seen >= 0 ? here - start + end - seen : -(end - start);
+		}
+	}
+}
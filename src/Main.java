@@ -3,7 +3,11 @@ import processing.core.*;
 public class Main extends PApplet {
 	Simulator simulator;
 	String saveFilePath = "foxesAndRabbitsSaved.txt";
-	boolean paused = true;
+	// Steps a second when the simulation is slowed down; 0 for full speed.
+	double slowRate = 60;
+	// The port to serve metrics on at http://localhost:port/metrics, or -1 to
+	// only show them over JMX.
+	int metricsPort = -1;
 
 	@Override
 	public void setup() {
@@ -11,13 +15,15 @@ public class Main extends PApplet {
 
 		this.simulator = new Simulator(80, 60);
 		this.simulator.setGUI(this);
+		this.simulator.startMetrics(metricsPort);
+		// The simulation runs on its own thread; draw() only shows it.
+		this.simulator.start(true);
+		this.simulator.setTargetRate(slowRate);
 	}
 
 	@Override
 	public void draw() {
 		background(200);
-		if (!paused)
-			simulator.simulateOneStep();
 		simulator.drawField();
 		simulator.drawGraph();
 	}
@@ -33,7 +39,23 @@ public class Main extends PApplet {
 		}
 
 		if (key == 'p') { 				// 'p' toggles paused and unpaused
-			paused = !paused;
+			simulator.setPaused(!simulator.isPaused());
+		}
+
+		if (key == 'f') { 				// 'f' toggles full speed and slowRate
+			simulator.setTargetRate(simulator.getTargetRate() == 0 ? slowRate : 0);
+		}
+
+		if (key == '+' || key == '=') {	// '+' doubles the slowed-down rate
+			slowRate *= 2;
+			if (simulator.getTargetRate() != 0)
+				simulator.setTargetRate(slowRate);
+		}
+
+		if (key == '-') { 				// '-' halves the slowed-down rate
+			slowRate = Math.max(1, slowRate / 2);
+			if (simulator.getTargetRate() != 0)
+				simulator.setTargetRate(slowRate);
 		}
 
 		if (key == 'r') { 				// 'r' resets the simulator
@@ -0,0 +1,102 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Random;
+
+import javax.management.JMException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Serves {@link StepMetrics} at http://localhost:port/metrics in the
+ * Prometheus text format, so that a long run can be watched by Prometheus or
+ * simply with curl. Only connections from this machine are accepted.
+ */
+public class MetricsServer {
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+	private final HttpServer server;
+
+	/**
+	 * Start serving.
+	 *
+	 * @param metrics
+	 *            The metrics to serve.
+	 * @param port
+	 *            The port to listen on, or 0 for any free one.
+	 * @throws IOException
+	 *             If the port cannot be used.
+	 */
+	public MetricsServer(final StepMetrics metrics, int port) throws IOException {
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/metrics", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				byte[] body = metrics.toPrometheus().getBytes(UTF_8);
+				exchange.getResponseHeaders().set("Content-Type",
+						"text/plain; version=0.0.4; charset=utf-8");
+				exchange.sendResponseHeaders(200, body.length);
+				OutputStream out = exchange.getResponseBody();
+				try {
+					out.write(body);
+				} finally {
+					out.close();
+				}
+			}
+		});
+		server.start();
+	}
+
+	/**
+	 * @return The port being listened on.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Stop serving, waiting at most a second for requests in progress.
+	 */
+	public void stop() {
+		server.stop(1);
+	}
+
+	/**
+	 * Run a batch simulation whose metrics are served over HTTP and JMX while
+	 * it runs.
+	 *
+	 * Usage: MetricsServer port [width height [steps [threads [seed]]]]
+	 *
+	 * With 0 steps it runs until only one species is left.
+	 */
+	public static void main(String[] args) throws IOException, JMException {
+		if (args.length < 1) {
+			System.err.println("Usage: MetricsServer port [width height [steps [threads [seed]]]]");
+			return;
+		}
+		int port = Integer.parseInt(args[0]);
+		int width = args.length >= 3 ? Integer.parseInt(args[1]) : SimulationEngine.DEFAULT_WIDTH;
+		int height = args.length >= 3 ? Integer.parseInt(args[2]) : SimulationEngine.DEFAULT_HEIGHT;
+		int steps = args.length >= 4 ? Integer.parseInt(args[3]) : 0;
+		int threads = args.length >= 5 ? Integer.parseInt(args[4]) : 0;
+		long seed = args.length >= 6 ? Long.parseLong(args[5]) : new Random().nextLong();
+
+		SimulationEngine engine = new SimulationEngine(width, height, seed);
+		engine.setParallelism(threads);
+		StepMetrics metrics = new StepMetrics();
+		metrics.register("engine");
+		engine.setMetrics(metrics);
+		MetricsServer server = new MetricsServer(metrics, port);
+		System.out.println("Serving metrics at http://localhost:" + server.getPort() + "/metrics");
+
+		int done = engine.simulate(steps > 0 ? steps : Integer.MAX_VALUE);
+		System.out.println("Ran " + done + " steps; mean step "
+				+ metrics.getMeanMicros().get("step") + " us");
+		System.out.println(engine.getStats().getPopulationDetails());
+		server.stop();
+		engine.setParallelism(0);
+	}
+}
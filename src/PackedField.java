@@ -0,0 +1,236 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A field stored entirely in primitive arrays. Each cell holds the id of the
+ * entity standing on it, with the entity's species, age and food level kept
+ * in parallel arrays. All arrays are row-major (the cell at col, row is at
+ * index row * width + col), so scanning a row or the neighbours of a cell
+ * reads memory sequentially, and a 4096x4096 field needs about 150 MB
+ * instead of one object per animal plus a pointer per cell.
+ *
+ * Unlike {@link Field} it never holds references to animals, so it can be
+ * copied, written to disk or handed to another thread cheaply.
+ */
+public class PackedField {
+	/** The occupant id of an empty cell */
+	public static final int NO_ENTITY = -1;
+
+	/** The occupant id of a cell still taken by an entity that has died */
+	public static final int DEAD_ENTITY = -2;
+
+	// The height and width of the field.
+	private final int width, height;
+
+	// Per cell: who is there, what species it is, and its state.
+	private final int[] occupant;
+	private final byte[] species;
+	private final short[] age;
+	private final short[] food;
+
+	/**
+	 * Represent an empty field of the given dimensions.
+	 *
+	 * @param width
+	 *            The width of the field.
+	 * @param height
+	 *            The height of the field.
+	 */
+	public PackedField(int width, int height) {
+		this.width = width;
+		this.height = height;
+		int cells = width * height;
+		occupant = new int[cells];
+		species = new byte[cells];
+		age = new short[cells];
+		food = new short[cells];
+		clear();
+	}
+
+	/**
+	 * Represent a copy of the animals currently in an object field.
+	 *
+	 * @param field
+	 *            The field to copy.
+	 */
+	public PackedField(Field field) {
+		this(field.getWidth(), field.getHeight());
+		copyFrom(field);
+	}
+
+	/**
+	 * Replace the contents of this field with the animals in an object field
+	 * of the same size. Animals are numbered in row-major order.
+	 *
+	 * @param field
+	 *            The field to copy.
+	 */
+	public void copyFrom(Field field) {
+		if (field.getWidth() != width || field.getHeight() != height) {
+			throw new IllegalArgumentException("Field is " + field.getWidth() + "x"
+					+ field.getHeight() + ", expected " + width + "x" + height);
+		}
+		clear();
+		int id = 0;
+		for (int row = 0; row < height; row++) {
+			for (int col = 0; col < width; col++) {
+				Object obj = field.getObjectAt(col, row);
+				if (obj instanceof Animal) {
+					Animal animal = (Animal) obj;
+					put(index(col, row), id++, animal.getSpecies(), animal.getAge(),
+							animal.getFoodLevel());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Empty the field.
+	 */
+	public void clear() {
+		Arrays.fill(occupant, NO_ENTITY);
+		Arrays.fill(species, Species.EMPTY);
+		Arrays.fill(age, (short) 0);
+		Arrays.fill(food, (short) 0);
+	}
+
+	/**
+	 * Place an entity in a cell. Whatever was there before is lost.
+	 *
+	 * @param index
+	 *            The index of the cell.
+	 * @param id
+	 *            The id of the entity.
+	 * @param speciesCode
+	 *            The species of the entity.
+	 * @param entityAge
+	 *            The age of the entity.
+	 * @param foodLevel
+	 *            The food level of the entity.
+	 */
+	public void put(int index, int id, byte speciesCode, int entityAge, int foodLevel) {
+		occupant[index] = id;
+		species[index] = speciesCode;
+		age[index] = (short) entityAge;
+		food[index] = (short) foodLevel;
+	}
+
+	/**
+	 * Empty a single cell.
+	 *
+	 * @param index
+	 *            The index of the cell.
+	 */
+	public void remove(int index) {
+		occupant[index] = NO_ENTITY;
+		species[index] = Species.EMPTY;
+		age[index] = 0;
+		food[index] = 0;
+	}
+
+	public int index(int col, int row) {
+		return row * width + col;
+	}
+
+	public int getCol(int index) {
+		return index % width;
+	}
+
+	public int getRow(int index) {
+		return index / width;
+	}
+
+	public boolean isEmpty(int index) {
+		return occupant[index] == NO_ENTITY;
+	}
+
+	public boolean isLegalLocation(int col, int row) {
+		return row >= 0 && row < height && col >= 0 && col < width;
+	}
+
+	public int getOccupant(int index) {
+		return occupant[index];
+	}
+
+	/**
+	 * Change the id of the entity in a cell, leaving its species and state.
+	 */
+	public void setOccupant(int index, int id) {
+		occupant[index] = id;
+	}
+
+	/**
+	 * Same as {@link Field#randomAdjacentCell(int, int, Random)}.
+	 */
+	public int randomAdjacentCell(int col, int row, Random rand) {
+		int nextRow = row + rand.nextInt(3) - 1;
+		int nextCol = col + rand.nextInt(3) - 1;
+		if (!isLegalLocation(nextCol, nextRow)) {
+			return index(col, row);
+		}
+		return index(nextCol, nextRow);
+	}
+
+	/**
+	 * Same as {@link Field#freeAdjacentCell(int, int, Random)}.
+	 */
+	public int freeAdjacentCell(int col, int row, Random rand) {
+		int[] directions = Field.shuffledDirections(rand);
+		for (int i = 0; i < directions.length; i++) {
+			int nextCol = col + Field.COLUMN_OFFSETS[directions[i]];
+			int nextRow = row + Field.ROW_OFFSETS[directions[i]];
+			if (isLegalLocation(nextCol, nextRow)
+					&& occupant[index(nextCol, nextRow)] == NO_ENTITY) {
+				return index(nextCol, nextRow);
+			}
+		}
+		if (occupant[index(col, row)] == NO_ENTITY) {
+			return index(col, row);
+		}
+		return Field.NO_CELL;
+	}
+
+	public byte getSpecies(int index) {
+		return species[index];
+	}
+
+	public int getAge(int index) {
+		return age[index];
+	}
+
+	public int getFood(int index) {
+		return food[index];
+	}
+
+	/**
+	 * Count the cells holding a given species.
+	 *
+	 * @param speciesCode
+	 *            The species to count.
+	 * @return The number of cells holding that species.
+	 */
+	public int count(byte speciesCode) {
+		int n = 0;
+		for (int i = 0; i < species.length; i++) {
+			if (species[i] == speciesCode) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return The number of cells in the field.
+	 */
+	public int size() {
+		return occupant.length;
+	}
+}
@@ -0,0 +1,262 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Runs one step of the simulation on several threads.
+ *
+ * The field is cut into square tiles, and the tiles are coloured like a 2x2
+ * checkerboard. The four colours are processed one after another, and all
+ * tiles of one colour at the same time. An animal only ever looks at, eats or
+ * moves into the cells right next to it, so two tiles of the same colour
+ * (which are at least a whole tile apart) never touch the same cells of
+ * either field.
+ *
+ * On a field whose edges wrap around, the first and last tiles of a row or
+ * column touch as well. There a narrow last tile is merged into the one
+ * before, so that every tile is at least a whole tile size wide, and when
+ * the number of tiles is odd the last ones get a colour of their own.
+ *
+ * Each tile has its own generator, which is positioned on the stream of an
+ * animal's cell (see {@link RandomStreams}) before the animal acts, and the
+ * animals of a tile always act in the same order. The result of a step
+ * therefore depends only on the seed, never on the number of threads.
+ */
+public class ParallelStep {
+	// The default width and height of a tile, in cells.
+	static final int DEFAULT_TILE_SIZE = 32;
+
+	// The number of colours a tile may have: 3 across times 3 down.
+	private static final int PHASES = 9;
+
+	// Tiles of one colour that a single task handles without splitting.
+	private static final int TILES_PER_TASK = 1;
+
+	private final ForkJoinPool pool;
+	private final int tileSize;
+
+	// The layout the buffers below were built for.
+	private int width, height;
+	private boolean wrap;
+	private int tilesAcross, tilesDown;
+
+	// The animals that start the step in each tile, and those born there.
+	private List<ArrayList<Animal>> residents;
+	private List<ArrayList<Animal>> births;
+
+	// One generator per tile, and the streams they were made by.
+	private Random[] tileRandoms;
+	private RandomStreams tileStreams;
+
+	// The tiles of each colour.
+	private int[][] phaseTiles;
+
+	/**
+	 * Create a stepper using the given number of threads.
+	 *
+	 * @param threads
+	 *          The number of worker threads.
+	 * @param tileSize
+	 *          The width and height of a tile; at least 2.
+	 */
+	public ParallelStep(int threads, int tileSize) {
+		if (tileSize < 2) {
+			throw new IllegalArgumentException("Tiles must be at least 2 cells wide");
+		}
+		this.pool = new ForkJoinPool(threads);
+		this.tileSize = tileSize;
+	}
+
+	public ParallelStep(int threads) {
+		this(threads, DEFAULT_TILE_SIZE);
+	}
+
+	/**
+	 * Let every animal act once, moving the survivors and newborns from field
+	 * into updatedField. On return, animals holds the same animals (including
+	 * any that died) in tile order, and newborns holds the animals born, also
+	 * in tile order.
+	 *
+	 * @param animals
+	 *          All the animals in the simulation.
+	 * @param newborns
+	 *          An empty list for the animals born during the step.
+	 * @param field
+	 *          The current state of the field.
+	 * @param updatedField
+	 *          The (empty) field for the next step.
+	 * @param streams
+	 *          The random numbers of the simulation.
+	 * @param step
+	 *          The number of the step being run.
+	 */
+	public void step(Population animals, List<Animal> newborns, Field field, Field updatedField,
+			RandomStreams streams, int step) {
+		layout(field.getWidth(), field.getHeight(), field.isWrapping());
+		if (tileStreams != streams) {
+			for (int t = 0; t < tileRandoms.length; t++) {
+				tileRandoms[t] = streams.create();
+			}
+			tileStreams = streams;
+		}
+
+		for (int t = 0; t < residents.size(); t++) {
+			residents.get(t).clear();
+			births.get(t).clear();
+		}
+		for (int i = 0; i < animals.size(); i++) {
+			Animal animal = animals.get(i);
+			residents.get(tileOf(animal.col, animal.row)).add(animal);
+		}
+
+		for (int phase = 0; phase < phaseTiles.length; phase++) {
+			int[] tiles = phaseTiles[phase];
+			if (tiles.length == 0) {
+				continue;
+			}
+			pool.invoke(new TileTask(field, updatedField, streams, step, tiles, 0,
+					tiles.length));
+		}
+
+		animals.clear();
+		for (ArrayList<Animal> tile : residents) {
+			animals.addAll(tile);
+		}
+		for (ArrayList<Animal> tile : births) {
+			newborns.addAll(tile);
+		}
+	}
+
+	/**
+	 * @return The number of worker threads.
+	 */
+	public int getParallelism() {
+		return pool.getParallelism();
+	}
+
+	/**
+	 * Stop the worker threads.
+	 */
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	private int tileOf(int col, int row) {
+		return Math.min(row / tileSize, tilesDown - 1) * tilesAcross
+				+ Math.min(col / tileSize, tilesAcross - 1);
+	}
+
+	// (Re)build the tile buffers if the field size has changed.
+	private void layout(int width, int height, boolean wrap) {
+		if (residents != null && width == this.width && height == this.height
+				&& wrap == this.wrap) {
+			return;
+		}
+		this.width = width;
+		this.height = height;
+		this.wrap = wrap;
+		if (wrap) {
+			// Whole tiles only: a narrow one would let its two neighbours,
+			// which meet across the edge, reach the same cells.
+			tilesAcross = Math.max(1, width / tileSize);
+			tilesDown = Math.max(1, height / tileSize);
+		} else {
+			tilesAcross = (width + tileSize - 1) / tileSize;
+			tilesDown = (height + tileSize - 1) / tileSize;
+		}
+		int tiles = tilesAcross * tilesDown;
+
+		residents = new ArrayList<ArrayList<Animal>>(tiles);
+		births = new ArrayList<ArrayList<Animal>>(tiles);
+		tileRandoms = new Random[tiles];
+		for (int t = 0; t < tiles; t++) {
+			residents.add(new ArrayList<Animal>());
+			births.add(new ArrayList<Animal>());
+		}
+		tileStreams = null;
+
+		int[] phaseSizes = new int[PHASES];
+		for (int ty = 0; ty < tilesDown; ty++) {
+			for (int tx = 0; tx < tilesAcross; tx++) {
+				phaseSizes[phaseOf(tx, ty)]++;
+			}
+		}
+		phaseTiles = new int[PHASES][];
+		for (int phase = 0; phase < PHASES; phase++) {
+			phaseTiles[phase] = new int[phaseSizes[phase]];
+			phaseSizes[phase] = 0;
+		}
+		for (int ty = 0; ty < tilesDown; ty++) {
+			for (int tx = 0; tx < tilesAcross; tx++) {
+				int phase = phaseOf(tx, ty);
+				phaseTiles[phase][phaseSizes[phase]++] = ty * tilesAcross + tx;
+			}
+		}
+	}
+
+	// The colour of a tile: 0 or 1 alternately along a row or column, or 2
+	// for the last of an odd number of tiles that wrap around, which touches
+	// both the one before it and the first.
+	private int colourOf(int t, int tiles) {
+		if (wrap && t == tiles - 1 && tiles > 1 && (tiles & 1) != 0) {
+			return 2;
+		}
+		return t & 1;
+	}
+
+	private int phaseOf(int tx, int ty) {
+		return colourOf(ty, tilesDown) * 3 + colourOf(tx, tilesAcross);
+	}
+
+	/**
+	 * Runs the animals of a range of same coloured tiles, splitting the range
+	 * in half until it is small enough.
+	 */
+	private class TileTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Field field, updatedField;
+		private final RandomStreams streams;
+		private final int step;
+		private final int[] tiles;
+		private final int from, to;
+
+		TileTask(Field field, Field updatedField, RandomStreams streams, int step,
+				int[] tiles, int from, int to) {
+			this.field = field;
+			this.updatedField = updatedField;
+			this.streams = streams;
+			this.step = step;
+			this.tiles = tiles;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= TILES_PER_TASK) {
+				for (int i = from; i < to; i++) {
+					runTile(tiles[i]);
+				}
+			} else {
+				int middle = (from + to) >>> 1;
+				invokeAll(new TileTask(field, updatedField, streams, step, tiles, from,
+						middle), new TileTask(field, updatedField, streams, step, tiles,
+						middle, to));
+			}
+		}
+
+		private void runTile(int tile) {
+			ArrayList<Animal> tileAnimals = residents.get(tile);
+			ArrayList<Animal> tileBirths = births.get(tile);
+			Random rand = tileRandoms[tile];
+			for (int i = 0; i < tileAnimals.size(); i++) {
+				Animal animal = tileAnimals.get(i);
+				streams.stream(rand, step, field.index(animal.col, animal.row));
+				animal.act(field, updatedField, tileBirths, rand);
+			}
+		}
+	}
+}
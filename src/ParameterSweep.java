@@ -0,0 +1,551 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs many independent headless simulations with different species
+ * parameters and writes a summary of each run to a CSV file, one row per run,
+ * e.g. to find out which parameters let all three species live together.
+ *
+ * Each parameter is given a range. The runs either cover a grid of evenly
+ * spaced values of every parameter, or take a Latin hypercube sample: a
+ * chosen number of points, spread so that each parameter's range is cut into
+ * that many equal slices and every slice is used exactly once.
+ *
+ * The runs go to a fixed pool of worker threads. Only a few more runs than
+ * there are workers are ever in progress or waiting to be written, so a sweep
+ * of any size needs no more memory than those few, and rows are written in
+ * run order as soon as all runs before them have finished. Every run gets a
+ * seed of its own derived from the sweep's seed, so a row can be repeated on
+ * its own with {@link SimulationEngine}.
+ *
+ * For each species a row gives the step it died out (or -1), its largest
+ * population and the step it was reached, and the period of its population
+ * cycle (or -1 if there is none).
+ */
+public class ParameterSweep {
+	/** How the points of a sweep are chosen */
+	public enum Design {
+		/** Every combination of evenly spaced values of the parameters */
+		GRID,
+		/** A Latin hypercube sample of a given number of points */
+		LATIN_HYPERCUBE
+	}
+
+	/** The parameters of each species that can be swept */
+	public enum Parameter {
+		BREEDING_AGE("breedingAge", true) {
+			void set(SpeciesTable table, byte species, double value) {
+				table.breedingAge[species] = Math.max(0, (int) value);
+			}
+		},
+		MAX_AGE("maxAge", true) {
+			void set(SpeciesTable table, byte species, double value) {
+				table.maxAge[species] = Math.max(1, (int) value);
+			}
+		},
+		BREEDING_PROBABILITY("breedingProbability", false) {
+			void set(SpeciesTable table, byte species, double value) {
+				table.breedingProbability[species] = value;
+			}
+		},
+		MAX_LITTER_SIZE("maxLitterSize", true) {
+			void set(SpeciesTable table, byte species, double value) {
+				table.maxLitterSize[species] = Math.max(1, (int) value);
+			}
+		},
+		/** The probability that the species is placed in a cell at the start */
+		CREATION("creation", false) {
+			void set(SpeciesTable table, byte species, double value) {
+				table.creationProbability[species] = value;
+			}
+		};
+
+		private final String label;
+		private final boolean integer;
+
+		Parameter(String label, boolean integer) {
+			this.label = label;
+			this.integer = integer;
+		}
+
+		/** @return The name used in parameter names, e.g. "maxAge". */
+		public String label() {
+			return label;
+		}
+
+		/** @return Whether the parameter only takes whole numbers. */
+		public boolean isInteger() {
+			return integer;
+		}
+
+		// Set the parameter of a species in a table.
+		abstract void set(SpeciesTable table, byte species, double value);
+	}
+
+	// The part of a run left out when looking for population cycles, while
+	// the populations settle down from the random start.
+	private static final double BURN_IN = 0.25;
+
+	// A parameter being swept: which species and which parameter, its range,
+	// and for a grid how many values to take from it.
+	private static class Axis {
+		final String name;
+		final byte species;
+		final Parameter parameter;
+		final double min, max;
+		final int levels;
+
+		Axis(String name, byte species, Parameter parameter, double min, double max,
+				int levels) {
+			this.name = name;
+			this.species = species;
+			this.parameter = parameter;
+			this.min = min;
+			this.max = max;
+			this.levels = levels;
+		}
+	}
+
+	private final int width, height;
+	private final int steps;
+	private final long seed;
+	private final List<Axis> axes = new ArrayList<Axis>();
+	private SpeciesTable base = SpeciesTable.standard();
+	private Design design = Design.GRID;
+	private int samples;
+
+	// The slice of each parameter's range used by each point of a Latin
+	// hypercube, indexed [axis][point].
+	private int[][] slices;
+
+	/**
+	 * Prepare a sweep. Parameters that are not swept keep the values of the
+	 * standard simulation.
+	 *
+	 * @param width
+	 *            The width of the field of every run.
+	 * @param height
+	 *            The height of the field of every run.
+	 * @param steps
+	 *            The most steps to run; a run stops early once only one
+	 *            species is left.
+	 * @param seed
+	 *            The seed from which the seeds of the runs, and the points of a
+	 *            Latin hypercube, are derived.
+	 */
+	public ParameterSweep(int width, int height, int steps, long seed) {
+		if (width <= 0 || height <= 0 || steps <= 0) {
+			throw new IllegalArgumentException("The size and steps must be positive");
+		}
+		this.width = width;
+		this.height = height;
+		this.steps = steps;
+		this.seed = seed;
+	}
+
+	/**
+	 * Sweep a parameter over a range.
+	 *
+	 * @param name
+	 *            The species and the label of the parameter, e.g.
+	 *            "fox.breedingProbability"; see {@link Parameter}.
+	 * @param min
+	 *            The smallest value.
+	 * @param max
+	 *            The largest value.
+	 * @param levels
+	 *            For a grid, how many evenly spaced values to take from min to
+	 *            max; ignored by a Latin hypercube.
+	 */
+	public void addParameter(String name, double min, double max, int levels) {
+		int dot = name.indexOf('.');
+		byte species = Species.EMPTY;
+		for (byte code = 1; code < Species.COUNT; code++) {
+			if (dot > 0 && Species.nameOf(code).equalsIgnoreCase(name.substring(0, dot))) {
+				species = code;
+			}
+		}
+		Parameter parameter = null;
+		for (Parameter p : Parameter.values()) {
+			if (p.label().equalsIgnoreCase(name.substring(dot + 1))) {
+				parameter = p;
+			}
+		}
+		if (species == Species.EMPTY || parameter == null) {
+			throw new IllegalArgumentException("Unknown parameter " + name);
+		}
+		if (min > max || levels <= 0) {
+			throw new IllegalArgumentException("Bad range for " + name);
+		}
+		axes.add(new Axis(name, species, parameter, min, max, levels));
+		slices = null;
+	}
+
+	/**
+	 * Choose a grid of every combination of the parameters' levels.
+	 */
+	public void useGrid() {
+		design = Design.GRID;
+	}
+
+	/**
+	 * Choose a Latin hypercube sample.
+	 *
+	 * @param samples
+	 *            The number of points, and so of runs.
+	 */
+	public void useLatinHypercube(int samples) {
+		if (samples <= 0) {
+			throw new IllegalArgumentException("The number of samples must be positive");
+		}
+		design = Design.LATIN_HYPERCUBE;
+		this.samples = samples;
+		slices = null;
+	}
+
+	/**
+	 * Change the parameters that are not swept.
+	 *
+	 * @param table
+	 *            The parameters, which are copied for each run.
+	 */
+	public void setBaseTable(SpeciesTable table) {
+		base = table;
+	}
+
+	/**
+	 * @return The number of runs in the sweep.
+	 */
+	public int getRuns() {
+		if (design == Design.LATIN_HYPERCUBE) {
+			return samples;
+		}
+		long runs = 1;
+		for (Axis axis : axes) {
+			runs *= axis.levels;
+			if (runs > Integer.MAX_VALUE) {
+				throw new IllegalStateException("The grid has too many points");
+			}
+		}
+		return (int) runs;
+	}
+
+	/**
+	 * @param run
+	 *            The number of a run.
+	 * @return The values of the swept parameters in that run, in the order
+	 *         they were added; whole-number parameters are rounded.
+	 */
+	public double[] getPoint(int run) {
+		double[] point = new double[axes.size()];
+		if (design == Design.LATIN_HYPERCUBE && slices == null) {
+			makeSlices();
+		}
+		int rest = run;
+		for (int a = 0; a < point.length; a++) {
+			Axis axis = axes.get(a);
+			double position;
+			if (design == Design.GRID) {
+				position = axis.levels == 1 ? 0 : (double) (rest % axis.levels) / (axis.levels - 1);
+				rest /= axis.levels;
+			} else {
+				// Somewhere in this point's slice, the same each time it is asked.
+				Random rand = new SplitMix64Random(seed ^ SplitMix64Random.mix(a * (long) samples
+						+ run));
+				position = (slices[a][run] + rand.nextDouble()) / samples;
+			}
+			double value = axis.min + position * (axis.max - axis.min);
+			point[a] = axis.parameter.isInteger() ? Math.round(value) : value;
+		}
+		return point;
+	}
+
+	// Give each point of the Latin hypercube a different slice of every
+	// parameter, in a random order per parameter.
+	private void makeSlices() {
+		Random rand = new SplitMix64Random(seed);
+		slices = new int[axes.size()][samples];
+		for (int a = 0; a < slices.length; a++) {
+			int[] order = slices[a];
+			for (int i = 0; i < samples; i++) {
+				int j = rand.nextInt(i + 1);
+				order[i] = order[j];
+				order[j] = i;
+			}
+		}
+	}
+
+	/**
+	 * @param run
+	 *            The number of a run.
+	 * @return The seed that run is simulated with.
+	 */
+	public long getSeed(int run) {
+		return SplitMix64Random.mix(seed + run);
+	}
+
+	/**
+	 * @param run
+	 *            The number of a run.
+	 * @return The parameters of every species in that run.
+	 */
+	public SpeciesTable getTable(int run) {
+		SpeciesTable table = base.copy();
+		double[] point = getPoint(run);
+		for (int a = 0; a < point.length; a++) {
+			Axis axis = axes.get(a);
+			axis.parameter.set(table, axis.species, point[a]);
+		}
+		return table;
+	}
+
+	/**
+	 * Simulate one run of the sweep.
+	 *
+	 * @param run
+	 *            The number of the run.
+	 * @return Its row of the output, without a line break.
+	 */
+	public String runOne(int run) {
+		SimulationEngine engine = new SimulationEngine(width, height, getSeed(run), getTable(run));
+
+		// The population of each species after each step, indexed by species
+		// code less one. No population can be larger than the field.
+		int[][] counts = new int[Species.COUNT - 1][steps];
+		int done = 0;
+		while (done < steps && engine.isViable()) {
+			engine.simulateOneStep();
+			for (byte species = 1; species < Species.COUNT; species++) {
+				counts[species - 1][done] = (int) engine.getStats().getCount(species);
+			}
+			done++;
+		}
+
+		StringBuilder row = new StringBuilder();
+		row.append(run).append(',').append(getSeed(run));
+		for (double value : getPoint(run)) {
+			row.append(',').append(format(value));
+		}
+		row.append(',').append(done);
+		for (byte species = 1; species < Species.COUNT; species++) {
+			int[] series = counts[species - 1];
+			int extinct = -1;
+			int peakStep = 0;
+			for (int i = 0; i < done; i++) {
+				if (series[i] > series[peakStep]) {
+					peakStep = i;
+				}
+				if (series[i] == 0 && extinct < 0) {
+					extinct = i + 1;
+				}
+			}
+			int peak = done > 0 ? series[peakStep] : 0;
+			row.append(',').append(extinct).append(',').append(peak).append(',')
+					.append(done > 0 ? peakStep + 1 : 0).append(',')
+					.append(period(series, (int) (done * BURN_IN), extinct < 0 ? done : extinct - 1));
+		}
+		return row.toString();
+	}
+
+	/**
+	 * Find the period of a population cycle: the first lag at which the
+	 * autocorrelation of the series, having fallen below zero, peaks again.
+	 *
+	 * @param series
+	 *            The population after each step.
+	 * @param from
+	 *            The first step to look at.
+	 * @param to
+	 *            One past the last step to look at.
+	 * @return The period in steps, or -1 if the series does not cycle.
+	 */
+	static int period(int[] series, int from, int to) {
+		int n = to - from;
+		if (n < 8) {
+			return -1;
+		}
+		double mean = 0;
+		for (int i = from; i < to; i++) {
+			mean += series[i];
+		}
+		mean /= n;
+		double variance = 0;
+		for (int i = from; i < to; i++) {
+			variance += (series[i] - mean) * (series[i] - mean);
+		}
+		if (variance == 0) {
+			return -1;
+		}
+
+		// At least two whole cycles have to fit in the series.
+		int maxLag = n / 2;
+		boolean fallen = false;
+		double before = 1;
+		double last = 1;
+		for (int lag = 1; lag <= maxLag; lag++) {
+			double sum = 0;
+			for (int i = from; i + lag < to; i++) {
+				sum += (series[i] - mean) * (series[i + lag] - mean);
+			}
+			double r = sum / variance;
+			if (fallen && last > 0.1 && last >= before && last > r) {
+				return lag - 1;
+			}
+			if (r < 0) {
+				fallen = true;
+			}
+			before = last;
+			last = r;
+		}
+		return -1;
+	}
+
+	private static String format(double value) {
+		return value == Math.rint(value) ? Long.toString((long) value) : String.format(
+				Locale.ROOT, "%.6g", value);
+	}
+
+	/**
+	 * @return The header line of the output, without a line break.
+	 */
+	public String header() {
+		StringBuilder header = new StringBuilder("run,seed");
+		for (Axis axis : axes) {
+			header.append(',').append(axis.name);
+		}
+		header.append(",steps");
+		for (byte species = 1; species < Species.COUNT; species++) {
+			String name = Species.nameOf(species).toLowerCase(Locale.ROOT);
+			header.append(',').append(name).append("Extinct");
+			header.append(',').append(name).append("Peak");
+			header.append(',').append(name).append("PeakStep");
+			header.append(',').append(name).append("Period");
+		}
+		return header.toString();
+	}
+
+	/**
+	 * Run the whole sweep and write a header line and one line per run.
+	 *
+	 * @param out
+	 *            Where to write the results; it is flushed but not closed.
+	 * @param threads
+	 *            The number of runs to simulate at once.
+	 * @throws IOException
+	 *             If the results cannot be written.
+	 */
+	public void run(Writer out, int threads) throws IOException {
+		if (threads <= 0) {
+			throw new IllegalArgumentException("The number of threads must be positive");
+		}
+		int runs = getRuns();
+		if (design == Design.LATIN_HYPERCUBE && slices == null) {
+			// Before the workers start asking for points.
+			makeSlices();
+		}
+		out.write(header());
+		out.write('\n');
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		CompletionService<Object[]> done = new ExecutorCompletionService<Object[]>(pool);
+		// Finished rows waiting for the runs before them.
+		Map<Integer, String> waiting = new TreeMap<Integer, String>();
+		int window = threads * 2;
+		int submitted = 0;
+		int written = 0;
+		try {
+			while (written < runs) {
+				// Keep the workers busy, but only a window of runs ahead of
+				// the next row to be written.
+				while (submitted < runs && submitted - written < window) {
+					final int run = submitted++;
+					done.submit(new Callable<Object[]>() {
+						public Object[] call() {
+							return new Object[] { run, runOne(run) };
+						}
+					});
+				}
+				Object[] result = done.take().get();
+				waiting.put((Integer) result[0], (String) result[1]);
+				String row;
+				while ((row = waiting.remove(written)) != null) {
+					out.write(row);
+					out.write('\n');
+					written++;
+				}
+			}
+			out.flush();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("The sweep was interrupted");
+		} catch (ExecutionException e) {
+			throw new IOException("Run failed: " + e.getCause(), e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Run a sweep from the command line.
+	 *
+	 * Usage: ParameterSweep output.csv width height steps (grid | lhs:samples)
+	 * threads seed parameter...
+	 *
+	 * Each parameter is species.name=min:max[:levels], e.g.
+	 * fox.breedingProbability=0.1:0.3:5; a single value fixes a parameter.
+	 */
+	public static void main(String[] args) throws IOException {
+		String usage = "Usage: ParameterSweep output.csv width height steps"
+				+ " (grid | lhs:samples) threads seed species.parameter=min:max[:levels]...";
+		if (args.length < 7) {
+			System.err.println(usage);
+			return;
+		}
+		ParameterSweep sweep = new ParameterSweep(Integer.parseInt(args[1]),
+				Integer.parseInt(args[2]), Integer.parseInt(args[3]), Long.parseLong(args[6]));
+		if (args[4].startsWith("lhs:")) {
+			sweep.useLatinHypercube(Integer.parseInt(args[4].substring(4)));
+		} else if (!args[4].equals("grid")) {
+			System.err.println("Unknown design " + args[4]);
+			return;
+		}
+		for (int i = 7; i < args.length; i++) {
+			String[] nameAndRange = args[i].split("=", 2);
+			if (nameAndRange.length != 2) {
+				System.err.println("No range for " + args[i]);
+				System.err.println(usage);
+				return;
+			}
+			String[] range = nameAndRange[1].split(":");
+			double min = Double.parseDouble(range[0]);
+			double max = range.length > 1 ? Double.parseDouble(range[1]) : min;
+			int levels = range.length > 2 ? Integer.parseInt(range[2]) : range.length > 1 ? 3 : 1;
+			sweep.addParameter(nameAndRange[0], min, max, levels);
+		}
+
+		int threads = Integer.parseInt(args[5]);
+		long start = System.nanoTime();
+		Writer out = new BufferedWriter(new FileWriter(args[0]));
+		try {
+			sweep.run(out, threads);
+		} finally {
+			out.close();
+		}
+		double seconds = (System.nanoTime() - start) / 1e9;
+		System.out.println("Ran " + sweep.getRuns() + " runs in " + seconds + " s");
+	}
+}
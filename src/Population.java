@@ -0,0 +1,150 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * The live animals of a simulation, kept in a compact array. Every animal
+ * knows its slot in the array, so a single animal can be removed in constant
+ * time by moving the last animal into its place. Animals that die during a
+ * step are not removed one by one; instead {@link #removeDead(FieldStats)}
+ * squeezes them out in a single pass at the end of the step, keeping the
+ * survivors in order. Either way a step costs time linear in the number of
+ * animals.
+ */
+public class Population {
+	private static final int INITIAL_CAPACITY = 64;
+
+	private Animal[] animals;
+	private int size;
+
+	public Population() {
+		animals = new Animal[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Create a population holding the given animals, in order.
+	 *
+	 * @param initial
+	 *          The animals to start with.
+	 */
+	public Population(Collection<Animal> initial) {
+		this();
+		addAll(initial);
+	}
+
+	/**
+	 * Add an animal at the end of the population.
+	 *
+	 * @param animal
+	 *          The animal to add.
+	 */
+	public void add(Animal animal) {
+		if (size == animals.length) {
+			animals = Arrays.copyOf(animals, size * 2);
+		}
+		animal.slot = size;
+		animals[size++] = animal;
+	}
+
+	public void addAll(Collection<Animal> newAnimals) {
+		for (Animal animal : newAnimals) {
+			add(animal);
+		}
+	}
+
+	/**
+	 * @param i
+	 *          A slot between 0 and size() - 1.
+	 * @return The animal in that slot.
+	 */
+	public Animal get(int i) {
+		return animals[i];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Remove an animal in constant time. The last animal is moved into its
+	 * slot, so the order of the population changes.
+	 *
+	 * @param animal
+	 *          The animal to remove.
+	 * @return true if the animal was in the population.
+	 */
+	public boolean remove(Animal animal) {
+		int slot = animal.slot;
+		if (slot < 0 || slot >= size || animals[slot] != animal) {
+			return false;
+		}
+		Animal last = animals[--size];
+		animals[slot] = last;
+		last.slot = slot;
+		animals[size] = null;
+		animal.slot = -1;
+		return true;
+	}
+
+	/**
+	 * Remove all animals that are no longer alive, in one pass. The order of
+	 * the survivors is kept.
+	 *
+	 * @param stats
+	 *          Told about every death, or null.
+	 */
+	public void removeDead(FieldStats stats) {
+		int kept = 0;
+		for (int i = 0; i < size; i++) {
+			Animal animal = animals[i];
+			if (animal.isAlive()) {
+				animal.slot = kept;
+				animals[kept++] = animal;
+			} else {
+				animal.slot = -1;
+				if (stats != null) {
+					stats.recordDeath(animal.getSpecies(), animal.wasEaten());
+				}
+			}
+		}
+		Arrays.fill(animals, kept, size, null);
+		size = kept;
+	}
+
+	/**
+	 * Put the animals in a random order.
+	 *
+	 * @param rand
+	 *          The random numbers to use.
+	 */
+	public void shuffle(Random rand) {
+		for (int i = size - 1; i > 0; i--) {
+			int j = rand.nextInt(i + 1);
+			Animal a = animals[i];
+			animals[i] = animals[j];
+			animals[j] = a;
+			animals[i].slot = i;
+			animals[j].slot = j;
+		}
+	}
+
+	public void clear() {
+		for (int i = 0; i < size; i++) {
+			animals[i].slot = -1;
+		}
+		Arrays.fill(animals, 0, size, null);
+		size = 0;
+	}
+
+	/**
+	 * @return A copy of the population as a list, e.g. for saving it.
+	 */
+	public ArrayList<Animal> toList() {
+		ArrayList<Animal> list = new ArrayList<Animal>(size);
+		for (int i = 0; i < size; i++) {
+			list.add(animals[i]);
+		}
+		return list;
+	}
+}
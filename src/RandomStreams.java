@@ -0,0 +1,96 @@
+import java.util.Random;
+
+/**
+ * The source of all random numbers in a run. Instead of one shared generator,
+ * every (step, cell) pair has its own stream: a generator is reseeded with a
+ * key computed from the run's seed, the step and the cell before an animal in
+ * that cell acts. What an animal does therefore depends only on the seed and
+ * on where and when it is, not on which thread runs it or on how many random
+ * numbers other animals drew first, so runs are bit-reproducible and workers
+ * never share a generator.
+ *
+ * The kind of generator is pluggable; SplitMix64 is the default because
+ * reseeding it costs nothing.
+ */
+public class RandomStreams {
+	/** The kinds of generator that can back the streams. */
+	public enum Generator {
+		/** java.util.Random, for comparison with older runs */
+		JDK,
+		/** SplitMix64, see {@link SplitMix64Random} */
+		SPLITMIX64,
+		/** xoshiro256**, see {@link Xoshiro256Random} */
+		XOSHIRO256
+	}
+
+	/** The cell used for keys that do not belong to any one cell */
+	static final int NO_CELL = -1;
+
+	private final long seed;
+	private final Generator generator;
+
+	public RandomStreams(long seed) {
+		this(seed, Generator.SPLITMIX64);
+	}
+
+	public RandomStreams(long seed, Generator generator) {
+		this.seed = seed;
+		this.generator = generator;
+	}
+
+	/**
+	 * Create a new generator of the configured kind. Each thread should have
+	 * its own and position it with {@link #stream(Random, int, int)}.
+	 *
+	 * @return A new generator.
+	 */
+	public Random create() {
+		switch (generator) {
+		case JDK:
+			return new Random(seed);
+		case XOSHIRO256:
+			return new Xoshiro256Random(seed);
+		default:
+			return new SplitMix64Random(seed);
+		}
+	}
+
+	/**
+	 * Compute the key of the stream for a cell in a step. Distinct (step,
+	 * cell) pairs always give distinct keys.
+	 *
+	 * @param step
+	 *          The step.
+	 * @param cell
+	 *          The index of the cell, or NO_CELL.
+	 * @return The key of the stream.
+	 */
+	public long key(int step, int cell) {
+		long counter = ((long) step << 32) | (cell & 0xFFFFFFFFL);
+		return SplitMix64Random.mix(seed ^ SplitMix64Random.mix(counter));
+	}
+
+	/**
+	 * Position a generator at the start of the stream for a cell in a step.
+	 *
+	 * @param rand
+	 *          A generator made by {@link #create()}.
+	 * @param step
+	 *          The step.
+	 * @param cell
+	 *          The index of the cell, or NO_CELL.
+	 * @return The same generator, for convenience.
+	 */
+	public Random stream(Random rand, int step, int cell) {
+		rand.setSeed(key(step, cell));
+		return rand;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public Generator getGenerator() {
+		return generator;
+	}
+}
@@ -1,7 +1,36 @@
-import java.util.ArrayList;
+import java.util.Arrays;
 
+/**
+ * A series of scaled points, kept in a fixed-size ring buffer of primitive
+ * floats. Once the buffer is full each new point replaces the oldest one, so
+ * memory use does not grow however long a run goes on, and reading points
+ * back neither allocates nor unboxes.
+ *
+ * The points are also summarised per pixel column of the plot: for every
+ * column the set keeps how many points fall in it, the first and last of
+ * them and the lowest and highest. These are kept up to date as points are
+ * added, so a graph can be drawn column by column (min-max downsampling)
+ * at a cost that depends on its width rather than on how many points it
+ * holds.
+ */
 public class ScaledDataSet {
-    private ArrayList<Float> xvals, yvals;
+    /** The number of points kept if no capacity is given */
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    // The points, oldest first starting at index start.
+    private float[] xvals, yvals;
+    private int start;
+    private int size;
+    // Whether xmin..ymax need to be worked out again, because the point
+    // that was dropped may have been the smallest or largest.
+    private boolean rangeStale;
+
+    // The summary of each pixel column, starting at scaledxmin.
+    private int[] columnPoints;
+    private float[] columnFirst, columnLast, columnMin, columnMax;
+    // Whether the summaries need to be worked out again, because a point
+    // was dropped from the buffer.
+    private boolean columnsStale;
     private boolean yscaling = true;
     private boolean xscaling = true;
     private float inputymin, inputymax, scaledymin, scaledymax;
@@ -10,12 +39,20 @@ public class ScaledDataSet {
     private float yshiftval, yscaleval, xshiftval, xscaleval;
 
     public ScaledDataSet() {
-        xvals = new ArrayList<Float>();
-        yvals = new ArrayList<Float>();
-        xmax = Float.MIN_NORMAL;
-        ymax = Float.MIN_NORMAL;
-        xmin = Float.MAX_VALUE;
-        ymin = Float.MAX_VALUE;
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity The largest number of points to keep; older points
+     *                 are dropped to make room for new ones.
+     */
+    public ScaledDataSet(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        xvals = new float[capacity];
+        yvals = new float[capacity];
+        clear();
     }
 
     // Calling this method will automatically scale
@@ -45,84 +82,232 @@ public class ScaledDataSet {
         this.xscaling = true;
         this.xscaleval = (float)(scaledxmax - scaledxmin)/(float)(inputxmax - inputxmin);
         this.xshiftval = scaledxmin - xscaleval*inputxmin;
+
+        int columns = (int) Math.abs(scaledxmax - scaledxmin) + 1;
+        if (columnPoints == null || columnPoints.length != columns) {
+            columnPoints = new int[columns];
+            columnFirst = new float[columns];
+            columnLast = new float[columns];
+            columnMin = new float[columns];
+            columnMax = new float[columns];
+        }
+        columnsStale = true;
     }
 
     public void addPoint(float x, float y) {
-        if (yscaling) {
-            // scale the input and then add!
-            y = y*yscaleval + yshiftval;
-            yvals.add(y);
-        } else {
+        if (!yscaling) {
             System.out.println("ScaledDataSet couldn't add point " + x + ", "
                     + y + "; No y scale values set!");
+            return;
         }
-
-       if (xscaling) {
-            x = x*xscaleval + this.xshiftval;
-            xvals.add(x);
-        } else {
+        if (!xscaling) {
             System.out.println("ScaledDataSet couldn't add point " + x + ", "
                     + y + "; No x scale values set!");
+            return;
+        }
+        // scale the input and then add!
+        y = y*yscaleval + yshiftval;
+        x = x*xscaleval + this.xshiftval;
+
+        int capacity = xvals.length;
+        if (size == capacity) {
+            // Overwrite the oldest point.
+            float oldx = xvals[start];
+            float oldy = yvals[start];
+            if (oldx <= xmin || oldx >= xmax || oldy <= ymin || oldy >= ymax) {
+                rangeStale = true;
+            }
+            columnsStale = true;
+            xvals[start] = x;
+            yvals[start] = y;
+            start = (start + 1) % capacity;
+        } else {
+            int end = start + size;
+            if (end >= capacity) {
+                end -= capacity;
+            }
+            xvals[end] = x;
+            yvals[end] = y;
+            size++;
         }
 
         // update min and max values
+        if (!rangeStale) {
+            includeInRange(x, y);
+        }
+        if (columnPoints != null && !columnsStale) {
+            includeInColumn(x, y);
+        }
+    }
+
+    private void includeInColumn(float x, float y) {
+        int c = (int) Math.abs(x - scaledxmin);
+        if (c >= columnPoints.length) {
+            c = columnPoints.length - 1;
+        }
+        if (columnPoints[c] == 0) {
+            columnFirst[c] = y;
+            columnMin[c] = y;
+            columnMax[c] = y;
+        } else if (y < columnMin[c]) {
+            columnMin[c] = y;
+        } else if (y > columnMax[c]) {
+            columnMax[c] = y;
+        }
+        columnLast[c] = y;
+        columnPoints[c]++;
+    }
+
+    // Work out the column summaries again from the points in the buffer.
+    private void updateColumns() {
+        if (!columnsStale) {
+            return;
+        }
+        Arrays.fill(columnPoints, 0);
+        for (int i = 0; i < size; i++) {
+            includeInColumn(getx(i), gety(i));
+        }
+        columnsStale = false;
+    }
+
+    /**
+     * @return The number of pixel columns the points are summarised in.
+     */
+    public int getColumns() {
+        if (columnPoints == null) {
+            return 0;
+        }
+        updateColumns();
+        return columnPoints.length;
+    }
+
+    /**
+     * @return The scaled x coordinate of a pixel column.
+     */
+    public float getColumnX(int column) {
+        return scaledxmax >= scaledxmin ? scaledxmin + column : scaledxmin - column;
+    }
+
+    /**
+     * @return How many points fall in a pixel column; the other column
+     *         values mean nothing if this is 0.
+     */
+    public int getColumnPoints(int column) {
+        updateColumns();
+        return columnPoints[column];
+    }
+
+    public float getColumnFirst(int column) {
+        return columnFirst[column];
+    }
+
+    public float getColumnLast(int column) {
+        return columnLast[column];
+    }
+
+    public float getColumnMin(int column) {
+        return columnMin[column];
+    }
+
+    public float getColumnMax(int column) {
+        return columnMax[column];
+    }
+
+    private void includeInRange(float x, float y) {
         if (x < xmin) {
             xmin = x;
-        } else if (x > xmax) {
+        }
+        if (x > xmax) {
             xmax = x;
         }
-
         if (y < ymin) {
             ymin = y;
-        } else if (y > ymax) {
+        }
+        if (y > ymax) {
             ymax = y;
         }
     }
 
+    // Work out the range of the points again after a point at the edge of
+    // the range was dropped.
+    private void updateRange() {
+        if (!rangeStale) {
+            return;
+        }
+        resetRange();
+        for (int i = 0; i < size; i++) {
+            includeInRange(getx(i), gety(i));
+        }
+        rangeStale = false;
+    }
+
+    private void resetRange() {
+        xmax = -Float.MAX_VALUE;
+        ymax = -Float.MAX_VALUE;
+        xmin = Float.MAX_VALUE;
+        ymin = Float.MAX_VALUE;
+    }
+
     public float getxmin() {
+        updateRange();
         return xmin;
     }
 
     public float getymin() {
+        updateRange();
         return ymin;
     }
 
     public float getxmax() {
+        updateRange();
         return xmax;
     }
 
     public float getymax() {
+        updateRange();
         return ymax;
     }
 
     // return number of data points in the set
     public int getSize() {
-        return xvals.size();
+        return size;
+    }
+
+    /**
+     * @return The largest number of points kept.
+     */
+    public int getCapacity() {
+        return xvals.length;
     }
 
     public void clearData() {
-        xvals.clear();
-        yvals.clear();
-        xmax = Float.MIN_NORMAL;
-        ymax = Float.MIN_NORMAL;
-        xmin = Float.MAX_VALUE;
-        ymin = Float.MAX_VALUE;
+        clear();
     }
 
     public void clear() {
-        xvals.clear();
-        yvals.clear();
-        xmax = Float.MIN_NORMAL;
-        ymax = Float.MIN_NORMAL;
-        xmin = Float.MAX_VALUE;
-        ymin = Float.MAX_VALUE;
+        start = 0;
+        size = 0;
+        rangeStale = false;
+        resetRange();
+        if (columnPoints != null) {
+            Arrays.fill(columnPoints, 0);
+            columnsStale = false;
+        }
     }
 
+    /**
+     * @param num The position of a point, 0 being the oldest kept.
+     */
     public float getx(int num) {
-        return xvals.get(num);
+        return xvals[slot(num)];
     }
-    
+
     public float gety(int num) {
-        return yvals.get(num);
+        return yvals[slot(num)];
+    }
+
+    private int slot(int num) {
+        int i = start + num;
+        return i < xvals.length ? i : i - xvals.length;
     }
 }
\ No newline at end of file
@@ -0,0 +1,633 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The headless core of the predator-prey simulation. The engine owns the
+ * field, the animals and the population statistics, but knows nothing about
+ * Processing, so it can be stepped as fast as the JVM allows (e.g. for long
+ * batch runs on a server). Anything that wants to follow the simulation, such
+ * as a graph of the populations, registers a {@link StepListener}.
+ */
+public class SimulationEngine {
+	// The default width for the grid.
+	static final int DEFAULT_WIDTH = 80;
+
+	// The default height of the grid.
+	static final int DEFAULT_HEIGHT = 80;
+
+	private Population animalList;
+
+	// Animals born during the current step, reused from step to step.
+	private ArrayList<Animal> babyAnimalStorage;
+
+	// The current state of the field.
+	private Field field;
+
+	// A second field, used to build the next stage of the simulation.
+	private Field updatedField;
+
+	// The current step of the simulation.
+	private int step;
+
+	// Object to keep track of statistics of animal populations
+	private FieldStats stats;
+
+	// Everything that is told about completed steps.
+	private List<StepListener> listeners;
+
+	// The seed all random numbers of a run are derived from.
+	private long seed;
+
+	// The parameters of the species, including how likely each is to be
+	// placed in a cell at a reset.
+	private SpeciesTable table;
+	// A copy of the table as it was at the last reset or restore, and the
+	// species made from it, shared by their animals.
+	private SpeciesTable runningTable;
+	private SpeciesTable.Definition[] kinds;
+
+	// Where to record how long steps take, or null to not measure them.
+	private volatile StepMetrics metrics;
+
+	// The kind of random number generator to use.
+	private RandomStreams.Generator generator = RandomStreams.Generator.SPLITMIX64;
+
+	// Where the random numbers of the current run come from.
+	private RandomStreams streams;
+
+	// The generator used for setting up the board and for sequential steps.
+	private Random rand;
+
+	// Runs the steps on several threads, or null to run them sequentially.
+	private ParallelStep parallelStep;
+
+	// Where the fields record their changes, or null if nobody is tracking
+	// them, and everything that is told about the changes after each step.
+	private DirtyBlocks changes;
+	private final List<DirtyBlocks> trackers = new ArrayList<DirtyBlocks>();
+
+	// The kind of field to run on, see Field(int, int, boolean, boolean).
+	private boolean sparse;
+	private boolean wrap;
+
+	// The size of the area in the middle of the field that is populated at a
+	// reset, or 0 for the whole field.
+	private int initialWidth, initialHeight;
+
+	public SimulationEngine() {
+		this(DEFAULT_WIDTH, DEFAULT_HEIGHT);
+	}
+
+	public SimulationEngine(int width, int height) {
+		this(width, height, new Random().nextLong());
+	}
+
+	/**
+	 * Create an engine whose runs are fully determined by the given seed.
+	 *
+	 * @param width
+	 *          The width of the field.
+	 * @param height
+	 *          The height of the field.
+	 * @param seed
+	 *          The seed for all random numbers.
+	 */
+	public SimulationEngine(int width, int height, long seed) {
+		this(width, height, seed, false, false, 0, 0);
+	}
+
+	/**
+	 * Create an engine whose runs are fully determined by the given seed and
+	 * species parameters.
+	 *
+	 * @param width
+	 *          The width of the field.
+	 * @param height
+	 *          The height of the field.
+	 * @param seed
+	 *          The seed for all random numbers.
+	 * @param table
+	 *          The parameters of the species, see
+	 *          {@link #setSpeciesTable(SpeciesTable)}.
+	 */
+	public SimulationEngine(int width, int height, long seed, SpeciesTable table) {
+		this(width, height, seed, false, false, 0, 0, table);
+	}
+
+	/**
+	 * Create an engine on a field of the given kind, populated only in an area
+	 * in its middle; see {@link #setTopology(boolean, boolean)} and
+	 * {@link #setInitialArea(int, int)}.
+	 *
+	 * @param width
+	 *          The width of the field.
+	 * @param height
+	 *          The height of the field.
+	 * @param seed
+	 *          The seed for all random numbers.
+	 * @param sparse
+	 *          Whether the field only allocates memory where there are animals.
+	 * @param wrap
+	 *          Whether the edges of the field wrap around.
+	 * @param areaWidth
+	 *          The width of the populated area, or 0 for the whole width.
+	 * @param areaHeight
+	 *          The height of the populated area, or 0 for the whole height.
+	 */
+	public SimulationEngine(int width, int height, long seed, boolean sparse, boolean wrap,
+			int areaWidth, int areaHeight) {
+		this(width, height, seed, sparse, wrap, areaWidth, areaHeight, SpeciesTable.standard());
+	}
+
+	private SimulationEngine(int width, int height, long seed, boolean sparse, boolean wrap,
+			int areaWidth, int areaHeight, SpeciesTable table) {
+		if (width <= 0 || height <= 0) {
+			System.out.println("The dimensions must be greater than zero.");
+			System.out.println("Using default values.");
+			height = DEFAULT_HEIGHT;
+			width = DEFAULT_WIDTH;
+		}
+
+		animalList = new Population();
+		babyAnimalStorage = new ArrayList<Animal>();
+		this.sparse = sparse;
+		this.wrap = wrap;
+		initialWidth = areaWidth;
+		initialHeight = areaHeight;
+		field = new Field(width, height, sparse, wrap);
+		updatedField = field.emptyCopy();
+		stats = new FieldStats();
+		listeners = new ArrayList<StepListener>();
+		this.seed = seed;
+		this.table = table;
+
+		// Setup a valid starting point.
+		reset();
+	}
+
+	/**
+	 * Register a listener to be told about every completed step.
+	 *
+	 * @param listener
+	 *          The listener to add.
+	 */
+	public void addStepListener(StepListener listener) {
+		listeners.add(listener);
+	}
+
+	public void removeStepListener(StepListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Choose how steps are run. With 0 threads the animals act one after the
+	 * other in list order. With 1 or more threads the field is split into tiles
+	 * that are run in parallel (see {@link ParallelStep}); for a given seed the
+	 * results are then the same whatever the number of threads.
+	 *
+	 * @param threads
+	 *          The number of worker threads, or 0 to run sequentially.
+	 */
+	public void setParallelism(int threads) {
+		if (parallelStep != null) {
+			parallelStep.shutdown();
+			parallelStep = null;
+		}
+		if (threads > 0) {
+			parallelStep = new ParallelStep(threads);
+		}
+	}
+
+	/**
+	 * @return The number of worker threads, or 0 if steps run sequentially.
+	 */
+	public int getParallelism() {
+		return parallelStep == null ? 0 : parallelStep.getParallelism();
+	}
+
+	/**
+	 * Run the simulation from its current state for the given number of steps.
+	 * Stop before the given number of steps if it ceases to be viable.
+	 *
+	 * @param numSteps
+	 *          The number of steps to run for.
+	 * @return The number of steps actually run.
+	 */
+	public int simulate(int numSteps) {
+		int done = 0;
+		while (done < numSteps && isViable()) {
+			simulateOneStep();
+			done++;
+		}
+		return done;
+	}
+
+	/**
+	 * Run the simulation from its current state for a single step. Iterate over
+	 * the whole field updating the state of each animal.
+	 */
+	public void simulateOneStep() {
+		StepMetrics measure = metrics;
+		long start = 0;
+		long allocated = 0;
+		long mark = 0;
+		if (measure != null) {
+			allocated = StepMetrics.allocatedBytes();
+			start = mark = System.nanoTime();
+		}
+		step++;
+
+		babyAnimalStorage.clear();
+		if (parallelStep != null) {
+			parallelStep.step(animalList, babyAnimalStorage, field, updatedField,
+					streams, step);
+		} else {
+			for (int i = 0; i < animalList.size(); i++) {
+				Animal myAnimal = animalList.get(i);
+				streams.stream(rand, step, field.index(myAnimal.col, myAnimal.row));
+				myAnimal.act(field, updatedField, babyAnimalStorage, rand);
+			}
+		}
+		if (measure != null) {
+			mark = measure.lap(StepMetrics.Phase.ACT, mark);
+		}
+		// Drop the dead in one pass rather than one removal per death, and
+		// keep the population counts up to date as we go.
+		animalList.removeDead(stats);
+		for (int i = 0; i < babyAnimalStorage.size(); i++) {
+			stats.recordBirth(babyAnimalStorage.get(i).getSpecies());
+		}
+		animalList.addAll(babyAnimalStorage);
+		if (measure != null) {
+			mark = measure.lap(StepMetrics.Phase.POPULATION, mark);
+		}
+
+		// Swap the field and updatedField at the end of the step.
+		Field temp = field;
+		field = updatedField;
+		updatedField = temp;
+		updatedField.clear();
+		publishChanges();
+		if (measure != null) {
+			mark = measure.lap(StepMetrics.Phase.SWAP, mark);
+		}
+
+		for (StepListener listener : listeners) {
+			listener.stepCompleted(this);
+		}
+		if (measure != null) {
+			measure.lap(StepMetrics.Phase.LISTENERS, mark);
+			measure.stepCompleted(start, allocated, stats);
+		}
+	}
+
+	/**
+	 * Reset the simulation to a starting position. Resetting with the same
+	 * seed always gives the same run.
+	 */
+	public void reset() {
+		if (field.isSparse() != sparse || field.isWrapping() != wrap) {
+			field = new Field(field.getWidth(), field.getHeight(), sparse, wrap);
+			updatedField = field.emptyCopy();
+		}
+		step = 0;
+		runningTable = table.copy();
+		kinds = runningTable.defineAll();
+		streams = new RandomStreams(seed, generator);
+		rand = streams.create();
+		animalList.clear();
+		field.clear();
+		updatedField.clear();
+		initializeBoard(field);
+		stats.countAll(animalList);
+		fieldReplaced();
+	}
+
+	/**
+	 * Populate a field with animals of every species, in the placement order
+	 * of the species table.
+	 *
+	 * @param field
+	 *          The field to be populated.
+	 */
+	private void initializeBoard(Field field) {
+		field.clear();
+		int areaWidth = initialWidth > 0 ? Math.min(initialWidth, field.getWidth()) : field.getWidth();
+		int areaHeight = initialHeight > 0 ? Math.min(initialHeight, field.getHeight())
+				: field.getHeight();
+		int firstCol = (field.getWidth() - areaWidth) / 2;
+		int firstRow = (field.getHeight() - areaHeight) / 2;
+		byte[] order = runningTable.placementOrder();
+		for (int row = firstRow; row < firstRow + areaHeight; row++) {
+			for (int col = firstCol; col < firstCol + areaWidth; col++) {
+				streams.stream(rand, 0, field.index(col, row));
+				for (byte species : order) {
+					if (rand.nextDouble() <= runningTable.creationProbability[species]) {
+						Animal animal = Animal.create(kinds[species], true, rand);
+						animal.setLocation(col, row);
+						animalList.add(animal);
+						field.put(animal, col, row);
+						break;
+					}
+				}
+			}
+		}
+		animalList.shuffle(streams.stream(rand, 0, RandomStreams.NO_CELL));
+	}
+
+	/**
+	 * Replace the whole state of the simulation, e.g. with one loaded from a
+	 * file.
+	 */
+	public void restore(List<Animal> animals, Field newField, int steps) {
+		if (newField.isSparse() != sparse || newField.isWrapping() != wrap) {
+			// Carry on in the kind of field this engine is set up for.
+			Field copy = new Field(newField.getWidth(), newField.getHeight(), sparse, wrap);
+			for (int i = 0; i < newField.getWidth() * newField.getHeight(); i++) {
+				Object obj = newField.getObjectAt(i);
+				if (obj != null) {
+					copy.put(obj, i);
+				}
+			}
+			newField = copy;
+		}
+		animalList = new Population(animals);
+		field = newField;
+		updatedField = newField.emptyCopy();
+		step = steps;
+		stats.countAll(animalList);
+		fieldReplaced();
+	}
+
+	/**
+	 * Record every change to the field from now on. After each step, and
+	 * after anything else that changes the field, the blocks that changed are
+	 * added to every object tracking them, so however many steps have run
+	 * since its owner last cleared it, it holds every cell that may differ.
+	 * Each owner clears its own, e.g. a display once it has drawn the changes
+	 * and a checkpoint once it has saved them. When the whole state is
+	 * replaced, every block is marked, and the object is resized if the field
+	 * has changed size. The objects are only used on the engine's thread.
+	 *
+	 * @param tracker
+	 *          Where to record the changes; every block starts marked.
+	 */
+	public void trackChanges(DirtyBlocks tracker) {
+		tracker.markAll(field.getWidth() * field.getHeight());
+		trackers.add(tracker);
+		if (changes == null) {
+			changes = new DirtyBlocks(field.getWidth() * field.getHeight());
+			field.trackChanges(changes);
+			updatedField.trackChanges(changes);
+		}
+	}
+
+	/**
+	 * Stop recording changes into an object given to
+	 * {@link #trackChanges(DirtyBlocks)}.
+	 */
+	public void stopTracking(DirtyBlocks tracker) {
+		trackers.remove(tracker);
+		if (trackers.isEmpty() && changes != null) {
+			changes = null;
+			field.trackChanges(null);
+			updatedField.trackChanges(null);
+		}
+	}
+
+	// Pass on the blocks changed since the last time to everything tracking
+	// them.
+	private void publishChanges() {
+		if (changes == null) {
+			return;
+		}
+		for (int i = 0; i < trackers.size(); i++) {
+			trackers.get(i).addAll(changes);
+		}
+		changes.clear();
+	}
+
+	// Tell everything tracking changes that the whole field has been
+	// replaced, perhaps by one of another size.
+	private void fieldReplaced() {
+		if (changes == null) {
+			return;
+		}
+		int cells = field.getWidth() * field.getHeight();
+		if (changes.cells() != cells) {
+			changes = new DirtyBlocks(cells);
+		} else {
+			changes.clear();
+		}
+		field.trackChanges(changes);
+		updatedField.trackChanges(changes);
+		for (int i = 0; i < trackers.size(); i++) {
+			trackers.get(i).markAll(cells);
+		}
+	}
+
+	/**
+	 * Replace the whole state of the simulation with a snapshot, including the
+	 * seed, generator and species table, so that the run continues as it
+	 * would have without being saved.
+	 *
+	 * @param snapshot
+	 *          The state to continue from.
+	 */
+	public void restore(Snapshot snapshot) {
+		seed = snapshot.getSeed();
+		generator = snapshot.getGenerator();
+		runningTable = snapshot.getSpeciesTable();
+		kinds = snapshot.getKinds();
+		table = runningTable.copy();
+		streams = new RandomStreams(seed, generator);
+		rand = streams.create();
+		restore(snapshot.getAnimals(), snapshot.getField(), snapshot.getStep());
+	}
+
+	/**
+	 * Remove whatever animal is at the given location from the simulation.
+	 *
+	 * @param location
+	 *          A location inside the field.
+	 */
+	public void removeAnimalAt(Location location) {
+		Object animal = field.getObjectAt(location);
+		if (animal instanceof Animal && animalList.remove((Animal) animal)) {
+			stats.recordRemoval(((Animal) animal).getSpecies());
+		}
+		field.put(null, location);
+		updatedField.put(null, location);
+		publishChanges();
+	}
+
+	public boolean isViable() {
+		return stats.isViable();
+	}
+
+	public Field getField() {
+		return this.field;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * Change the seed; takes effect at the next reset.
+	 */
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * Measure every step from now on.
+	 *
+	 * @param metrics
+	 *          Where to record the measurements, or null to stop measuring.
+	 */
+	public void setMetrics(StepMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	public StepMetrics getMetrics() {
+		return metrics;
+	}
+
+	/**
+	 * Change the parameters of the species; takes effect at the next reset,
+	 * which makes the definitions the new animals share from the table.
+	 * Restoring a {@link Snapshot} replaces the table with the one it was
+	 * saved with.
+	 *
+	 * @param table
+	 *          The parameters, which are read at every reset.
+	 */
+	public void setSpeciesTable(SpeciesTable table) {
+		this.table = table;
+	}
+
+	public SpeciesTable getSpeciesTable() {
+		return table;
+	}
+
+	/**
+	 * @return The parameters the current animals were made with, which are
+	 *         saved with the run; not to be changed.
+	 */
+	SpeciesTable getRunningTable() {
+		return runningTable;
+	}
+
+	/**
+	 * Choose the kind of field to run on; takes effect at the next reset or
+	 * restore.
+	 *
+	 * @param sparse
+	 *          Whether the field only allocates memory where there are
+	 *          animals, for huge fields with scattered populations.
+	 * @param wrap
+	 *          Whether the edges of the field wrap around (a torus).
+	 */
+	public void setTopology(boolean sparse, boolean wrap) {
+		this.sparse = sparse;
+		this.wrap = wrap;
+	}
+
+	public boolean isSparse() {
+		return sparse;
+	}
+
+	public boolean isWrapping() {
+		return wrap;
+	}
+
+	/**
+	 * Only populate an area in the middle of the field at a reset, e.g. to
+	 * let a population spread out over a huge sparse field; takes effect at
+	 * the next reset.
+	 *
+	 * @param width
+	 *          The width of the area, or 0 for the whole width.
+	 * @param height
+	 *          The height of the area, or 0 for the whole height.
+	 */
+	public void setInitialArea(int width, int height) {
+		initialWidth = width;
+		initialHeight = height;
+	}
+
+	public RandomStreams.Generator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * Change the kind of random number generator; takes effect at the next
+	 * reset.
+	 */
+	public void setGenerator(RandomStreams.Generator generator) {
+		this.generator = generator;
+	}
+
+	public FieldStats getStats() {
+		return stats;
+	}
+
+	public Population getAnimals() {
+		return animalList;
+	}
+
+	/**
+	 * Run a batch simulation without any graphics.
+	 *
+	 * Usage: SimulationEngine [width height [steps [threads [seed [topology
+	 * [areaWidth areaHeight]]]]]]
+	 *
+	 * The topology is one of bounded (the default), torus, sparse or
+	 * sparse-torus; the area is the part of the field populated at the start.
+	 */
+	public static void main(String[] args) {
+		int width = DEFAULT_WIDTH;
+		int height = DEFAULT_HEIGHT;
+		int steps = 1000;
+		int threads = 0;
+		long seed = new Random().nextLong();
+		if (args.length >= 2) {
+			width = Integer.parseInt(args[0]);
+			height = Integer.parseInt(args[1]);
+		}
+		if (args.length >= 3) {
+			steps = Integer.parseInt(args[2]);
+		}
+		if (args.length >= 4) {
+			threads = Integer.parseInt(args[3]);
+		}
+		if (args.length >= 5) {
+			seed = Long.parseLong(args[4]);
+		}
+		String topology = args.length >= 6 ? args[5] : "bounded";
+		int areaWidth = args.length >= 8 ? Integer.parseInt(args[6]) : 0;
+		int areaHeight = args.length >= 8 ? Integer.parseInt(args[7]) : 0;
+
+		SimulationEngine engine = new SimulationEngine(width, height, seed,
+				topology.startsWith("sparse"), topology.endsWith("torus"), areaWidth, areaHeight);
+		engine.setParallelism(threads);
+		long start = System.nanoTime();
+		int done = engine.simulate(steps);
+		double seconds = (System.nanoTime() - start) / 1e9;
+
+		System.out.println("Ran " + done + " steps in " + seconds + " s ("
+				+ (done / seconds) + " steps/s)");
+		System.out.println(engine.getStats().getPopulationDetails());
+		if (engine.isSparse()) {
+			System.out.println("Allocated " + engine.getField().getAllocatedCells() + " of "
+					+ (long) width * height + " cells");
+		}
+		engine.setParallelism(0);
+	}
+}
@@ -0,0 +1,383 @@
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs a {@link SimulationEngine} on a thread of its own, so that how fast
+ * the simulation goes does not depend on how often the window is drawn, and
+ * drawing never holds up the simulation.
+ *
+ * The engine is only ever touched by this thread. Others see it through
+ * {@link Frame}s: copies of the species in every cell and of the population
+ * counts, handed over through three buffers. One belongs to the simulation,
+ * one to the reader and one is in between, so neither side ever waits for
+ * the other or locks anything. A new frame is only filled in once the reader
+ * has taken the last one, so however fast the simulation runs, copying the
+ * field costs no more than the reader's frame rate; in return a frame shows
+ * the step reached when the reader took the one before, one of the reader's
+ * frames ago. The population counts of the steps in between are kept in
+ * the frame as well, so a graph misses none of them. Each frame only copies
+ * the blocks of cells that have changed since it was last filled, and says
+ * which blocks differ from the frame before, so a reader can redraw just
+ * those.
+ *
+ * Anything else that has to be done to the engine, such as resetting it or
+ * saving it, is passed to {@link #submit(Runnable)} and run between steps.
+ */
+public class SimulationThread {
+	/** The most steps whose counts a frame keeps; older ones are dropped */
+	public static final int MAX_HISTORY = 1 << 14;
+
+	// How long to wait before trying again to hand over a frame the reader
+	// has not asked for yet, while there are no steps to run.
+	private static final long RETRY_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/**
+	 * The state of the simulation at one step, and the population counts of
+	 * every step since the frame before.
+	 */
+	public static class Frame {
+		private int width, height;
+		private int step;
+		private int run;
+		private byte[] cells = new byte[0];
+		private final long[] counts = new long[Species.COUNT];
+
+		// The blocks that have changed since this frame was last filled, and
+		// the ones that differ from the frame handed over before it.
+		private final DirtyBlocks stale = new DirtyBlocks(0);
+		private final DirtyBlocks changes = new DirtyBlocks(0);
+
+		// The step and counts of each step since the last frame.
+		private int historySize;
+		private int[] historySteps = new int[64];
+		private long[] historyCounts = new long[64 * Species.COUNT];
+
+		private void fill(SimulationEngine engine, int run, DirtyBlocks sinceLast) {
+			Field field = engine.getField();
+			width = field.getWidth();
+			height = field.getHeight();
+			if (cells.length != width * height) {
+				cells = new byte[width * height];
+			}
+			for (int n = 0; n < stale.count(); n++) {
+				int block = stale.changedBlock(n);
+				int first = stale.firstCell(block);
+				int end = first + stale.blockLength(block);
+				for (int i = first; i < end; i++) {
+					cells[i] = Species.of(field.getObjectAt(i));
+				}
+			}
+			stale.clear();
+			changes.clear();
+			changes.addAll(sinceLast);
+			sinceLast.clear();
+			step = engine.getStep();
+			this.run = run;
+			for (byte species = 0; species < Species.COUNT; species++) {
+				counts[species] = engine.getStats().getCount(species);
+			}
+		}
+
+		private void addHistory(int step, FieldStats stats) {
+			if (historySize == MAX_HISTORY) {
+				// Nobody has looked for a long time; keep the newer half.
+				int keep = MAX_HISTORY / 2;
+				System.arraycopy(historySteps, historySize - keep, historySteps, 0, keep);
+				System.arraycopy(historyCounts, (historySize - keep) * Species.COUNT,
+						historyCounts, 0, keep * Species.COUNT);
+				historySize = keep;
+			}
+			if (historySize == historySteps.length) {
+				historySteps = Arrays.copyOf(historySteps, historySize * 2);
+				historyCounts = Arrays.copyOf(historyCounts, historySize * 2 * Species.COUNT);
+			}
+			historySteps[historySize] = step;
+			for (byte species = 0; species < Species.COUNT; species++) {
+				historyCounts[historySize * Species.COUNT + species] = stats.getCount(species);
+			}
+			historySize++;
+		}
+
+		public int getStep() {
+			return step;
+		}
+
+		/**
+		 * @return A number that changes whenever the simulation is reset or
+		 *         replaced, so that a graph knows to start again.
+		 */
+		public int getRun() {
+			return run;
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * @return The species code of every cell, row by row. Do not change it.
+		 */
+		public byte[] getCells() {
+			return cells;
+		}
+
+		/**
+		 * @return The blocks of cells that may differ from the frame before.
+		 *         Do not change it.
+		 */
+		public DirtyBlocks getChanges() {
+			return changes;
+		}
+
+		public byte getSpecies(int col, int row) {
+			return cells[row * width + col];
+		}
+
+		public long getCount(byte species) {
+			return counts[species];
+		}
+
+		/**
+		 * @return The number of steps run since the frame before, up to
+		 *         {@link SimulationThread#MAX_HISTORY}.
+		 */
+		public int getHistorySize() {
+			return historySize;
+		}
+
+		/**
+		 * @return The number of the i-th step since the frame before.
+		 */
+		public int getHistoryStep(int i) {
+			return historySteps[i];
+		}
+
+		/**
+		 * @return The population of a species after the i-th step since the
+		 *         frame before.
+		 */
+		public long getHistoryCount(int i, byte species) {
+			return historyCounts[i * Species.COUNT + species];
+		}
+	}
+
+	// Tells the thread to finish.
+	private static final Runnable STOP = new Runnable() {
+		public void run() {
+		}
+	};
+
+	private final SimulationEngine engine;
+	private final Thread thread;
+	private final BlockingQueue<Runnable> commands = new LinkedBlockingQueue<Runnable>();
+
+	// The frame being filled by the simulation, the one waiting for the
+	// reader (null once taken), the one free to be filled next (null while
+	// one is waiting) and the one the reader has.
+	private Frame back = new Frame();
+	private volatile Frame ready;
+	private volatile Frame free = new Frame();
+	private Frame front = new Frame();
+
+	// The blocks changed since the last frame was handed over.
+	private final DirtyBlocks sinceLast = new DirtyBlocks(0);
+
+	// Whether the engine has changed since the last frame was handed over.
+	private boolean changed = true;
+	private int run;
+
+	private volatile boolean paused;
+	private volatile double targetRate;
+
+	/**
+	 * Prepare to run an engine. Nothing runs until {@link #start()}; after
+	 * that, the engine must only be used through {@link #submit(Runnable)}.
+	 *
+	 * @param engine
+	 *            The engine to run.
+	 */
+	public SimulationThread(SimulationEngine engine) {
+		this.engine = engine;
+		final DirtyBlocks[] trackers = { back.stale, free.stale, front.stale, sinceLast };
+		for (DirtyBlocks tracker : trackers) {
+			engine.trackChanges(tracker);
+		}
+		thread = new Thread(new Runnable() {
+			public void run() {
+				try {
+					runSteps();
+				} catch (InterruptedException e) {
+					// Stopped.
+				} finally {
+					for (DirtyBlocks tracker : trackers) {
+						SimulationThread.this.engine.stopTracking(tracker);
+					}
+				}
+			}
+		}, "simulation");
+		thread.setDaemon(true);
+	}
+
+	public void start() {
+		thread.start();
+	}
+
+	/**
+	 * Stop running steps and wait for the thread to finish.
+	 */
+	public void stop() throws InterruptedException {
+		commands.add(STOP);
+		thread.join();
+	}
+
+	// Run by the simulation thread.
+	private void runSteps() throws InterruptedException {
+		long nextStep = System.nanoTime();
+		while (true) {
+			boolean idle = paused || !engine.isViable();
+			Runnable command;
+			if (idle) {
+				// Nothing to run, so wait for something to do, unless a frame
+				// still has to be handed over.
+				command = changed ? commands.poll(RETRY_NANOS, TimeUnit.NANOSECONDS)
+						: commands.take();
+			} else if (targetRate > 0) {
+				command = commands.poll(nextStep - System.nanoTime(), TimeUnit.NANOSECONDS);
+			} else {
+				command = commands.poll();
+			}
+
+			if (command == STOP) {
+				return;
+			}
+			if (command != null) {
+				command.run();
+				changed = true;
+				publish();
+				nextStep = System.nanoTime();
+				continue;
+			}
+			if (!idle) {
+				engine.simulateOneStep();
+				back.addHistory(engine.getStep(), engine.getStats());
+				changed = true;
+				if (targetRate > 0) {
+					long now = System.nanoTime();
+					nextStep += (long) (1e9 / targetRate);
+					// After falling far behind, carry on from now rather than
+					// running flat out to catch up.
+					if (now - nextStep > TimeUnit.SECONDS.toNanos(1)) {
+						nextStep = now;
+					}
+				}
+			}
+			publish();
+		}
+	}
+
+	// Hand the reader a new frame if it has taken the last one.
+	private void publish() {
+		if (!changed || ready != null) {
+			return;
+		}
+		back.fill(engine, run, sinceLast);
+		Frame next = free;
+		free = null;
+		ready = back;
+		back = next;
+		back.historySize = 0;
+		changed = false;
+	}
+
+	/**
+	 * Take the newest frame, if there is one the caller has not had yet. The
+	 * frame stays valid until the next call that returns a new one, and must
+	 * only be read by the thread that took it.
+	 *
+	 * @return The newest frame, or null if there is nothing new.
+	 */
+	public Frame takeFrame() {
+		Frame f = ready;
+		if (f == null) {
+			return null;
+		}
+		free = front;
+		front = f;
+		ready = null;
+		return f;
+	}
+
+	/**
+	 * Run something on the simulation thread between two steps, e.g. to load
+	 * a saved state or to remove animals.
+	 *
+	 * @param command
+	 *            What to run; it may use the engine freely.
+	 */
+	public void submit(Runnable command) {
+		commands.add(command);
+	}
+
+	/**
+	 * Reset the engine and start a new run, as far as frames are concerned.
+	 */
+	public void reset() {
+		submit(new Runnable() {
+			public void run() {
+				engine.reset();
+				newRun();
+			}
+		});
+	}
+
+	/**
+	 * Tell readers that the simulation has started again, e.g. after a saved
+	 * state has been loaded. Only call it from a submitted command.
+	 */
+	public void newRun() {
+		run++;
+		back.historySize = 0;
+	}
+
+	public void setPaused(boolean paused) {
+		this.paused = paused;
+		// Wake the thread so that it notices.
+		submit(new Runnable() {
+			public void run() {
+			}
+		});
+	}
+
+	public boolean isPaused() {
+		return paused;
+	}
+
+	/**
+	 * Limit how fast the simulation runs.
+	 *
+	 * @param stepsPerSecond
+	 *            The number of steps to run a second, or 0 to run as fast as
+	 *            possible.
+	 */
+	public void setTargetRate(double stepsPerSecond) {
+		targetRate = Math.max(0, stepsPerSecond);
+		setPaused(paused);
+	}
+
+	/**
+	 * @return The number of steps run a second, or 0 if there is no limit.
+	 */
+	public double getTargetRate() {
+		return targetRate;
+	}
+
+	public SimulationEngine getEngine() {
+		return engine;
+	}
+}
@@ -1,11 +1,6 @@
-import java.util.Random;
-import java.util.List;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
+
+import javax.management.JMException;
 
 import processing.core.PApplet;
 
@@ -19,37 +14,8 @@ import processing.core.PApplet;
  * 
  */
 public class Simulator {
-	// The default width for the grid.
-	private static final int DEFAULT_WIDTH = 80;
-
-	// The default height of the grid.
-	private static final int DEFAULT_HEIGHT = 80;
-
-	// The probability that a fox will be created in any given grid position.
-	private static final double FOX_CREATION_PROBABILITY = 0.02;
-
-	// The probability that a rabbit will be created in any given grid position.
-	private static final double RABBIT_CREATION_PROBABILITY = 0.08;
-
-	// The probability that a Shrek will be created in any given grid position.
-	private static final double SHREK_CREATION_PROBABILITY = 0.1;
-
-	// Lists of animals in the field. Separate lists are kept for ease of
-	// iteration.
-//	private ArrayList<Rabbit> rabbitList;
-//	private ArrayList<Fox> foxList;
-//	private ArrayList<Shrek> shrekList;
-
-	private ArrayList<Animal> animalList;
-
-	// The current state of the field.
-	private Field field;
-
-	// A second field, used to build the next stage of the simulation.
-	private Field updatedField;
-
-	// The current step of the simulation.
-	private int step;
+	// The headless engine that does the actual simulating.
+	private SimulationEngine engine;
 
 	// A graphical view of the simulation.
 	private FieldDisplay view;
@@ -60,30 +26,83 @@ public class Simulator {
 	// Processing Applet (the graphics window we draw to)
 	private PApplet graphicsWindow;
 
-	// Object to keep track of statistics of animal populations
-	private FieldStats stats;
+	// Plots each step on the graph while the engine runs on this thread.
+	private StepListener graphUpdater;
+
+	// Runs the engine on a thread of its own once started, or null.
+	private SimulationThread runner;
+
+	// The last frame taken from the runner, and the run it belongs to.
+	private SimulationThread.Frame frame;
+	private int graphedRun;
+
+	// The blocks of the field changed since it was last drawn, tracked by the
+	// engine, or gathered from the runner's frames once it has started.
+	private DirtyBlocks undrawn;
 
 
 	public Simulator() {
-		this(DEFAULT_HEIGHT, DEFAULT_WIDTH);
+		this(SimulationEngine.DEFAULT_HEIGHT, SimulationEngine.DEFAULT_WIDTH);
 	}
 
 
 	public Simulator(int width, int height) {
-		if (width <= 0 || height <= 0) {
-			System.out.println("The dimensions must be greater than zero.");
-			System.out.println("Using default values.");
-			height = DEFAULT_HEIGHT;
-			width = DEFAULT_WIDTH;
+		engine = new SimulationEngine(width, height);
+		graphUpdater = new StepListener() {
+			public void stepCompleted(SimulationEngine e) {
+				updateGraph();
+			}
+		};
+		engine.addStepListener(graphUpdater);
+	}
+
+	/**
+	 * Run the engine on a thread of its own from now on, at full speed or at
+	 * the rate set with {@link #setTargetRate(double)}, instead of a step at a
+	 * time through {@link #simulateOneStep()}. The field and graph are then
+	 * drawn from the newest frame the thread has handed over, and anything
+	 * that changes the simulation is passed to the thread to do between steps.
+	 *
+	 * @param paused
+	 *          Whether to wait for {@link #setPaused(boolean)} before running.
+	 */
+	public void start(boolean paused) {
+		if (runner != null) {
+			return;
+		}
+		engine.removeStepListener(graphUpdater);
+		if (undrawn != null) {
+			engine.stopTracking(undrawn);
+		}
+		runner = new SimulationThread(engine);
+		runner.setPaused(paused);
+		runner.start();
+	}
+
+	public void setPaused(boolean paused) {
+		if (runner != null) {
+			runner.setPaused(paused);
 		}
+	}
 
-		animalList = new ArrayList<Animal>();
-		field = new Field(width, height);
-		updatedField = new Field(width, height);
-		stats = new FieldStats();
+	public boolean isPaused() {
+		return runner == null || runner.isPaused();
+	}
 
-		// Setup a valid starting point.
-		reset();
+	/**
+	 * Limit how fast the simulation thread runs.
+	 *
+	 * @param stepsPerSecond
+	 *          The number of steps a second, or 0 for as fast as possible.
+	 */
+	public void setTargetRate(double stepsPerSecond) {
+		if (runner != null) {
+			runner.setTargetRate(stepsPerSecond);
+		}
+	}
+
+	public double getTargetRate() {
+		return runner == null ? 0 : runner.getTargetRate();
 	}
 
 	public void setGUI(PApplet p, int x, int y, int display_width,
@@ -91,21 +110,25 @@ public class Simulator {
 		this.graphicsWindow = p;
 
 		// Create a view of the state of each location in the field.
-		view = new FieldDisplay(p, this.field, x, y, display_width, display_height);
-		view.setColor(Rabbit.class, p.color(155, 155, 155));
-		view.setColor(Fox.class, p.color(200, 0, 255));
-		view.setColor(Shrek.class, p.color(0, 200, 0));
+		view = new FieldDisplay(p, engine.getField(), x, y, display_width, display_height);
+		undrawn = new DirtyBlocks(engine.getField().getWidth() * engine.getField().getHeight());
+		if (runner == null) {
+			engine.trackChanges(undrawn);
+		}
+		for (byte species = 1; species < Species.COUNT; species++) {
+			view.setColor(species, FieldDisplay.SPECIES_COLORS[species]);
+		}
 
 
 		graph = new Graph(p, 100, p.height - 30, p.width - 50, p.height - 110, 0,
-				0, 500, field.getHeight() * field.getWidth());
+				0, 500, engine.getField().getHeight() * engine.getField().getWidth());
 		
 		graph.title = "Fox, Rabbit, and Shrek Populations";
 		graph.xlabel = "Time";
 		graph.ylabel = "Pop.\t\t";
-		graph.setColor(Rabbit.class, p.color(155, 155, 155));
-		graph.setColor(Fox.class, p.color(200, 0, 255));
-		graph.setColor(Shrek.class, p.color(0, 200, 0));
+		for (byte species = 1; species < Species.COUNT; species++) {
+			graph.setColor(Species.nameOf(species), FieldDisplay.SPECIES_COLORS[species]);
+		}
 	}
 
 	public void setGUI(PApplet p) {
@@ -128,9 +151,7 @@ public class Simulator {
 	 *          The number of steps to run for.
 	 */
 	public void simulate(int numSteps) {
-		for (int step = 1; step <= numSteps && isViable(); step++) {
-			simulateOneStep();
-		}
+		engine.simulate(numSteps);
 	}
 
 	/**
@@ -138,81 +159,68 @@ public class Simulator {
 	 * the whole field updating the state of each fox and rabbit.
 	 */
 	public void simulateOneStep() {
-		step++;
+		engine.simulateOneStep();
+	}
 
+	public void updateGraph() {
+		if (graph == null)
+			return;
+		long start = System.nanoTime();
+		FieldStats stats = engine.getStats();
+		for (byte species = 1; species < Species.COUNT; species++) {
+			graph.plotPoint(engine.getStep(), stats.getCount(species),
+					Species.nameOf(species));
+		}
+		recordGraphTime(start);
+	}
 
-		ArrayList<Animal> babyAnimalStorage = new ArrayList<Animal>();
-		for(int i = 0; i<animalList.size();i++){
-			Animal myAnimal = animalList.get(i);
-			myAnimal.act(field, updatedField, babyAnimalStorage);
-			if(!myAnimal.isAlive()){
-				animalList.remove(i);
-				i--;
-			}
+	// Count the time since start as time spent on the graph.
+	private void recordGraphTime(long start) {
+		StepMetrics metrics = engine.getMetrics();
+		if (metrics != null) {
+			metrics.record(StepMetrics.Phase.GRAPH, System.nanoTime() - start);
 		}
-		animalList.addAll(babyAnimalStorage);
-
-//		ArrayList<Rabbit> babyRabbitStorage = new ArrayList<Rabbit>();
-//		for (int i = 0; i < rabbitList.size(); i++) {
-//			Rabbit rabbit = rabbitList.get(i);
-//			rabbit.run(updatedField, babyRabbitStorage);
-//			if (!rabbit.isAlive()) {
-//				rabbitList.remove(i);
-//				i--;
-//			}
-//		}
-//		rabbitList.addAll(babyRabbitStorage);
-//
-//
-//		ArrayList<Fox> babyFoxStorage = new ArrayList<Fox>();
-//		for (int i = 0; i < foxList.size(); i++) {
-//			Fox fox = foxList.get(i);
-//			fox.hunt(field, updatedField, babyFoxStorage);
-//			if (!fox.isAlive()) {
-//				foxList.remove(i);
-//				i--;
-//			}
-//		}
-//		foxList.addAll(babyFoxStorage);
-//
-//
-//		ArrayList<Shrek> babyShrekStorage = new ArrayList<Shrek>();
-//		for (int i = 0; i < shrekList.size(); i++) {
-//			Shrek shrek = shrekList.get(i);
-//			shrek.hunt(field, updatedField, babyShrekStorage);
-//			if (!shrek.isAlive()) {
-//				shrekList.remove(i);
-//				i--;
-//			}
-//		}
-//		shrekList.addAll(babyShrekStorage);
-
-		// Swap the field and updatedField at the end of the step.
-		Field temp = field;
-		field = updatedField;
-		updatedField = temp;
-		updatedField.clear();
-
-		stats.generateCounts(field);
-		updateGraph();
 	}
 
-	public void updateGraph() {
-		Counter count;
-		for (Counter c : stats.getCounts()) {
-			graph.plotPoint(step, c.getCount(), c.getClassName());
+	/**
+	 * Measure the steps of the simulation and the graph updates, make the
+	 * measurements visible over JMX and, if a port is given, serve them in
+	 * the Prometheus text format at http://localhost:port/metrics.
+	 *
+	 * @param port
+	 *          The port to serve the metrics on, or -1 for JMX only.
+	 * @return The metrics.
+	 */
+	public StepMetrics startMetrics(int port) {
+		StepMetrics metrics = new StepMetrics();
+		try {
+			metrics.register("simulator");
+		} catch (JMException e) {
+			System.out.println("Could not register the metrics with JMX: " + e.getMessage());
 		}
+		if (port >= 0) {
+			try {
+				MetricsServer server = new MetricsServer(metrics, port);
+				System.out.println("Serving metrics at http://localhost:" + server.getPort()
+						+ "/metrics");
+			} catch (IOException e) {
+				System.out.println("Could not serve the metrics: " + e.getMessage());
+			}
+		}
+		engine.setMetrics(metrics);
+		return metrics;
 	}
 
 	/**
 	 * Reset the simulation to a starting position.
 	 */
 	public void reset() {
-		step = 0;
-		animalList.clear();
-		field.clear();
-		updatedField.clear();
-		initializeBoard(field);
+		if (runner != null) {
+			// The graph is cleared when the first frame of the new run is drawn.
+			runner.reset();
+			return;
+		}
+		engine.reset();
 
 		if (graph != null)
 			graph.clear();
@@ -222,122 +230,144 @@ public class Simulator {
 	}
 
 	/**
-	 * Populate a field with foxList and rabbitList.
-	 * 
-	 * @param field
-	 *          The field to be populated.
+	 * @return The headless engine behind this simulator.
 	 */
-	private void initializeBoard(Field field) {
-		Random rand = new Random();
-		field.clear();
-		for (int row = 0; row < field.getHeight(); row++) {
-			for (int col = 0; col < field.getWidth(); col++) {
-				if (rand.nextDouble() <= FOX_CREATION_PROBABILITY) {
-					Fox fox = new Fox(true, 3, 50, 0.21,11);
-					fox.setLocation(col, row);
-					animalList.add(fox);
-					field.put(fox, col, row);
-				} else if (rand.nextDouble() <= RABBIT_CREATION_PROBABILITY) {
-					Rabbit rabbit = new Rabbit(true, 3, 30, 0.6,5);
-					rabbit.setLocation(col, row);
-					animalList.add(rabbit);
-					field.put(rabbit, col, row);
-				} else if (rand.nextDouble() <= SHREK_CREATION_PROBABILITY){
-					Shrek shrek = new Shrek(true,3, 100, 0.05, 10);
-					shrek.setLocation(col, row);
-					animalList.add(shrek);
-					field.put(shrek, col, row);
-				}
-			}
-		}
-		Collections.shuffle(animalList);
-
+	public SimulationEngine getEngine() {
+		return engine;
 	}
 
 	private boolean isViable() {
-		return stats.isViable(field);
+		return engine.isViable();
 	}
 
 	public Field getField() {
-		return this.field;
+		return engine.getField();
 	}
 
 	// Draw field if we have a gui defined
 	public void drawField() {
 		if ((graphicsWindow != null) && (view != null)) {
-			view.drawField(this.field);
+			if (runner == null) {
+				view.drawField(engine.getField(), undrawn);
+				undrawn.clear();
+			} else {
+				takeFrame();
+				if (frame != null) {
+					view.drawSpecies(frame.getCells(), frame.getWidth(), frame.getHeight(),
+							undrawn);
+					undrawn.clear();
+				}
+			}
 		}
 	}
 
 	public void drawGraph() {
+		if (runner != null) {
+			takeFrame();
+		}
 		graph.draw();
 	}
 
-	public void writeToFile(String writefile) {
-		try {
-			Record r = new Record(animalList, this.field, this.step);
-			FileOutputStream outStream = new FileOutputStream(writefile);
-			ObjectOutputStream objectOutputFile = new ObjectOutputStream(outStream);
-			objectOutputFile.writeObject(r);
-			objectOutputFile.close();
-		} catch (Exception e) {
-			System.out.println("Something went wrong: " + e.getMessage());
+	// Pick up the newest frame from the simulation thread, and plot the steps
+	// run since the last one.
+	private void takeFrame() {
+		SimulationThread.Frame f = runner.takeFrame();
+		if (f == null) {
+			return;
+		}
+		frame = f;
+		if (undrawn != null) {
+			undrawn.addAll(f.getChanges());
+		}
+		if (graph == null) {
+			return;
+		}
+		long start = System.nanoTime();
+		if (f.getRun() != graphedRun) {
+			graph.clear();
+			graphedRun = f.getRun();
+		}
+		for (int i = 0; i < f.getHistorySize(); i++) {
+			for (byte species = 1; species < Species.COUNT; species++) {
+				graph.plotPoint(f.getHistoryStep(i), f.getHistoryCount(i, species),
+						Species.nameOf(species));
+			}
+		}
+		recordGraphTime(start);
+	}
+
+	/**
+	 * Save the current state of the simulation as a {@link Snapshot}.
+	 */
+	public void writeToFile(final String writefile) {
+		if (runner != null) {
+			runner.submit(new Runnable() {
+				public void run() {
+					saveFile(writefile);
+				}
+			});
+		} else {
+			saveFile(writefile);
 		}
 	}
 
-	public void readFile(String readfile) {
+	private void saveFile(String writefile) {
 		try {
-			FileInputStream inputStream = new FileInputStream(readfile);
-			ObjectInputStream objectInputFile = new ObjectInputStream(inputStream);
-			Record r = (Record) objectInputFile.readObject();
-//			setFoxList(r.getFoxes());
-//			setRabbitList(r.getRabbits());
-			setAnimalList(r.getAnimals());
-			setField(r.getField());
-			setStep(r.getSteps());
-			objectInputFile.close();
-			// clear field
+			Snapshot.write(writefile, engine);
 		} catch (Exception e) {
 			System.out.println("Something went wrong: " + e.getMessage());
 		}
 	}
 
-
-	private void setStep(int steps) {
-		step = steps;
+	/**
+	 * Load a state saved by {@link #writeToFile(String)}. Files saved as a
+	 * serialized {@link Record} by versions before snapshots cannot be read,
+	 * as the classes in them have changed since.
+	 */
+	public void readFile(final String readfile) {
+		if (runner != null) {
+			runner.submit(new Runnable() {
+				public void run() {
+					loadFile(readfile);
+					runner.newRun();
+				}
+			});
+		} else {
+			loadFile(readfile);
+		}
 	}
 
-
-	private void setField(Field newField) {
-		field = newField;
+	private void loadFile(String readfile) {
+		try {
+			engine.restore(Snapshot.read(readfile));
+		} catch (Exception e) {
+			System.out.println("Something went wrong: " + e.getMessage());
+		}
 	}
 
 
-//	private void setRabbitList(ArrayList<Rabbit> newRabbitList) {
-//		rabbitList = newRabbitList;
-//	}
-//	private void setFoxList(ArrayList<Fox> newFoxesList) {
-//		foxList = newFoxesList;
-//	}
-//	private void setShrekList(ArrayList<Shrek> newShrekList) {shrekList = newShrekList; }
-
-	private void setAnimalList(ArrayList<Animal> newAnimalList) {animalList = newAnimalList;}
-
 	public void handleMouseClick(float mouseX, float mouseY) {
-		Location loc = view.gridLocationAt(mouseX, mouseY);
+		final Location loc = view.gridLocationAt(mouseX, mouseY);
+		if (loc == null)
+			return;
+		if (runner != null) {
+			runner.submit(new Runnable() {
+				public void run() {
+					removeAnimalsAround(loc);
+				}
+			});
+		} else {
+			removeAnimalsAround(loc);
+		}
+	}
 
+	// Remove every animal in a square around a location.
+	private void removeAnimalsAround(Location loc) {
 		for (int x = loc.getCol() - 8; x < loc.getCol() + 8; x++) {
 			for (int y = loc.getRow() - 8; y < loc.getRow() + 8; y++) {
 				Location locToCheck = new Location(x, y);
-				if (field.isInGrid(locToCheck)) {
-					Object animal = field.getObjectAt(locToCheck);
-					animalList.remove(animal);
-//					if (animal instanceof Rabbit)
-//						rabbitList.remove((Rabbit) animal);
-//					if (animal instanceof Fox)
-//						foxList.remove((Fox) animal);
-					field.put(null, locToCheck);
-					updatedField.put(null, locToCheck);
+				if (engine.getField().isInGrid(locToCheck)) {
+					engine.removeAnimalAt(locToCheck);
 				}
 			}
 		}
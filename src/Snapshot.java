@@ -0,0 +1,438 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+
+/**
+ * The state of a simulation in a compact, versioned binary format, as an
+ * alternative to serializing a {@link Record}. Instead of one object per
+ * animal and per location, a snapshot holds a species code for every cell
+ * and the age and food level of every animal, so saving an 80x60 field takes
+ * a few KB and a 10M-cell field about 10 MB plus 12 bytes per animal.
+ *
+ * The file layout (all numbers big-endian) is:
+ *
+ * <pre>
+ * int   MAGIC
+ * int   VERSION
+ * int   width, height
+ * int   step
+ * long  seed
+ * byte  generator (ordinal of RandomStreams.Generator)
+ * int   number of animals
+ * int   number of hidden animals
+ * ...   the species table the animals were made with (see SpeciesTable)
+ * byte  species code of every cell, row by row, plus DEAD if the animal
+ *       there is dead
+ * int   age, int food level of every animal on the board, in cell order
+ * byte species, int age, int food level, int cell of every hidden animal
+ * int   every animal in the order the animals act: its cell if it is on the
+ *       board, or -1 - n for the n-th hidden animal
+ * </pre>
+ *
+ * Hidden animals are ones that are still alive but not on the board. Animals
+ * no longer replace each other on the board, so only files saved by earlier
+ * versions, when a newborn could land on another animal, have any. Dead
+ * animals are ones eaten after they moved, which keep their cell until the
+ * next step. Both are saved so that a loaded run carries on exactly as the
+ * saved one would have. Files of version 1 have no species table; their
+ * animals get the standard parameters. Files of versions 1 and 2 hold ages
+ * and food levels as shorts, and those of version 2 a table without
+ * placement priorities.
+ *
+ * Files are written and read through a FileChannel with one direct buffer,
+ * shared by all files, so no stream objects are created per value. Only one
+ * file is written or read at a time.
+ */
+public class Snapshot {
+	/** The first four bytes of every snapshot file: "FRSS" */
+	public static final int MAGIC = 0x46525353;
+
+	/** The version of the format written by this class */
+	public static final int VERSION = 3;
+
+	// Added to the species code of a cell whose animal is dead.
+	static final byte DEAD = (byte) 0x80;
+
+	private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 4 + 8 + 1 + 4 + 4;
+
+	// The bytes saved for each animal on the board, and for each hidden one.
+	private static final int ANIMAL_BYTES = 4 + 4;
+	private static final int HIDDEN_BYTES = 1 + 4 + 4 + 4;
+
+	// The same in files of versions 1 and 2, which saved shorts.
+	private static final int SHORT_ANIMAL_BYTES = 2 + 2;
+	private static final int SHORT_HIDDEN_BYTES = 1 + 2 + 2 + 4;
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	// The one direct buffer all files are written and read through, made when
+	// first needed. Direct memory is only given back by the garbage collector,
+	// so a new buffer per file could run out of it when saving often.
+	private static ByteBuffer sharedBuffer;
+
+	private final Field field;
+	private final ArrayList<Animal> animals;
+	private final int step;
+	private final long seed;
+	private final RandomStreams.Generator generator;
+	private final SpeciesTable table;
+	private final SpeciesTable.Definition[] kinds;
+
+	Snapshot(Field field, ArrayList<Animal> animals, int step, long seed,
+			RandomStreams.Generator generator, SpeciesTable table,
+			SpeciesTable.Definition[] kinds) {
+		this.field = field;
+		this.animals = animals;
+		this.step = step;
+		this.seed = seed;
+		this.generator = generator;
+		this.table = table;
+		this.kinds = kinds;
+	}
+
+	/**
+	 * Write the current state of an engine to a file, replacing the file if
+	 * it exists.
+	 *
+	 * @param file
+	 *            The file to write.
+	 * @param engine
+	 *            The engine whose state is saved.
+	 * @throws IOException
+	 *             If the file cannot be written.
+	 */
+	public static synchronized void write(String file, SimulationEngine engine)
+			throws IOException {
+		Field field = engine.getField();
+		Population population = engine.getAnimals();
+
+		int hiddenCount = 0;
+		for (int i = 0; i < population.size(); i++) {
+			if (!isOnBoard(field, population.get(i))) {
+				hiddenCount++;
+			}
+		}
+
+		FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			ByteBuffer buffer = buffer();
+			buffer.putInt(MAGIC);
+			buffer.putInt(VERSION);
+			buffer.putInt(field.getWidth());
+			buffer.putInt(field.getHeight());
+			buffer.putInt(engine.getStep());
+			buffer.putLong(engine.getSeed());
+			buffer.put((byte) engine.getGenerator().ordinal());
+			buffer.putInt(population.size());
+			buffer.putInt(hiddenCount);
+			engine.getRunningTable().write(buffer);
+
+			// The species codes are gathered a chunk at a time and copied into
+			// the buffer in bulk.
+			int cells = field.getWidth() * field.getHeight();
+			byte[] chunk = new byte[Math.min(cells, BUFFER_SIZE)];
+			for (int start = 0; start < cells; start += chunk.length) {
+				int length = Math.min(chunk.length, cells - start);
+				for (int i = 0; i < length; i++) {
+					chunk[i] = cellCode(field.getObjectAt(start + i));
+				}
+				int done = 0;
+				while (done < length) {
+					if (!buffer.hasRemaining()) {
+						drain(channel, buffer);
+					}
+					int n = Math.min(buffer.remaining(), length - done);
+					buffer.put(chunk, done, n);
+					done += n;
+				}
+			}
+			for (int i = 0; i < cells; i++) {
+				Object obj = field.getObjectAt(i);
+				if (obj instanceof Animal) {
+					if (buffer.remaining() < ANIMAL_BYTES) {
+						drain(channel, buffer);
+					}
+					Animal animal = (Animal) obj;
+					buffer.putInt(animal.getAge());
+					buffer.putInt(animal.getFoodLevel());
+				}
+			}
+			for (int i = 0; i < population.size(); i++) {
+				Animal animal = population.get(i);
+				if (!isOnBoard(field, animal)) {
+					if (buffer.remaining() < HIDDEN_BYTES) {
+						drain(channel, buffer);
+					}
+					buffer.put(animal.getSpecies());
+					buffer.putInt(animal.getAge());
+					buffer.putInt(animal.getFoodLevel());
+					buffer.putInt(field.index(animal.col, animal.row));
+				}
+			}
+			int hidden = 0;
+			for (int i = 0; i < population.size(); i++) {
+				Animal animal = population.get(i);
+				if (buffer.remaining() < 4) {
+					drain(channel, buffer);
+				}
+				if (isOnBoard(field, animal)) {
+					buffer.putInt(field.index(animal.col, animal.row));
+				} else {
+					buffer.putInt(-1 - hidden++);
+				}
+			}
+			drain(channel, buffer);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @param obj
+	 *            What is in a cell, or null.
+	 * @return The code saved for the cell: its species, plus DEAD if it holds
+	 *         a dead animal.
+	 */
+	static byte cellCode(Object obj) {
+		byte code = Species.of(obj);
+		if (obj instanceof Animal && !((Animal) obj).isAlive()) {
+			code |= DEAD;
+		}
+		return code;
+	}
+
+	/**
+	 * Recreate the animal saved for a cell.
+	 *
+	 * @param kinds
+	 *            The definitions of the species, indexed by species code.
+	 * @param code
+	 *            The code saved for the cell, see {@link #cellCode(Object)}.
+	 * @param age
+	 *            The saved age.
+	 * @param food
+	 *            The saved food level.
+	 * @return The animal.
+	 */
+	static Animal cellAnimal(SpeciesTable.Definition[] kinds, byte code, int age, int food) {
+		byte species = (byte) (code & ~DEAD);
+		if (species <= Species.EMPTY || species >= Species.COUNT) {
+			throw new IllegalArgumentException("Unknown species " + species);
+		}
+		Animal animal = Animal.create(kinds[species], false, null);
+		animal.setAge(age);
+		animal.setFoodLevel(food);
+		if ((code & DEAD) != 0) {
+			// Only animals that were eaten die after moving.
+			animal.setEaten();
+		}
+		return animal;
+	}
+
+	private static boolean isOnBoard(Field field, Animal animal) {
+		return field.getObjectAt(animal.col, animal.row) == animal;
+	}
+
+	// The shared buffer, emptied. Only called while holding the class lock.
+	private static ByteBuffer buffer() {
+		if (sharedBuffer == null) {
+			sharedBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		sharedBuffer.clear();
+		return sharedBuffer;
+	}
+
+	// Write out everything in the buffer and make it ready to be filled again.
+	private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	/**
+	 * Read a snapshot file.
+	 *
+	 * @param file
+	 *            The file to read.
+	 * @return The state saved in the file.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a snapshot.
+	 */
+	public static synchronized Snapshot read(String file) throws IOException {
+		FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.READ);
+		try {
+			ByteBuffer buffer = buffer();
+			buffer.flip();
+			fill(channel, buffer, HEADER_BYTES);
+			if (buffer.getInt() != MAGIC) {
+				throw new IOException(file + " is not a snapshot");
+			}
+			int version = buffer.getInt();
+			if (version < 1 || version > VERSION) {
+				throw new IOException(file + " has unsupported snapshot version " + version);
+			}
+			int width = buffer.getInt();
+			int height = buffer.getInt();
+			int step = buffer.getInt();
+			long seed = buffer.getLong();
+			RandomStreams.Generator generator = generator(file, buffer.get());
+			int animalCount = buffer.getInt();
+			int hiddenCount = buffer.getInt();
+			SpeciesTable table = SpeciesTable.standard();
+			if (version >= 2) {
+				boolean withPriorities = version >= 3;
+				fill(channel, buffer, withPriorities ? SpeciesTable.BYTES
+						: SpeciesTable.BYTES_WITHOUT_PRIORITIES);
+				table = SpeciesTable.read(buffer, withPriorities);
+			}
+			SpeciesTable.Definition[] kinds = table.defineAll();
+			boolean shorts = version < 3;
+
+			Field field = new Field(width, height);
+			int cells = width * height;
+			byte[] species = new byte[cells];
+			int done = 0;
+			while (done < cells) {
+				if (!buffer.hasRemaining()) {
+					fill(channel, buffer, 1);
+				}
+				int n = Math.min(buffer.remaining(), cells - done);
+				buffer.get(species, done, n);
+				done += n;
+			}
+			for (int i = 0; i < cells; i++) {
+				if (species[i] != Species.EMPTY) {
+					fill(channel, buffer, shorts ? SHORT_ANIMAL_BYTES : ANIMAL_BYTES);
+					Animal animal = cellAnimal(kinds, species[i], getNumber(buffer, shorts),
+							getNumber(buffer, shorts));
+					animal.setLocation(field, i);
+					field.put(animal, i);
+				}
+			}
+			Animal[] hidden = new Animal[hiddenCount];
+			for (int i = 0; i < hiddenCount; i++) {
+				fill(channel, buffer, shorts ? SHORT_HIDDEN_BYTES : HIDDEN_BYTES);
+				hidden[i] = cellAnimal(kinds, buffer.get(), getNumber(buffer, shorts),
+						getNumber(buffer, shorts));
+				hidden[i].setLocation(field, buffer.getInt());
+			}
+			ArrayList<Animal> animals = new ArrayList<Animal>(animalCount);
+			for (int i = 0; i < animalCount; i++) {
+				fill(channel, buffer, 4);
+				int where = buffer.getInt();
+				Object animal = where >= 0 ? field.getObjectAt(where) : hidden[-1 - where];
+				if (!(animal instanceof Animal)) {
+					throw new IOException(file + " is corrupt: animal " + i + " is missing");
+				}
+				animals.add((Animal) animal);
+			}
+			return new Snapshot(field, animals, step, seed, generator, table, kinds);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * @param file
+	 *            The file the ordinal was read from.
+	 * @param ordinal
+	 *            The ordinal of a generator, as saved.
+	 * @return The generator.
+	 * @throws IOException
+	 *             If there is no generator with that ordinal.
+	 */
+	static RandomStreams.Generator generator(String file, int ordinal) throws IOException {
+		RandomStreams.Generator[] generators = RandomStreams.Generator.values();
+		if (ordinal < 0 || ordinal >= generators.length) {
+			throw new IOException(file + " uses unknown generator " + ordinal);
+		}
+		return generators[ordinal];
+	}
+
+	// Read an age or food level, saved as a short by versions before 3.
+	private static int getNumber(ByteBuffer buffer, boolean shorts) {
+		return shorts ? buffer.getShort() : buffer.getInt();
+	}
+
+	// Make sure at least the given number of bytes can be read from the buffer.
+	private static void fill(FileChannel channel, ByteBuffer buffer, int needed)
+			throws IOException {
+		if (buffer.remaining() >= needed) {
+			return;
+		}
+		buffer.compact();
+		while (buffer.position() < needed) {
+			if (channel.read(buffer) < 0) {
+				throw new EOFException("Snapshot ends too soon");
+			}
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * @param file
+	 *            A file name.
+	 * @return true if the file exists and starts like a snapshot.
+	 */
+	public static boolean isSnapshot(String file) {
+		Path path = Paths.get(file);
+		try {
+			FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+			try {
+				ByteBuffer magic = ByteBuffer.allocate(4);
+				while (magic.hasRemaining() && channel.read(magic) >= 0) {
+				}
+				return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	public Field getField() {
+		return field;
+	}
+
+	/**
+	 * @return The animals, in the order in which they act.
+	 */
+	public ArrayList<Animal> getAnimals() {
+		return animals;
+	}
+
+	public int getStep() {
+		return step;
+	}
+
+	public long getSeed() {
+		return seed;
+	}
+
+	public RandomStreams.Generator getGenerator() {
+		return generator;
+	}
+
+	/**
+	 * @return The parameters the animals were saved with.
+	 */
+	public SpeciesTable getSpeciesTable() {
+		return table;
+	}
+
+	/**
+	 * @return The definitions the animals share, indexed by species code.
+	 */
+	SpeciesTable.Definition[] getKinds() {
+		return kinds;
+	}
+}
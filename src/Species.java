@@ -0,0 +1,52 @@
+/**
+ * Small integer codes for the kinds of animal in the simulation. They are
+ * used wherever storing a whole object per cell would be too expensive, for
+ * example in the primitive arrays of a {@link PackedField}.
+ */
+public class Species {
+	/** Represents an empty cell */
+	static final byte EMPTY = 0;
+	/** Represents a rabbit */
+	static final byte RABBIT = 1;
+	/** Represents a fox */
+	static final byte FOX = 2;
+	/** Represents a Shrek */
+	static final byte SHREK = 3;
+	/** One more than the largest species code */
+	static final int COUNT = 4;
+
+	/**
+	 * Return the species code of an object found in a field.
+	 *
+	 * @param obj
+	 *            The object, or null for an empty cell.
+	 * @return The species code of the object.
+	 */
+	static byte of(Object obj) {
+		if (obj instanceof Animal) {
+			return ((Animal) obj).getSpecies();
+		}
+		return EMPTY;
+	}
+
+	/**
+	 * @param code
+	 *            A species code.
+	 * @return The name of the species, e.g. "Fox", or "Species" and the code
+	 *         for a species without a name of its own.
+	 */
+	static String nameOf(byte code) {
+		switch (code) {
+		case EMPTY:
+			return "Empty";
+		case RABBIT:
+			return "Rabbit";
+		case FOX:
+			return "Fox";
+		case SHREK:
+			return "Shrek";
+		default:
+			return "Species" + code;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+
+/**
+ * The parameters of every species, kept once in a table indexed by species
+ * code rather than copied into every animal. Used by the data-oriented
+ * {@link EntityEngine}, and by {@link SimulationEngine}, whose animals share
+ * one {@link Definition} per species made from the table.
+ *
+ * What a species eats is the row of the food value matrix for it, and the
+ * order in which species are tried when the field is populated is given by
+ * their placement priorities, so a new species only needs a code in
+ * {@link Species} and its rows here.
+ */
+public class SpeciesTable {
+	/** The number of bytes a table takes in a file, see {@link #write(ByteBuffer)} */
+	static final int BYTES = Species.COUNT * (5 * 4 + 2 * 8 + Species.COUNT * 4);
+
+	/** The number of bytes of a table saved without placement priorities */
+	static final int BYTES_WITHOUT_PRIORITIES = BYTES - Species.COUNT * 4;
+
+	/**
+	 * Everything about one species that its animals need, fixed once made so
+	 * that all the animals of the species can share it.
+	 */
+	public static class Definition implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final byte species;
+		final int breedingAge;
+		final int maxAge;
+		final double breedingProbability;
+		final int maxLitterSize;
+		final int startingFood;
+		// The species it eats, and how much food it gets from each species.
+		final byte[] prey;
+		final int[] foodValue;
+
+		private Definition(SpeciesTable table, byte species) {
+			this.species = species;
+			breedingAge = table.breedingAge[species];
+			maxAge = table.maxAge[species];
+			breedingProbability = table.breedingProbability[species];
+			maxLitterSize = table.maxLitterSize[species];
+			startingFood = table.startingFood[species];
+			foodValue = table.foodValue[species].clone();
+			int eaten = 0;
+			for (int i = 0; i < Species.COUNT; i++) {
+				if (foodValue[i] > 0) {
+					eaten++;
+				}
+			}
+			prey = new byte[eaten];
+			eaten = 0;
+			for (byte i = 0; i < Species.COUNT; i++) {
+				if (foodValue[i] > 0) {
+					prey[eaten++] = i;
+				}
+			}
+		}
+
+		public byte getSpecies() {
+			return species;
+		}
+
+		/**
+		 * @return Whether animals of the species get hungry and must hunt.
+		 */
+		public boolean isHunter() {
+			return startingFood > 0;
+		}
+	}
+
+	// Breeding and life span, per species.
+	final int[] breedingAge = new int[Species.COUNT];
+	final int[] maxAge = new int[Species.COUNT];
+	final double[] breedingProbability = new double[Species.COUNT];
+	final int[] maxLitterSize = new int[Species.COUNT];
+
+	// The food level a species starts with; 0 if it never gets hungry.
+	final int[] startingFood = new int[Species.COUNT];
+
+	// The probability that a species is placed in a cell at the start.
+	final double[] creationProbability = new double[Species.COUNT];
+
+	// When a species is tried in a cell at the start: lower goes first.
+	final int[] placementPriority = new int[Species.COUNT];
+
+	// How much food a predator gets from eating a prey, indexed
+	// [predator][prey]; 0 if the predator does not eat the prey.
+	final int[][] foodValue = new int[Species.COUNT][Species.COUNT];
+
+	/**
+	 * @return A table with the parameters of the standard simulation.
+	 */
+	public static SpeciesTable standard() {
+		SpeciesTable table = new SpeciesTable();
+		table.setBreeding(Species.RABBIT, 3, 30, 0.6, 5);
+		table.setBreeding(Species.FOX, 3, 50, 0.21, 11);
+		table.setBreeding(Species.SHREK, 3, 100, 0.05, 10);
+		table.setStartingFood(Species.FOX, 6);
+		table.setStartingFood(Species.SHREK, 6);
+		table.setFoodValue(Species.FOX, Species.RABBIT, 6);
+		table.setFoodValue(Species.SHREK, Species.RABBIT, 6);
+		table.setFoodValue(Species.SHREK, Species.FOX, 2);
+		table.setCreationProbability(Species.FOX, 0.02);
+		table.setCreationProbability(Species.RABBIT, 0.08);
+		table.setCreationProbability(Species.SHREK, 0.1);
+		table.setPlacementPriority(Species.FOX, 0);
+		table.setPlacementPriority(Species.RABBIT, 1);
+		table.setPlacementPriority(Species.SHREK, 2);
+		return table;
+	}
+
+	/**
+	 * @param species
+	 *            A species code.
+	 * @return The definition of the species with the parameters the table
+	 *         has now; later changes to the table do not affect it.
+	 */
+	public Definition define(byte species) {
+		return new Definition(this, species);
+	}
+
+	/**
+	 * @return The definitions of all species, indexed by species code.
+	 */
+	public Definition[] defineAll() {
+		Definition[] definitions = new Definition[Species.COUNT];
+		for (byte species = 1; species < Species.COUNT; species++) {
+			definitions[species] = define(species);
+		}
+		return definitions;
+	}
+
+	/**
+	 * @return A table with the same parameters that can be changed on its own.
+	 */
+	public SpeciesTable copy() {
+		SpeciesTable table = new SpeciesTable();
+		System.arraycopy(breedingAge, 0, table.breedingAge, 0, Species.COUNT);
+		System.arraycopy(maxAge, 0, table.maxAge, 0, Species.COUNT);
+		System.arraycopy(breedingProbability, 0, table.breedingProbability, 0, Species.COUNT);
+		System.arraycopy(maxLitterSize, 0, table.maxLitterSize, 0, Species.COUNT);
+		System.arraycopy(startingFood, 0, table.startingFood, 0, Species.COUNT);
+		System.arraycopy(creationProbability, 0, table.creationProbability, 0, Species.COUNT);
+		System.arraycopy(placementPriority, 0, table.placementPriority, 0, Species.COUNT);
+		for (int predator = 0; predator < Species.COUNT; predator++) {
+			System.arraycopy(foodValue[predator], 0, table.foodValue[predator], 0, Species.COUNT);
+		}
+		return table;
+	}
+
+	/**
+	 * Put the table into a buffer, for the snapshot and checkpoint files. For
+	 * every species in turn: int breeding age, int maximum age, double
+	 * breeding probability, int maximum litter size, int starting food,
+	 * double creation probability and an int food value for every prey; then
+	 * the int placement priority of every species.
+	 *
+	 * @param buffer
+	 *            A buffer with at least {@link #BYTES} bytes remaining.
+	 */
+	void write(ByteBuffer buffer) {
+		for (int species = 0; species < Species.COUNT; species++) {
+			buffer.putInt(breedingAge[species]);
+			buffer.putInt(maxAge[species]);
+			buffer.putDouble(breedingProbability[species]);
+			buffer.putInt(maxLitterSize[species]);
+			buffer.putInt(startingFood[species]);
+			buffer.putDouble(creationProbability[species]);
+			for (int prey = 0; prey < Species.COUNT; prey++) {
+				buffer.putInt(foodValue[species][prey]);
+			}
+		}
+		for (int species = 0; species < Species.COUNT; species++) {
+			buffer.putInt(placementPriority[species]);
+		}
+	}
+
+	/**
+	 * Take a table out of a buffer, as put there by {@link #write(ByteBuffer)}.
+	 *
+	 * @param buffer
+	 *            A buffer with at least {@link #BYTES} bytes remaining, or
+	 *            {@link #BYTES_WITHOUT_PRIORITIES} if withPriorities is false.
+	 * @param withPriorities
+	 *            Whether the placement priorities were saved; files of older
+	 *            versions have none, and get the standard ones.
+	 * @return The table.
+	 */
+	static SpeciesTable read(ByteBuffer buffer, boolean withPriorities) {
+		SpeciesTable table = new SpeciesTable();
+		for (int species = 0; species < Species.COUNT; species++) {
+			table.breedingAge[species] = buffer.getInt();
+			table.maxAge[species] = buffer.getInt();
+			table.breedingProbability[species] = buffer.getDouble();
+			table.maxLitterSize[species] = buffer.getInt();
+			table.startingFood[species] = buffer.getInt();
+			table.creationProbability[species] = buffer.getDouble();
+			for (int prey = 0; prey < Species.COUNT; prey++) {
+				table.foodValue[species][prey] = buffer.getInt();
+			}
+		}
+		if (withPriorities) {
+			for (int species = 0; species < Species.COUNT; species++) {
+				table.placementPriority[species] = buffer.getInt();
+			}
+		} else {
+			System.arraycopy(standard().placementPriority, 0, table.placementPriority, 0,
+					Species.COUNT);
+		}
+		return table;
+	}
+
+	public void setBreeding(byte species, int breedingAge, int maxAge,
+			double breedingProbability, int maxLitterSize) {
+		this.breedingAge[species] = breedingAge;
+		this.maxAge[species] = maxAge;
+		this.breedingProbability[species] = breedingProbability;
+		this.maxLitterSize[species] = maxLitterSize;
+	}
+
+	public void setStartingFood(byte species, int food) {
+		startingFood[species] = food;
+	}
+
+	public void setFoodValue(byte predator, byte prey, int value) {
+		foodValue[predator][prey] = value;
+	}
+
+	public void setCreationProbability(byte species, double probability) {
+		creationProbability[species] = probability;
+	}
+
+	/**
+	 * Set when a species is tried, compared with the others, when a cell is
+	 * populated at the start. Each cell gets the first species tried that it
+	 * draws; species with a lower priority are tried first, and species with
+	 * the same priority in the order of their codes.
+	 */
+	public void setPlacementPriority(byte species, int priority) {
+		placementPriority[species] = priority;
+	}
+
+	/**
+	 * @return The codes of all species, in the order they are tried when
+	 *         populating a cell.
+	 */
+	public byte[] placementOrder() {
+		byte[] order = new byte[Species.COUNT - 1];
+		for (byte species = 1; species < Species.COUNT; species++) {
+			// Insert it after every species that goes no later.
+			int i = species - 1;
+			while (i > 0 && placementPriority[order[i - 1]] > placementPriority[species]) {
+				order[i] = order[i - 1];
+				i--;
+			}
+			order[i] = species;
+		}
+		return order;
+	}
+
+	/**
+	 * @return Whether animals of the species get hungry and must hunt.
+	 */
+	public boolean isHunter(byte species) {
+		return startingFood[species] > 0;
+	}
+}
@@ -0,0 +1,65 @@
+import java.util.Random;
+
+/**
+ * A {@link Random} driven by the SplitMix64 generator. It is much faster than
+ * java.util.Random, has no atomic seed to contend on, and reseeding it is just
+ * an assignment, so it is cheap to give every animal its own stream (see
+ * {@link RandomStreams}). Instances are not thread safe.
+ */
+public class SplitMix64Random extends Random {
+	private static final long serialVersionUID = 1L;
+
+	private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+
+	// Deliberately not initialised here: Random's constructor calls setSeed
+	// before the fields of a subclass are initialised.
+	private long state;
+
+	public SplitMix64Random() {
+		super();
+	}
+
+	public SplitMix64Random(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		state = seed;
+	}
+
+	@Override
+	public long nextLong() {
+		state += GOLDEN_GAMMA;
+		return mix(state);
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	@Override
+	public int nextInt() {
+		return (int) (nextLong() >>> 32);
+	}
+
+	@Override
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	@Override
+	public boolean nextBoolean() {
+		return nextLong() < 0;
+	}
+
+	/**
+	 * The SplitMix64 output function: a bijective scramble of 64 bits.
+	 */
+	static long mix(long z) {
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+}
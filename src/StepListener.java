@@ -0,0 +1,16 @@
+/**
+ * Something that wants to be told when the simulation engine has finished a
+ * step, e.g. a graph of the populations or a logger. Listeners are called on
+ * the thread that runs the engine, after the field swap and the statistics
+ * for the new step have been generated.
+ */
+public interface StepListener {
+
+	/**
+	 * Called once at the end of every step.
+	 *
+	 * @param engine
+	 *          The engine that has just completed a step.
+	 */
+	void stepCompleted(SimulationEngine engine);
+}
@@ -0,0 +1,301 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Measures where the steps of a {@link SimulationEngine} spend their time:
+ * a {@link Histogram} of the time taken by each {@link Phase}, the bytes
+ * allocated per step, the step rate and the population of each species.
+ *
+ * Give it to an engine with {@link SimulationEngine#setMetrics(StepMetrics)};
+ * an engine without one measures nothing. The numbers can then be watched
+ * over JMX (see {@link #register(String)}) or scraped in the Prometheus text
+ * format (see {@link #toPrometheus()} and {@link MetricsServer}). Everything
+ * may be read from any thread while the engine runs.
+ */
+public class StepMetrics implements StepMetricsMXBean {
+	/** The parts of a step that are timed */
+	public enum Phase {
+		/** A whole step */
+		STEP,
+		/** Every animal acting */
+		ACT,
+		/** Dropping the dead, adding the newborns and updating the counts */
+		POPULATION,
+		/** Swapping the fields and clearing the old one */
+		SWAP,
+		/** Telling the step listeners */
+		LISTENERS,
+		/** Plotting new steps on the graph, which may be on another thread */
+		GRAPH;
+
+		/** @return The name used in metrics, e.g. "act". */
+		public String label() {
+			return name().toLowerCase(Locale.ROOT);
+		}
+	}
+
+	// How many step times are kept to work out the step rate, and how far
+	// back the rate looks.
+	private static final int RATE_STEPS = 256;
+	private static final long RATE_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+	// The upper bounds of the Prometheus histogram buckets: powers of four,
+	// from about a microsecond to 17 seconds, and from 1 KiB to 1 GiB.
+	private static final int FIRST_TIME_POWER = 10;
+	private static final int LAST_TIME_POWER = 34;
+	private static final int FIRST_BYTES_POWER = 10;
+	private static final int LAST_BYTES_POWER = 30;
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+	private final Histogram[] times = new Histogram[Phase.values().length];
+	private final Histogram allocated = new Histogram();
+	private final AtomicLong steps = new AtomicLong();
+	private final AtomicLongArray population = new AtomicLongArray(Species.COUNT);
+
+	// When each of the last RATE_STEPS steps ended, by step count, and when
+	// counting started.
+	private final AtomicLongArray stepEnds = new AtomicLongArray(RATE_STEPS);
+	private volatile long started = System.nanoTime();
+
+	public StepMetrics() {
+		for (int p = 0; p < times.length; p++) {
+			times[p] = new Histogram();
+		}
+	}
+
+	/**
+	 * @return The number of bytes the calling thread has allocated so far, or
+	 *         -1 if the JVM cannot tell.
+	 */
+	static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) THREADS)
+					.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Record how long a phase took.
+	 *
+	 * @param phase
+	 *            The phase.
+	 * @param nanos
+	 *            Its time in nanoseconds.
+	 */
+	public void record(Phase phase, long nanos) {
+		times[phase.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Record the time from since until now for a phase.
+	 *
+	 * @return Now, as given by System.nanoTime(), to time the next phase from.
+	 */
+	long lap(Phase phase, long since) {
+		long now = System.nanoTime();
+		times[phase.ordinal()].record(now - since);
+		return now;
+	}
+
+	/**
+	 * Record the end of a step. Called by the engine on its own thread.
+	 *
+	 * @param start
+	 *            When the step started, as given by System.nanoTime().
+	 * @param allocatedBefore
+	 *            What {@link #allocatedBytes()} gave when the step started.
+	 * @param stats
+	 *            The counts after the step.
+	 */
+	void stepCompleted(long start, long allocatedBefore, FieldStats stats) {
+		long now = System.nanoTime();
+		times[Phase.STEP.ordinal()].record(now - start);
+		if (allocatedBefore >= 0) {
+			allocated.record(allocatedBytes() - allocatedBefore);
+		}
+		for (byte species = 1; species < Species.COUNT; species++) {
+			population.set(species, stats.getCount(species));
+		}
+		long step = steps.get();
+		stepEnds.set((int) (step % RATE_STEPS), now);
+		steps.set(step + 1);
+	}
+
+	public long getSteps() {
+		return steps.get();
+	}
+
+	/**
+	 * @return The steps run in the last ten seconds (or the last 255 steps, if
+	 *         fewer) divided by the time from the end of the step before them
+	 *         until now.
+	 */
+	public double getStepsPerSecond() {
+		long now = System.nanoTime();
+		long done = steps.get();
+		int counted = 0;
+		long from = started;
+		// The end of the step before the oldest one counted must still be kept.
+		for (long step = done - 1; step >= 0 && step > done - RATE_STEPS; step--) {
+			long end = stepEnds.get((int) (step % RATE_STEPS));
+			if (now - end > RATE_NANOS) {
+				from = end;
+				break;
+			}
+			counted++;
+			from = step > 0 ? stepEnds.get((int) ((step - 1) % RATE_STEPS)) : started;
+		}
+		if (counted == 0 || now <= from) {
+			return 0;
+		}
+		return counted * 1e9 / (now - from);
+	}
+
+	public Map<String, Long> getPopulation() {
+		Map<String, Long> counts = new LinkedHashMap<String, Long>();
+		for (byte species = 1; species < Species.COUNT; species++) {
+			counts.put(Species.nameOf(species), population.get(species));
+		}
+		return counts;
+	}
+
+	/**
+	 * @return The times of a phase.
+	 */
+	public Histogram getTimes(Phase phase) {
+		return times[phase.ordinal()];
+	}
+
+	/**
+	 * @return The bytes allocated by each step, on the thread running it.
+	 *         Allocations by the workers of a parallel step are not included.
+	 */
+	public Histogram getAllocated() {
+		return allocated;
+	}
+
+	public Map<String, Double> getMeanMicros() {
+		Map<String, Double> micros = new LinkedHashMap<String, Double>();
+		for (Phase phase : Phase.values()) {
+			micros.put(phase.label(), getTimes(phase).getMean() / 1e3);
+		}
+		return micros;
+	}
+
+	public Map<String, Double> getMedianMicros() {
+		return percentileMicros(50);
+	}
+
+	public Map<String, Double> getP99Micros() {
+		return percentileMicros(99);
+	}
+
+	public Map<String, Double> getMaxMicros() {
+		return percentileMicros(100);
+	}
+
+	private Map<String, Double> percentileMicros(double percentile) {
+		Map<String, Double> micros = new LinkedHashMap<String, Double>();
+		for (Phase phase : Phase.values()) {
+			micros.put(phase.label(), getTimes(phase).getValueAtPercentile(percentile) / 1e3);
+		}
+		return micros;
+	}
+
+	public double getMeanAllocatedBytes() {
+		return allocated.getMean();
+	}
+
+	public void reset() {
+		for (Histogram histogram : times) {
+			histogram.reset();
+		}
+		allocated.reset();
+		steps.set(0);
+		started = System.nanoTime();
+	}
+
+	/**
+	 * Make the metrics visible over JMX, under
+	 * FoxesAndRabbits:type=StepMetrics,name=name.
+	 *
+	 * @param name
+	 *            Tells the metrics of several engines apart.
+	 * @return The name they were registered under.
+	 * @throws JMException
+	 *             If they cannot be registered, e.g. because the name is taken.
+	 */
+	public ObjectName register(String name) throws JMException {
+		ObjectName objectName = new ObjectName("FoxesAndRabbits:type=StepMetrics,name="
+				+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+		return objectName;
+	}
+
+	/**
+	 * @return The metrics in the Prometheus text exposition format.
+	 */
+	public String toPrometheus() {
+		StringBuilder out = new StringBuilder();
+		out.append("# HELP foxes_steps_total Steps run.\n");
+		out.append("# TYPE foxes_steps_total counter\n");
+		out.append("foxes_steps_total ").append(getSteps()).append('\n');
+
+		out.append("# HELP foxes_steps_per_second Steps run a second lately.\n");
+		out.append("# TYPE foxes_steps_per_second gauge\n");
+		out.append("foxes_steps_per_second ").append(getStepsPerSecond()).append('\n');
+
+		out.append("# HELP foxes_population Animals of each species after the last step.\n");
+		out.append("# TYPE foxes_population gauge\n");
+		for (byte species = 1; species < Species.COUNT; species++) {
+			out.append("foxes_population{species=\"")
+					.append(Species.nameOf(species).toLowerCase(Locale.ROOT)).append("\"} ")
+					.append(population.get(species)).append('\n');
+		}
+
+		out.append("# HELP foxes_phase_seconds Time taken by each phase of a step.\n");
+		out.append("# TYPE foxes_phase_seconds histogram\n");
+		for (Phase phase : Phase.values()) {
+			appendHistogram(out, "foxes_phase_seconds", "phase=\"" + phase.label() + "\",",
+					getTimes(phase), FIRST_TIME_POWER, LAST_TIME_POWER, 1e-9);
+		}
+
+		out.append("# HELP foxes_step_allocated_bytes Bytes allocated by the stepping thread"
+				+ " in a step.\n");
+		out.append("# TYPE foxes_step_allocated_bytes histogram\n");
+		appendHistogram(out, "foxes_step_allocated_bytes", "", allocated, FIRST_BYTES_POWER,
+				LAST_BYTES_POWER, 1);
+		return out.toString();
+	}
+
+	// Write a histogram with a bucket for each power of four between two
+	// powers of two, in units of scale.
+	private static void appendHistogram(StringBuilder out, String name, String labels,
+			Histogram histogram, int firstPower, int lastPower, double scale) {
+		// Read the count first, so that no bucket is larger than it.
+		long count = histogram.getCount();
+		for (int power = firstPower; power <= lastPower; power += 2) {
+			long below = Math.min(histogram.getCountBelow(1L << power), count);
+			out.append(name).append("_bucket{").append(labels).append("le=\"")
+					.append((1L << power) * scale).append("\"} ").append(below).append('\n');
+		}
+		out.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ")
+				.append(count).append('\n');
+		String plain = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1)
+				+ "}";
+		out.append(name).append("_sum").append(plain).append(' ')
+				.append(histogram.getSum() * scale).append('\n');
+		out.append(name).append("_count").append(plain).append(' ').append(count).append('\n');
+	}
+}
@@ -0,0 +1,34 @@
+import java.util.Map;
+
+/**
+ * What {@link StepMetrics} shows over JMX, e.g. in JConsole or VisualVM.
+ * Times are in microseconds and maps are keyed by phase or species name.
+ */
+public interface StepMetricsMXBean {
+	/** @return The number of steps run since the metrics were created or reset. */
+	long getSteps();
+
+	/** @return The number of steps run a second lately. */
+	double getStepsPerSecond();
+
+	/** @return The population of each species after the last step. */
+	Map<String, Long> getPopulation();
+
+	/** @return The mean time of each phase of a step. */
+	Map<String, Double> getMeanMicros();
+
+	/** @return The median time of each phase of a step. */
+	Map<String, Double> getMedianMicros();
+
+	/** @return The 99th percentile time of each phase of a step. */
+	Map<String, Double> getP99Micros();
+
+	/** @return The longest time of each phase of a step. */
+	Map<String, Double> getMaxMicros();
+
+	/** @return The mean number of bytes the stepping thread allocates a step. */
+	double getMeanAllocatedBytes();
+
+	/** Start counting again from nothing. */
+	void reset();
+}
@@ -0,0 +1,312 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a trajectory written by a {@link TrajectoryRecorder}. Any recorded
+ * step can be looked at with {@link #seek(int)}, which decodes only the
+ * chunk holding that step, and a run can be replayed from there with
+ * {@link #next()}.
+ */
+public class TrajectoryReader {
+	/**
+	 * One recorded step: the species in every cell and the population counts.
+	 */
+	public static class Frame {
+		private final int width, height;
+		private int step;
+		private final byte[] cells;
+		private final long[] counts = new long[Species.COUNT];
+
+		Frame(int width, int height) {
+			this.width = width;
+			this.height = height;
+			cells = new byte[width * height];
+		}
+
+		public int getStep() {
+			return step;
+		}
+
+		/**
+		 * @return The species code of the cell at the given index (row *
+		 *         width + col).
+		 */
+		public byte getSpecies(int index) {
+			return cells[index];
+		}
+
+		public byte getSpecies(int col, int row) {
+			return cells[row * width + col];
+		}
+
+		public long getCount(byte species) {
+			return counts[species];
+		}
+
+		public int getWidth() {
+			return width;
+		}
+
+		public int getHeight() {
+			return height;
+		}
+	}
+
+	private final RandomAccessFile file;
+	private final int width, height;
+
+	// The index: where each chunk starts, its first step and how many steps
+	// it holds. The steps of a chunk are consecutive.
+	private long[] chunkOffsets;
+	private int[] chunkFirstSteps;
+	private int[] chunkSteps;
+	private int chunks;
+
+	// The chunk being read, decompressed, and where the next step starts.
+	private int currentChunk = -1;
+	private byte[] chunk = new byte[0];
+	private DataInputStream chunkIn;
+	private int stepsLeft;
+
+	private final Frame frame;
+	private final Inflater inflater = new Inflater();
+
+	/**
+	 * Open a trajectory. The index file is used if it is there; otherwise the
+	 * chunks are found by reading their headers.
+	 *
+	 * @param fileName
+	 *            The trajectory file.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a trajectory.
+	 */
+	public TrajectoryReader(String fileName) throws IOException {
+		file = new RandomAccessFile(fileName, "r");
+		if (file.readInt() != TrajectoryRecorder.MAGIC) {
+			file.close();
+			throw new IOException(fileName + " is not a trajectory");
+		}
+		int version = file.readInt();
+		if (version != TrajectoryRecorder.VERSION) {
+			file.close();
+			throw new IOException(fileName + " has unsupported trajectory version " + version);
+		}
+		width = file.readInt();
+		height = file.readInt();
+		frame = new Frame(width, height);
+
+		chunkOffsets = new long[16];
+		chunkFirstSteps = new int[16];
+		chunkSteps = new int[16];
+		File index = new File(TrajectoryRecorder.indexFile(fileName));
+		if (index.exists()) {
+			readIndex(index);
+		} else {
+			scanChunks();
+		}
+	}
+
+	private void readIndex(File index) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(index)));
+		try {
+			int entries = (int) (index.length() / 16);
+			for (int i = 0; i < entries; i++) {
+				addChunk(in.readLong(), in.readInt(), in.readInt());
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	// Find the chunks by hopping from one chunk header to the next.
+	private void scanChunks() throws IOException {
+		long offset = 16;
+		while (offset + 20 <= file.length()) {
+			file.seek(offset);
+			if (file.readInt() != TrajectoryRecorder.MAGIC) {
+				throw new IOException("Trajectory is corrupt at offset " + offset);
+			}
+			int firstStep = file.readInt();
+			int steps = file.readInt();
+			int length = file.readInt();
+			if (offset + 20 + length > file.length()) {
+				break; // the run died while writing this chunk
+			}
+			addChunk(offset, firstStep, steps);
+			offset += 20 + length;
+		}
+	}
+
+	private void addChunk(long offset, int firstStep, int steps) {
+		if (chunks == chunkOffsets.length) {
+			chunkOffsets = Arrays.copyOf(chunkOffsets, chunks * 2);
+			chunkFirstSteps = Arrays.copyOf(chunkFirstSteps, chunks * 2);
+			chunkSteps = Arrays.copyOf(chunkSteps, chunks * 2);
+		}
+		chunkOffsets[chunks] = offset;
+		chunkFirstSteps[chunks] = firstStep;
+		chunkSteps[chunks] = steps;
+		chunks++;
+	}
+
+	/**
+	 * @return The first recorded step, or -1 if nothing was recorded.
+	 */
+	public int getFirstStep() {
+		return chunks == 0 ? -1 : chunkFirstSteps[0];
+	}
+
+	/**
+	 * @return The last recorded step, or -1 if nothing was recorded.
+	 */
+	public int getLastStep() {
+		return chunks == 0 ? -1 : chunkFirstSteps[chunks - 1] + chunkSteps[chunks - 1] - 1;
+	}
+
+	/**
+	 * Go to a recorded step.
+	 *
+	 * @param step
+	 *            The step to go to.
+	 * @return The recorded step. The frame is reused by later calls.
+	 * @throws IOException
+	 *             If the step was not recorded or cannot be read.
+	 */
+	public Frame seek(int step) throws IOException {
+		// Steps are recorded in order, so the chunks are sorted by first step.
+		int lo = 0;
+		int hi = chunks - 1;
+		while (lo < hi) {
+			int mid = (lo + hi + 1) >>> 1;
+			if (chunkFirstSteps[mid] <= step) {
+				lo = mid;
+			} else {
+				hi = mid - 1;
+			}
+		}
+		if (chunks == 0 || step < chunkFirstSteps[lo]
+				|| step >= chunkFirstSteps[lo] + chunkSteps[lo]) {
+			throw new IOException("Step " + step + " was not recorded");
+		}
+
+		// Carry on from the current step if it is in the same chunk and not
+		// past the one wanted; otherwise start again from the key frame.
+		if (lo != currentChunk || frame.step > step) {
+			loadChunk(lo);
+			readStep();
+		}
+		while (frame.step < step && stepsLeft > 0) {
+			readStep();
+		}
+		if (frame.step != step) {
+			throw new IOException("Step " + step + " was not recorded");
+		}
+		return frame;
+	}
+
+	/**
+	 * Go to the step after the current one.
+	 *
+	 * @return The next step, or null at the end of the trajectory. The frame
+	 *         is reused by later calls.
+	 * @throws IOException
+	 *             If the step cannot be read.
+	 */
+	public Frame next() throws IOException {
+		if (currentChunk < 0 || stepsLeft == 0) {
+			if (currentChunk + 1 >= chunks) {
+				return null;
+			}
+			loadChunk(currentChunk + 1);
+		}
+		readStep();
+		return frame;
+	}
+
+	// Read and decompress a whole chunk.
+	private void loadChunk(int c) throws IOException {
+		file.seek(chunkOffsets[c]);
+		file.readInt(); // MAGIC
+		file.readInt(); // first step
+		int steps = file.readInt();
+		int length = file.readInt();
+		int rawLength = file.readInt();
+		byte[] compressed = new byte[length];
+		file.readFully(compressed);
+		if (chunk.length < rawLength) {
+			chunk = new byte[rawLength];
+		}
+		inflater.reset();
+		inflater.setInput(compressed);
+		try {
+			int done = 0;
+			while (done < rawLength) {
+				int n = inflater.inflate(chunk, done, rawLength - done);
+				if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+					throw new EOFException("Chunk " + c + " ends too soon");
+				}
+				done += n;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Chunk " + c + " is corrupt: " + e.getMessage());
+		}
+		chunkIn = new DataInputStream(new ByteArrayInputStream(chunk, 0, rawLength));
+		currentChunk = c;
+		stepsLeft = steps;
+	}
+
+	// Apply the next step of the current chunk to the frame.
+	private void readStep() throws IOException {
+		byte kind = chunkIn.readByte();
+		frame.step = chunkIn.readInt();
+		for (byte species = 1; species < Species.COUNT; species++) {
+			frame.counts[species] = chunkIn.readLong();
+		}
+		if (kind == TrajectoryRecorder.KEY_FRAME) {
+			chunkIn.readFully(frame.cells);
+		} else {
+			int cell = -1;
+			int gap;
+			while ((gap = readVarInt(chunkIn)) != 0) {
+				cell += gap;
+				frame.cells[cell] = chunkIn.readByte();
+			}
+		}
+		stepsLeft--;
+	}
+
+	private static int readVarInt(DataInputStream in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		int b;
+		do {
+			b = in.readUnsignedByte();
+			value |= (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	public void close() throws IOException {
+		inflater.end();
+		file.close();
+	}
+}
@@ -0,0 +1,426 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * Records every step of a run to an append-only trajectory file, so that any
+ * step can later be looked at again with a {@link TrajectoryReader} instead
+ * of running the simulation a second time.
+ *
+ * For each step the recorder saves the species in every cell and the
+ * population counts from {@link FieldStats}. Steps are grouped into chunks
+ * of {@link #CHUNK_STEPS}; the first step of a chunk is saved in full (a key
+ * frame) and the others only as the cells that differ from the step before.
+ * Each chunk holds consecutive steps: a step that does not follow the last
+ * one recorded, e.g. after a later state was restored, starts a new chunk.
+ * Each chunk is compressed on its own, and its position is added to an
+ * index file next to the trajectory, so a reader can jump to any chunk and
+ * only has to decode the steps from the start of that chunk.
+ *
+ * The simulation thread only works out which cells have changed, and when
+ * the recorder is registered with an engine it only looks at the blocks of
+ * cells the engine says have changed (see
+ * {@link SimulationEngine#trackChanges(DirtyBlocks)}). Each step is encoded
+ * into a buffer that is handed back for reuse once written, and compressing
+ * and writing happen on a background thread. The buffers of the steps
+ * waiting to be written may take up at most {@link #QUEUE_BYTES}, so memory
+ * use stays bounded however big the steps are: the simulation only has to
+ * wait if the writer falls that far behind.
+ *
+ * The trajectory file starts with MAGIC, VERSION, width and height (ints);
+ * then come the chunks, each an int MAGIC, the first step, the number of
+ * steps, the compressed and uncompressed sizes, and the compressed bytes.
+ * The index file holds, for each chunk, its offset (long), first step and
+ * number of steps (ints).
+ */
+public class TrajectoryRecorder implements StepListener {
+	/** The first four bytes of a trajectory file and of every chunk: "FRTR" */
+	public static final int MAGIC = 0x46525452;
+
+	/** The version of the format written by this class */
+	public static final int VERSION = 1;
+
+	/** The number of steps in a chunk */
+	public static final int CHUNK_STEPS = 256;
+
+	/** How many bytes the steps waiting to be written may take up */
+	public static final int QUEUE_BYTES = 16 << 20;
+
+	/** The name of the index file of a trajectory */
+	public static String indexFile(String file) {
+		return file + ".index";
+	}
+
+	// Kinds of step record.
+	static final byte KEY_FRAME = 0;
+	static final byte DELTA = 1;
+
+	/**
+	 * A growable array of bytes that records are encoded into, big-endian.
+	 */
+	private static class Bytes {
+		byte[] bytes;
+		int length;
+		// What it counts for against QUEUE_BYTES while queued.
+		int queued;
+
+		Bytes(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		private void ensure(int more) {
+			if (length + more > bytes.length) {
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + more));
+			}
+		}
+
+		void putByte(int value) {
+			ensure(1);
+			bytes[length++] = (byte) value;
+		}
+
+		void putInt(int value) {
+			ensure(4);
+			bytes[length++] = (byte) (value >>> 24);
+			bytes[length++] = (byte) (value >>> 16);
+			bytes[length++] = (byte) (value >>> 8);
+			bytes[length++] = (byte) value;
+		}
+
+		void putLong(long value) {
+			putInt((int) (value >>> 32));
+			putInt((int) value);
+		}
+
+		// A non-negative int in as few bytes as possible, 7 bits at a time.
+		void putVarInt(int value) {
+			ensure(5);
+			while ((value & ~0x7F) != 0) {
+				bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+				value >>>= 7;
+			}
+			bytes[length++] = (byte) value;
+		}
+
+		void put(byte[] values, int offset, int count) {
+			ensure(count);
+			System.arraycopy(values, offset, bytes, length, count);
+			length += count;
+		}
+	}
+
+	// Tells the writer to finish.
+	private static final Bytes END = new Bytes(0);
+
+	private final int width, height;
+
+	// The species in every cell at the last recorded step.
+	private final byte[] cells;
+	private boolean recorded;
+
+	// The blocks changed since the last recorded step, once registered with
+	// an engine, and their numbers in order.
+	private DirtyBlocks changes;
+	private SimulationEngine engine;
+	private int[] changedBlocks = new int[0];
+
+	private int stepsInChunk;
+	private int lastStep = Integer.MIN_VALUE;
+
+	// Steps waiting to be written, the bytes they may still take up, and
+	// buffers that have been written and can be filled again.
+	private final BlockingQueue<Bytes> queue = new LinkedBlockingQueue<Bytes>();
+	private final Semaphore queueSpace = new Semaphore(QUEUE_BYTES);
+	private final BlockingQueue<Bytes> spare = new LinkedBlockingQueue<Bytes>();
+	private final Thread writer;
+	private volatile IOException failure;
+
+	/**
+	 * Start recording to a file. Register the recorder with an engine (see
+	 * {@link SimulationEngine#addStepListener(StepListener)}) to record each
+	 * step, and call {@link #close()} at the end of the run.
+	 *
+	 * @param file
+	 *            The trajectory file, which is replaced if it exists.
+	 * @param width
+	 *            The width of the field being recorded.
+	 * @param height
+	 *            The height of the field being recorded.
+	 * @throws IOException
+	 *             If the files cannot be created.
+	 */
+	public TrajectoryRecorder(String file, int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+		cells = new byte[width * height];
+
+		final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(file), 1 << 16));
+		final DataOutputStream index = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(indexFile(file))));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(width);
+		out.writeInt(height);
+
+		writer = new Thread(new Runnable() {
+			public void run() {
+				try {
+					writeChunks(out, index);
+				} catch (IOException e) {
+					failure = e;
+				} catch (InterruptedException e) {
+					failure = new IOException("Recording was interrupted");
+				}
+			}
+		}, "trajectory-writer");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Record the step the engine has just completed. From then on the engine
+	 * tells the recorder which blocks of cells have changed.
+	 */
+	public void stepCompleted(SimulationEngine e) {
+		if (changes == null) {
+			changes = new DirtyBlocks(width * height);
+			engine = e;
+			e.trackChanges(changes);
+		}
+		try {
+			record(e.getStep(), e.getField(), e.getStats(), changes);
+		} catch (IOException ex) {
+			System.out.println("Could not record step " + e.getStep() + ": "
+					+ ex.getMessage());
+		}
+	}
+
+	/**
+	 * Record one step, looking at every cell to find those that changed.
+	 *
+	 * @param step
+	 *            The number of the step.
+	 * @param field
+	 *            The field at the end of the step.
+	 * @param stats
+	 *            The population counts at the end of the step.
+	 * @throws IOException
+	 *             If the writer has failed, or the step is not after the last
+	 *             one recorded (e.g. because the simulation was reset).
+	 */
+	public void record(int step, Field field, FieldStats stats) throws IOException {
+		record(step, field, stats, null);
+	}
+
+	/**
+	 * Record one step, looking only at the cells in the blocks that have
+	 * changed since the last one recorded.
+	 *
+	 * @param step
+	 *            The number of the step.
+	 * @param field
+	 *            The field at the end of the step.
+	 * @param stats
+	 *            The population counts at the end of the step.
+	 * @param changes
+	 *            The blocks changed since the last step recorded, which are
+	 *            cleared once recorded, or null to look at every cell.
+	 * @throws IOException
+	 *             If the writer has failed, or the step is not after the last
+	 *             one recorded (e.g. because the simulation was reset).
+	 */
+	public void record(int step, Field field, FieldStats stats, DirtyBlocks changes)
+			throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (step <= lastStep) {
+			throw new IOException("Step " + step + " is not after step " + lastStep);
+		}
+		if (field.getWidth() != width || field.getHeight() != height) {
+			throw new IOException("Field is " + field.getWidth() + "x" + field.getHeight()
+					+ ", recording " + width + "x" + height);
+		}
+
+		if (recorded && step != lastStep + 1) {
+			stepsInChunk = 0;
+		}
+		boolean keyFrame = stepsInChunk == 0;
+		Bytes out = keyFrame ? null : spare.poll();
+		if (out == null) {
+			out = new Bytes(keyFrame ? 64 + cells.length : 1 << 12);
+		}
+		out.length = 0;
+		out.putByte(keyFrame ? KEY_FRAME : DELTA);
+		out.putInt(step);
+		for (byte species = 1; species < Species.COUNT; species++) {
+			out.putLong(stats.getCount(species));
+		}
+
+		// The cells that changed, each as the distance from the last one and
+		// its new species. They must go in order, so the blocks are sorted.
+		int last = -1;
+		if (changes == null || !recorded) {
+			for (int i = 0; i < cells.length; i++) {
+				last = recordCell(out, field, i, last, keyFrame);
+			}
+		} else {
+			int count = changes.count();
+			if (changedBlocks.length < count) {
+				changedBlocks = new int[changes.blocks()];
+			}
+			for (int n = 0; n < count; n++) {
+				changedBlocks[n] = changes.changedBlock(n);
+			}
+			Arrays.sort(changedBlocks, 0, count);
+			for (int n = 0; n < count; n++) {
+				int first = changes.firstCell(changedBlocks[n]);
+				int end = first + changes.blockLength(changedBlocks[n]);
+				for (int i = first; i < end; i++) {
+					last = recordCell(out, field, i, last, keyFrame);
+				}
+			}
+		}
+		if (changes != null) {
+			changes.clear();
+		}
+		if (keyFrame) {
+			out.put(cells, 0, cells.length);
+		} else {
+			out.putVarInt(0);
+		}
+		recorded = true;
+		stepsInChunk = (stepsInChunk + 1) % CHUNK_STEPS;
+		lastStep = step;
+
+		enqueue(out);
+	}
+
+	// Bring the species of a cell up to date and, in a delta, save it if it
+	// changed. Returns the last cell saved.
+	private int recordCell(Bytes out, Field field, int cell, int last, boolean keyFrame) {
+		byte species = Species.of(field.getObjectAt(cell));
+		if (species == cells[cell] && recorded) {
+			return last;
+		}
+		cells[cell] = species;
+		if (keyFrame) {
+			return last;
+		}
+		out.putVarInt(cell - last);
+		out.putByte(species);
+		return cell;
+	}
+
+	// Hand a step to the writer, waiting only while too many bytes are queued
+	// and the writer is still working. What counts is the size of the buffer,
+	// as that is the memory it holds.
+	private void enqueue(Bytes item) throws IOException {
+		item.queued = Math.min(item.bytes.length, QUEUE_BYTES);
+		try {
+			while (!queueSpace.tryAcquire(item.queued, 100, TimeUnit.MILLISECONDS)) {
+				if (failure != null) {
+					throw failure;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while recording");
+		}
+		queue.add(item);
+	}
+
+	// Run by the writer thread: gather steps into chunks and write them out.
+	private void writeChunks(DataOutputStream out, DataOutputStream index)
+			throws IOException, InterruptedException {
+		Bytes chunk = new Bytes(1 << 16);
+		byte[] compressed = new byte[1 << 16];
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		long offset = 16;
+		int firstStep = 0;
+		int steps = 0;
+		try {
+			while (true) {
+				Bytes step = queue.take();
+				if ((step == END || step.bytes[0] == KEY_FRAME) && steps > 0) {
+					deflater.reset();
+					deflater.setInput(chunk.bytes, 0, chunk.length);
+					deflater.finish();
+					int length = 0;
+					while (!deflater.finished()) {
+						if (length == compressed.length) {
+							compressed = Arrays.copyOf(compressed, compressed.length * 2);
+						}
+						length += deflater.deflate(compressed, length, compressed.length - length);
+					}
+					out.writeInt(MAGIC);
+					out.writeInt(firstStep);
+					out.writeInt(steps);
+					out.writeInt(length);
+					out.writeInt(chunk.length);
+					out.write(compressed, 0, length);
+					index.writeLong(offset);
+					index.writeInt(firstStep);
+					index.writeInt(steps);
+					offset += 20 + length;
+					// Keep finished chunks readable even if the run dies.
+					out.flush();
+					index.flush();
+					chunk.length = 0;
+					steps = 0;
+				}
+				if (step == END) {
+					return;
+				}
+				if (steps == 0) {
+					byte[] b = step.bytes;
+					firstStep = ((b[1] & 0xFF) << 24) | ((b[2] & 0xFF) << 16)
+							| ((b[3] & 0xFF) << 8) | (b[4] & 0xFF);
+				}
+				chunk.put(step.bytes, 0, step.length);
+				steps++;
+				queueSpace.release(step.queued);
+				// Key frames get a buffer of their own, which is dropped once
+				// written so that a delta never ties up as much space.
+				if (step.bytes[0] != KEY_FRAME) {
+					spare.add(step);
+				}
+			}
+		} finally {
+			deflater.end();
+			out.close();
+			index.close();
+		}
+	}
+
+	/**
+	 * Write out everything recorded so far and close the files. Waits for
+	 * the writer to finish.
+	 *
+	 * @throws IOException
+	 *             If anything could not be written.
+	 */
+	public void close() throws IOException {
+		if (engine != null) {
+			engine.stopTracking(changes);
+		}
+		enqueue(END);
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while closing the recording");
+		}
+		if (failure != null) {
+			throw failure;
+		}
+	}
+}
@@ -0,0 +1,64 @@
+import java.util.Random;
+
+/**
+ * A {@link Random} driven by the xoshiro256** generator, which has a much
+ * longer period than SplitMix64 and passes the usual statistical test suites.
+ * Seeding expands the 64-bit seed with SplitMix64 as recommended by the
+ * authors. Instances are not thread safe.
+ */
+public class Xoshiro256Random extends Random {
+	private static final long serialVersionUID = 1L;
+
+	// Deliberately not initialised here: Random's constructor calls setSeed
+	// before the fields of a subclass are initialised.
+	private long s0, s1, s2, s3;
+
+	public Xoshiro256Random() {
+		super();
+	}
+
+	public Xoshiro256Random(long seed) {
+		super(seed);
+	}
+
+	@Override
+	public void setSeed(long seed) {
+		s0 = SplitMix64Random.mix(seed += 0x9E3779B97F4A7C15L);
+		s1 = SplitMix64Random.mix(seed += 0x9E3779B97F4A7C15L);
+		s2 = SplitMix64Random.mix(seed += 0x9E3779B97F4A7C15L);
+		s3 = SplitMix64Random.mix(seed + 0x9E3779B97F4A7C15L);
+	}
+
+	@Override
+	public long nextLong() {
+		long result = Long.rotateLeft(s1 * 5, 7) * 9;
+		long t = s1 << 17;
+		s2 ^= s0;
+		s3 ^= s1;
+		s1 ^= s2;
+		s0 ^= s3;
+		s2 ^= t;
+		s3 = Long.rotateLeft(s3, 45);
+		return result;
+	}
+
+	@Override
+	protected int next(int bits) {
+		return (int) (nextLong() >>> (64 - bits));
+	}
+
+	@Override
+	public int nextInt() {
+		return (int) (nextLong() >>> 32);
+	}
+
+	@Override
+	public double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	@Override
+	public boolean nextBoolean() {
+		return nextLong() < 0;
+	}
+}